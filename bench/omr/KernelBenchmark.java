@@ -0,0 +1,277 @@
+package omr;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the marker matching and bubble summation kernels of Sheet against the scalar versions that they replaced.
+ * Sheet.measureBubble() is the scalar loop again, since a version that summed the channels in 16-bit halves of an int
+ * was not measurably faster. It is kept here as a reference point for the marker search and for later attempts.
+ * <p>
+ * The sheet is synthetic and generated from a fixed seed, so the run does not depend on scanned files: a 2480 x 3508 page
+ * (A4 at 300 dpi) of light noise with a 32 x 32 marker displaced by (7, -5) from its expected position, and a question group
+ * of 40 x 12 bubbles of 24 x 24 pixels. The results of both versions are compared before timing, and the run fails if they differ.
+ * <p>
+ * Run with <code>ant bench</code>. Each kernel is warmed up and then timed in ROUNDS rounds; the median round is reported.
+ * Three runs on a single-core Xeon virtual machine, OpenJDK 17.0.9, default JIT settings:
+ * <pre>
+ * matchMarker   (32x32 marker, radius 16)    before 4.55 / 4.62 / 6.33 ms      after 551 / 589 / 371 us
+ * measureBubble (480 bubbles of 24x24)       before  500 /  538 /  533 us      after 536 / 471 / 456 us
+ * </pre>
+ * The marker search is about ten times faster, mostly because hopeless positions are abandoned early. The two bubble sums
+ * are the same code, so their difference shows the noise of this machine.
+ *
+ * @author Tapio Auvinen
+ */
+public class KernelBenchmark {
+    private static final int SEED = 1234;
+    private static final int ROUNDS = 7;
+
+    private static final int SHEET_WIDTH = 2480;
+    private static final int SHEET_HEIGHT = 3508;
+
+    private static final int MARKER_SIZE = 32;
+    private static final int MARKER_X = 300;          // Expected center of the marker
+    private static final int MARKER_Y = 300;
+    private static final int MARKER_DX = 7;           // Displacement of the marker in the sheet
+    private static final int MARKER_DY = -5;
+    private static final int SEARCH_RADIUS = 16;
+
+    private static final int GROUP_LEFT = 100;
+    private static final int GROUP_TOP = 150;
+    private static final int GROUP_WIDTH = 1550;
+    private static final int GROUP_HEIGHT = 2250;
+    private static final int ROWS = 40;
+    private static final int COLUMNS = 12;
+    private static final int BUBBLE_SIZE = 24;
+
+    private int[] sheet;
+    private int[] marker;
+    private int[] bubbleX;
+    private int[] bubbleY;
+    private long checksum;            // Keeps the JIT from removing the timed calls
+
+    public static void main(String[] args) {
+        KernelBenchmark benchmark = new KernelBenchmark();
+        benchmark.generate();
+        benchmark.verify();
+        benchmark.run();
+    }
+
+    /**
+     * Generates the sheet, the marker and the bubble positions.
+     */
+    private void generate() {
+        Random random = new Random(SEED);
+
+        sheet = new int[SHEET_WIDTH * SHEET_HEIGHT];
+        for (int i = 0; i < sheet.length; i++) {
+            sheet[i] = gray(200 + random.nextInt(56));
+        }
+
+        // Marker: a dark frame with a cross, drawn into the sheet with some noise
+        marker = new int[MARKER_SIZE * MARKER_SIZE];
+        for (int y = 0; y < MARKER_SIZE; y++) {
+            for (int x = 0; x < MARKER_SIZE; x++) {
+                boolean dark = x < 4 || y < 4 || x >= MARKER_SIZE - 4 || y >= MARKER_SIZE - 4
+                        || Math.abs(x - MARKER_SIZE / 2) < 2 || Math.abs(y - MARKER_SIZE / 2) < 2;
+                marker[y * MARKER_SIZE + x] = gray(dark ? 20 : 240);
+            }
+        }
+
+        int markerLeft = MARKER_X - MARKER_SIZE / 2 + MARKER_DX;
+        int markerTop = MARKER_Y - MARKER_SIZE / 2 + MARKER_DY;
+        for (int y = 0; y < MARKER_SIZE; y++) {
+            for (int x = 0; x < MARKER_SIZE; x++) {
+                int value = marker[y * MARKER_SIZE + x] & 0xFF;
+                sheet[(markerTop + y) * SHEET_WIDTH + markerLeft + x] = gray(Math.max(0, Math.min(255, value + random.nextInt(31) - 15)));
+            }
+        }
+
+        // Bubbles, some of them filled
+        bubbleX = new int[ROWS * COLUMNS];
+        bubbleY = new int[ROWS * COLUMNS];
+        for (int row = 0; row < ROWS; row++) {
+            for (int col = 0; col < COLUMNS; col++) {
+                int bubble = row * COLUMNS + col;
+                bubbleX[bubble] = GROUP_LEFT + col * GROUP_WIDTH / COLUMNS;
+                bubbleY[bubble] = GROUP_TOP + row * GROUP_HEIGHT / ROWS;
+
+                if (random.nextInt(COLUMNS) == 0) {
+                    for (int y = 0; y < BUBBLE_SIZE; y++) {
+                        for (int x = 0; x < BUBBLE_SIZE; x++) {
+                            sheet[(bubbleY[bubble] + y) * SHEET_WIDTH + bubbleX[bubble] + x] = gray(30 + random.nextInt(40));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the kernels give the same results as the versions that they replaced.
+     */
+    private void verify() {
+        long[] match = matchMarker();
+        long[] previousMatch = previousMatchMarker();
+        if (match[0] != previousMatch[0] || match[1] != previousMatch[1]) {
+            throw new IllegalStateException("Marker found at " + match[0] + "," + match[1]
+                    + " instead of " + previousMatch[0] + "," + previousMatch[1]);
+        }
+
+        for (int bubble = 0; bubble < bubbleX.length; bubble++) {
+            int brightness = Sheet.measureBubble(sheet, SHEET_WIDTH, SHEET_HEIGHT, bubbleX[bubble], bubbleY[bubble], BUBBLE_SIZE, BUBBLE_SIZE);
+            int previousBrightness = previousMeasureBubble(sheet, SHEET_WIDTH, SHEET_HEIGHT, bubbleX[bubble], bubbleY[bubble], BUBBLE_SIZE, BUBBLE_SIZE);
+            if (brightness != previousBrightness) {
+                throw new IllegalStateException("Bubble " + bubble + " measured " + brightness + " instead of " + previousBrightness);
+            }
+        }
+
+        System.out.println("Marker found at " + (match[0] + MARKER_SIZE / 2) + "," + (match[1] + MARKER_SIZE / 2) + ", results match");
+    }
+
+    private void run() {
+        System.out.println("matchMarker   before " + format(time(new Runnable() {
+            public void run() {
+                checksum += previousMatchMarker()[2];
+            }
+        }, 20)) + "   after " + format(time(new Runnable() {
+            public void run() {
+                checksum += matchMarker()[2];
+            }
+        }, 20)));
+
+        System.out.println("measureBubble before " + format(time(new Runnable() {
+            public void run() {
+                for (int bubble = 0; bubble < bubbleX.length; bubble++) {
+                    checksum += previousMeasureBubble(sheet, SHEET_WIDTH, SHEET_HEIGHT, bubbleX[bubble], bubbleY[bubble], BUBBLE_SIZE, BUBBLE_SIZE);
+                }
+            }
+        }, 2000)) + "   after " + format(time(new Runnable() {
+            public void run() {
+                for (int bubble = 0; bubble < bubbleX.length; bubble++) {
+                    checksum += Sheet.measureBubble(sheet, SHEET_WIDTH, SHEET_HEIGHT, bubbleX[bubble], bubbleY[bubble], BUBBLE_SIZE, BUBBLE_SIZE);
+                }
+            }
+        }, 2000)));
+
+        System.out.println("(checksum " + checksum + ")");
+    }
+
+    /**
+     * Returns the median time of one call in nanoseconds.
+     * @param iterations Calls per round
+     */
+    private static double time(Runnable kernel, int iterations) {
+        // Warm up so that the kernel is compiled before timing
+        for (int i = 0; i < iterations * 5; i++) {
+            kernel.run();
+        }
+
+        double[] rounds = new double[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                kernel.run();
+            }
+            rounds[round] = (double) (System.nanoTime() - start) / iterations;
+        }
+
+        Arrays.sort(rounds);
+        return rounds[ROUNDS / 2];
+    }
+
+    private static String format(double nanoseconds) {
+        if (nanoseconds >= 1e6) {
+            return String.format("%7.2f ms", nanoseconds / 1e6);
+        }
+        return String.format("%7.1f us", nanoseconds / 1e3);
+    }
+
+    private static int gray(int value) {
+        return (value << 16) | (value << 8) | value;
+    }
+
+    /**
+     * Calls the kernel with the search window that Sheet.locateMarker() uses.
+     */
+    private long[] matchMarker() {
+        int searchStartY = Math.max(MARKER_Y - SEARCH_RADIUS - MARKER_SIZE / 2, 0);
+        int searchStartX = Math.max(MARKER_X - SEARCH_RADIUS - MARKER_SIZE / 2, 0);
+        return Sheet.matchMarker(sheet, SHEET_WIDTH, 0, 0, marker, MARKER_SIZE, MARKER_SIZE,
+                searchStartX, searchStartY, searchStartX + 2 * SEARCH_RADIUS, searchStartY + 2 * SEARCH_RADIUS);
+    }
+
+    /**
+     * The marker search of Sheet.locateMarker() before the kernel was rewritten.
+     * @return {x, y, difference}
+     */
+    private long[] previousMatchMarker() {
+        final int[] sheetArray = sheet;
+        final int[] markerArray = marker;
+        final int sheetWidth = SHEET_WIDTH;
+        final int markerWidth = MARKER_SIZE;
+        final int markerHeight = MARKER_SIZE;
+
+        long minDifference = Long.MAX_VALUE;
+        int foundX = MARKER_X;
+        int foundY = MARKER_Y;
+
+        final int searchStartY = Math.max(MARKER_Y - SEARCH_RADIUS - markerHeight / 2, 0);
+        final int searchStartX = Math.max(MARKER_X - SEARCH_RADIUS - markerWidth / 2, 0);
+        final int searchEndY = Math.min(searchStartY + 2 * SEARCH_RADIUS, SHEET_HEIGHT - markerHeight);
+        final int searchEndX = Math.min(searchStartX + 2 * SEARCH_RADIUS, SHEET_WIDTH - markerWidth);
+
+        for (int searchY = searchStartY; searchY < searchEndY; searchY++) {
+            for (int searchX = searchStartX; searchX < searchEndX; searchX++) {
+                long difference = 0;
+
+                for (int y = 0; y < markerHeight; y++) {
+                    final int markerOffset = y * markerWidth;
+                    final int sheetOffset = (y + searchY) * sheetWidth + searchX;
+
+                    for (int x = 0; x < markerWidth; x++) {
+                        final int markerIndex = markerOffset + x;
+                        final int sheetIndex = sheetOffset + x;
+
+                        difference += Math.abs(((markerArray[markerIndex] & 0x00FF0000) >> 16) - ((sheetArray[sheetIndex] & 0x00FF0000) >> 16))
+                                + Math.abs(((markerArray[markerIndex] & 0x0000FF00) >> 8) - ((sheetArray[sheetIndex] & 0x0000FF00) >> 8))
+                                + Math.abs((markerArray[markerIndex] & 0x000000FF) - (markerArray[markerIndex] & 0x000000FF));
+                    }
+                }
+
+                if (difference < minDifference) {
+                    minDifference = difference;
+                    foundX = searchX;
+                    foundY = searchY;
+                }
+            }
+        }
+
+        return new long[] {foundX, foundY, minDifference};
+    }
+
+    /**
+     * Sheet.measureBubble() as it was before the benchmark was added.
+     */
+    private static int previousMeasureBubble(final int[] array, final int bufferWidth, final int bufferHeight,
+            final int bubbleX, final int bubbleY, final int bubbleWidth, final int bubbleHeight) {
+
+        long sum = 0;
+        final int bubbleBottomY = Math.min(bubbleY + bubbleHeight, bufferHeight - 1);
+        final int bubbleRightX = Math.min(bubbleX + bubbleWidth, bufferWidth);
+
+        for (int y = bubbleY; y < bubbleBottomY; y++) {
+            int offset = y * bufferWidth;
+
+            for (int x = bubbleX; x < bubbleRightX; x++) {
+                final int index = offset + x;
+                sum += ((array[index] & 0x00FF0000) >> 16)
+                        + ((array[index] & 0x0000FF00) >> 8)
+                        + ((array[index] & 0x000000FF));
+            }
+        }
+
+        return (int) ((double) sum / (bubbleWidth * bubbleHeight * 3));
+    }
+}
@@ -0,0 +1,113 @@
+package omr;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import omr.Sheet.SheetStatus;
+
+/**
+ * Order in which analysis workers process sheets. Sheets that the user is looking at are analyzed first, then sheets that had
+ * uncertain answers in a previous run, and then the rest in list order. Priorities can be raised while the analysis is running.
+ * <p>
+ * Raising the priority of a sheet adds another entry for it to the queue. Each sheet is claimed only once, so the remaining entries are skipped.
+ *
+ * @author Tapio Auvinen
+ */
+public class AnalysisQueue {
+    public static final int PRIORITY_SELECTED = 0;      // Sheet selected by the user
+    public static final int PRIORITY_NEIGHBOUR = 1;     // Sheets next to the selected sheet in the list
+    public static final int PRIORITY_FLAGGED = 2;       // Sheets with uncertain answers in a previous run
+    public static final int PRIORITY_NORMAL = 3;
+
+    private static final int NEIGHBOURS = 2;            // Number of sheets on each side of the selected sheet to prioritize
+
+    private static class Entry implements Comparable<Entry> {
+        final int priority;
+        final long sequence;     // Order of entries with the same priority
+        final int index;         // Index of the sheet in the list
+
+        Entry(int priority, long sequence, int index) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.index = index;
+        }
+
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return priority - other.priority;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private List<Sheet> sheets;
+    private IdentityHashMap<Sheet, Integer> positions;   // Sheet -> index in sheets
+    private AtomicIntegerArray claimed;                  // 1 if the sheet has been taken by a worker
+    private PriorityBlockingQueue<Entry> queue;
+    private AtomicLong sequence;
+
+    /**
+     * Constructor
+     * @param sheets Sheets to analyze. The list must not be modified afterwards.
+     */
+    public AnalysisQueue(List<Sheet> sheets) {
+        this.sheets = sheets;
+        this.positions = new IdentityHashMap<Sheet, Integer>();
+        this.claimed = new AtomicIntegerArray(sheets.size());
+        this.queue = new PriorityBlockingQueue<Entry>(Math.max(1, sheets.size()));
+        this.sequence = new AtomicLong();
+
+        for (int index = 0; index < sheets.size(); index++) {
+            Sheet sheet = sheets.get(index);
+            positions.put(sheet, index);
+
+            int priority = sheet.getStatus() == SheetStatus.ANALYZED_WITH_ERRORS ? PRIORITY_FLAGGED : PRIORITY_NORMAL;
+            queue.add(new Entry(priority, sequence.getAndIncrement(), index));
+        }
+    }
+
+    /**
+     * Returns the next sheet to analyze, or null if all sheets have been taken. Thread-safe.
+     */
+    public Sheet take() {
+        for (Entry entry = queue.poll(); entry != null; entry = queue.poll()) {
+            if (claimed.compareAndSet(entry.index, 0, 1)) {
+                return sheets.get(entry.index);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Moves the given sheet and its neighbours in the list to the front of the queue. Does nothing for sheets that have already been taken.
+     * Can be called from any thread.
+     */
+    public void prioritize(Sheet sheet) {
+        Integer index = positions.get(sheet);
+        if (index == null) {
+            return;
+        }
+
+        // Later requests go before earlier ones, so that the latest selection is served first
+        long stamp = -sequence.getAndIncrement() * (2 * NEIGHBOURS + 1);
+        add(index, PRIORITY_SELECTED, stamp);
+
+        // Neighbours, nearest first
+        for (int distance = 1; distance <= NEIGHBOURS; distance++) {
+            add(index + distance, PRIORITY_NEIGHBOUR, stamp + 2 * distance - 1);
+            add(index - distance, PRIORITY_NEIGHBOUR, stamp + 2 * distance);
+        }
+    }
+
+    private void add(int index, int priority, long order) {
+        if (index < 0 || index >= sheets.size() || claimed.get(index) != 0) {
+            return;
+        }
+
+        queue.add(new Entry(priority, order, index));
+    }
+}
@@ -1,52 +1,391 @@
 package omr;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingUtilities;
+
+import omr.SheetStructure.SheetStructureEvent;
 
 /**
  * A background task that analyzes all Sheets in the project. This includes image registration and calculating average brightnesses of the bubbles. 
+ * The task cancels itself if the sheet structure changes while it is running, because the results would be invalidated anyway.
+ * <p>
+ * Sheets are analyzed by several worker threads. Each worker collects example bubbles into a private histogram, and the private
+ * histograms are merged into the global histogram when the workers are finished.
+ * <p>
+ * Partial results are published at a fixed rate while the workers are running: the histograms of the finished sheets are added
+ * to the global histogram, provisional thresholds are guessed, and the answers of the finished sheets are calculated.
+ * Observers are notified with PARTIAL_RESULTS each time. If the user adjusts the thresholds during the analysis, they are not guessed any more.
+ * Thresholds are guessed and answers calculated on the event dispatch thread, where the user adjusts the thresholds, so that the two never
+ * write the answers at the same time.
+ * <p>
+ * Thresholds are only guessed if the project has no answers yet. Otherwise the thresholds are kept, and answers are only calculated
+ * for the sheets that do not have them, so that the answers the user has already seen do not change.
+ * <p>
+ * A task can be run in the background, e.g. speculatively while the user is still editing the structure. Background workers run at
+ * the lowest thread priority so that they do not slow down the user interface. The priority can be raised with setBackground(false)
+ * when the results are needed. While the task runs in the background, only the brightnesses are measured. Thresholds are guessed
+ * and answers calculated only in the foreground, so that a speculative run never changes what the user sees.
  */
-public class AnalyzeSheetsTask extends Task {
+public class AnalyzeSheetsTask extends Task implements Observer {
+
+    /**
+     * Event sent to observers when partial results have been published. Observers are notified from the task thread.
+     */
+    public static final Object PARTIAL_RESULTS = "PARTIAL_RESULTS";
+
+    private static final int WORKER_COUNT =
+            OMRProperties.getInt("analysis-threads", Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    private static final int PUBLISH_INTERVAL = OMRProperties.getInt("analysis-publish-interval", 500);  // Milliseconds
 
     private Project project;
 
+    private volatile boolean failed;    // Set when a worker encounters an error that should stop the other workers
+
+    private AnalysisQueue queue;                           // Order of analysis. Null until the task starts.
+    private Sheet selectedSheet;                           // Sheet that was prioritized before the task started
+    private ConcurrentLinkedQueue<Sheet> finishedSheets;   // Analyzed sheets that have not been published yet
+    private ArrayList<Sheet> publishedSheets;              // Analyzed sheets that have been published
+    private int guessedBlackThreshold;                     // Thresholds guessed at the last publish
+    private int guessedWhiteThreshold;
+    private boolean thresholdsAdjusted;                    // Set if the user has moved the thresholds during the analysis
+    private boolean guessThresholds;                       // Set if the project had no answers when the task started
+    private volatile boolean answersCalculated;            // Set if the answers were calculated when the task finished
+
+    private boolean background;                            // Set if the workers run at low priority
+    private ArrayList<Thread> workerThreads;
+
     public AnalyzeSheetsTask(Project project, Observer observer) {
+        this(project, observer, false);
+    }
+
+    /**
+     * Constructor
+     * @param background Run the workers at low priority
+     */
+    public AnalyzeSheetsTask(Project project, Observer observer, boolean background) {
         super(observer);
         
         this.project = project;
+        this.background = background;
+        this.finishedSheets = new ConcurrentLinkedQueue<Sheet>();
+        this.publishedSheets = new ArrayList<Sheet>();
+        this.workerThreads = new ArrayList<Thread>();
+    }
+
+    /**
+     * Sets the priority of the workers. Can be called from any thread, also while the task is running.
+     * @param background true to run at low priority, false to run at normal priority
+     */
+    synchronized public void setBackground(boolean background) {
+        this.background = background;
+
+        for (Thread thread : workerThreads) {
+            thread.setPriority(getWorkerPriority());
+        }
+    }
+
+    synchronized public boolean isBackground() {
+        return background;
+    }
+
+    /**
+     * Tells whether the answers were calculated at the end of the task. They are not if the task finished in the background.
+     */
+    public boolean isAnswersCalculated() {
+        return answersCalculated;
+    }
+
+    private int getWorkerPriority() {
+        return background ? Thread.MIN_PRIORITY : Thread.NORM_PRIORITY;
     }
-    
+
     @Override
-    public void run() {
+    protected void execute() {
         SheetStructure structure = project.getSheetStructure();
-        SheetsContainer sheets = project.getSheetsContainer();
+        final ArrayList<Sheet> sheets = new ArrayList<Sheet>(project.getAnswerSheets());
 
-        Histogram histogram = project.getHistogram(); 
-        histogram.reset();
+        synchronized (this) {
+            this.queue = new AnalysisQueue(sheets);
+            if (selectedSheet != null) {
+                queue.prioritize(selectedSheet);
+            }
+        }
         
         this.setEstimatedOperationsCount(sheets.size());
         this.setStatusText("Processing sheets");
         
+        int workerCount = Math.max(1, Math.min(WORKER_COUNT, sheets.size()));
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                synchronized (AnalyzeSheetsTask.this) {
+                    thread.setPriority(getWorkerPriority());
+                    workerThreads.add(thread);
+                }
+                return thread;
+            }
+        });
+        LinkedList<Future<Histogram>> results = new LinkedList<Future<Histogram>>();
+
+        Histogram histogram = project.getHistogram();
+        histogram.reset();
+        this.guessedBlackThreshold = histogram.getBlackThreshold();
+        this.guessedWhiteThreshold = histogram.getWhiteThreshold();
+        this.guessThresholds = withoutAnswers(sheets).size() == sheets.size();
+
+        structure.addObserver(this);
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                results.add(workers.submit(new Worker(structure, queue)));
+            }
+            workers.shutdown();
+
+            // Publish partial results until the workers are finished
+            try {
+                while (!workers.awaitTermination(PUBLISH_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (!isCancelled() && !failed) {
+                        publish();
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancel();
+            }
+
+            // Merge the example bubbles of the workers
+            for (Future<Histogram> result : results) {
+                try {
+                    histogram.merge(result.get());
+                } catch (ExecutionException e) {
+                    // A worker may trip over a layout change that cancelled the task. Only report genuine errors.
+                    if (!isCancelled()) {
+                        addError(e.getCause());
+                    }
+                } catch (InterruptedException e) {
+                    cancel();
+                }
+            }
+        } finally {
+            workers.shutdown();
+            structure.deleteObserver(this);
+        }
+
+        // Add the rest of the sheets to the global histogram
+        for (Sheet sheet = finishedSheets.poll(); sheet != null; sheet = finishedSheets.poll()) {
+            histogram.merge(sheet.getHistogram());
+        }
+
+        if (isCancelled() || failed || isBackground()) {
+            return;
+        }
+
+        runOnEventThread(new Runnable() {
+            public void run() {
+                calculateAnswers(sheets);
+            }
+        });
+    }
+
+    /**
+     * Calculates the answers when the analysis has finished. Keeps the thresholds if the user has already adjusted them.
+     * Called on the event dispatch thread.
+     */
+    private void calculateAnswers(List<Sheet> sheets) {
+        Histogram histogram = project.getHistogram();
+        if (histogram.getBlackThreshold() != guessedBlackThreshold || histogram.getWhiteThreshold() != guessedWhiteThreshold) {
+            this.thresholdsAdjusted = true;
+        }
+
+        if (guessThresholds && !thresholdsAdjusted) {
+            project.calculateThreshold();
+            project.calculateAnswers();
+        } else {
+            project.calculateAnswers(withoutAnswers(sheets));
+        }
+        this.answersCalculated = true;
+    }
+
+    /**
+     * Adds the sheets that have been finished since the last call to the global histogram. In the foreground, also guesses
+     * provisional thresholds and calculates answers of the finished sheets.
+     */
+    private void publish() {
+        ArrayList<Sheet> newSheets = new ArrayList<Sheet>();
+        for (Sheet sheet = finishedSheets.poll(); sheet != null; sheet = finishedSheets.poll()) {
+            newSheets.add(sheet);
+        }
+
+        if (newSheets.isEmpty()) {
+            return;
+        }
+
+        Histogram histogram = project.getHistogram();
+        for (Sheet sheet : newSheets) {
+            histogram.merge(sheet.getHistogram());
+        }
+        publishedSheets.addAll(newSheets);
+
+        if (isBackground()) {
+            setChanged();
+            notifyObservers(PARTIAL_RESULTS);
+            return;
+        }
+
+        runOnEventThread(new Runnable() {
+            public void run() {
+                calculatePartialAnswers();
+            }
+        });
+
+        setChanged();
+        notifyObservers(PARTIAL_RESULTS);
+    }
+
+    /**
+     * Guesses provisional thresholds and calculates the answers of the published sheets. Called on the event dispatch thread.
+     */
+    private void calculatePartialAnswers() {
+        // Guess thresholds unless the user has moved them since the last guess
+        Histogram histogram = project.getHistogram();
+        if (histogram.getBlackThreshold() != guessedBlackThreshold || histogram.getWhiteThreshold() != guessedWhiteThreshold) {
+            this.thresholdsAdjusted = true;
+        }
+
+        boolean thresholdsChanged = false;
+        if (guessThresholds && !thresholdsAdjusted) {
+            project.calculateThreshold();
+            thresholdsChanged = histogram.getBlackThreshold() != guessedBlackThreshold || histogram.getWhiteThreshold() != guessedWhiteThreshold;
+            this.guessedBlackThreshold = histogram.getBlackThreshold();
+            this.guessedWhiteThreshold = histogram.getWhiteThreshold();
+        }
+
+        // Sheets that were published earlier need new answers only if the thresholds changed, or if they were published in the background
+        project.calculateAnswers(thresholdsChanged ? publishedSheets : withoutAnswers(publishedSheets));
+    }
+
+    /**
+     * Runs code on the event dispatch thread and waits until it has finished.
+     */
+    private void runOnEventThread(Runnable runnable) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            runnable.run();
+            return;
+        }
+
+        try {
+            SwingUtilities.invokeAndWait(runnable);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+        } catch (InvocationTargetException e) {
+            addError(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the sheets whose answers have not been calculated, e.g. because they have been measured again.
+     */
+    private ArrayList<Sheet> withoutAnswers(List<Sheet> sheets) {
+        ResultStore results = project.getSheetsContainer().getResultStore();
+        ArrayList<Sheet> result = new ArrayList<Sheet>();
         for (Sheet sheet : sheets) {
+            if (sheet.getSlot() >= 0 && !results.isChoicesValid(sheet.getSlot())) {
+                result.add(sheet);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Analyzes the given sheet and its neighbours before the other sheets, e.g. when the user selects the sheet.
+     * Can be called from any thread, also before the task has started.
+     */
+    synchronized public void prioritize(Sheet sheet) {
+        if (queue != null) {
+            queue.prioritize(sheet);
+        } else {
+            this.selectedSheet = sheet;
+        }
+    }
+
+    /**
+     * Notified by the sheet structure when it changes. Stops the analysis because the results would be invalidated.
+     */
+    public void update(Observable source, Object event) {
+        if (SheetStructureEvent.STRUCTURE_CHANGED == event ||
+                SheetStructureEvent.BUBBLE_POSITIONS_CHANGED == event ||
+                SheetStructureEvent.REGISTRATION_CHANGED == event) {
+            this.cancel();
+        }
+    }
+
+    /**
+     * Analyzes sheets until there are no sheets left. Returns a histogram that contains example bubbles of the analyzed sheets.
+     */
+    private class Worker implements Callable<Histogram> {
+        private SheetStructure structure;
+        private AnalysisQueue queue;         // Sheets to be analyzed, shared by all workers
+
+        public Worker(SheetStructure structure, AnalysisQueue queue) {
+            this.structure = structure;
+            this.queue = queue;
+        }
+
+        public Histogram call() {
+            Histogram histogram = new Histogram();
+            BufferPool pool = new BufferPool();   // Scratch images reused from one sheet to the next
             try {
-                sheet.analyze(structure, project.getHistogram());
-            } catch (OutOfMemoryError e) {
-                System.err.println("Out of memory when analyzing sheets.");
-                return;
-            } catch (IOException e) {
-                System.err.println(e);
-                break;
-            }
-            
-            // Publish progress
-            this.increaseCompletedOperationsCount();
+                analyzeSheets(histogram, pool);
+            } finally {
+                pool.dispose();
+            }
+
+            return histogram;
+        }
+
+        /**
+         * Analyzes sheets until the queue is empty or the task is stopped.
+         */
+        private void analyzeSheets(Histogram histogram, BufferPool pool) {
+            while (!isCancelled() && !failed) {
+                Sheet sheet = queue.take();
+                if (sheet == null) {
+                    break;
+                }
+
+                try {
+                    sheet.analyze(structure, histogram, project.getSheetsContainer().getBubbleAtlas(), pool);
+                } catch (OutOfMemoryError e) {
+                    failed = true;
+                    addError(new IOException("Out of memory when analyzing sheets."));
+                    break;
+                } catch (IOException e) {
+                    failed = true;
+                    addError(e);
+                    break;
+                }
+
+                finishedSheets.add(sheet);
+
+                // Publish progress
+                increaseCompletedOperationsCount();
+            }
         }
-        
-        // Calculate answers
-        project.calculateThreshold();
-        project.calculateAnswers();
-        
-        this.finished();
     }
 
 }
@@ -0,0 +1,241 @@
+package omr;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Small grayscale crops of doubtful bubbles, so that they can be reviewed without decoding and aligning the whole sheet.
+ * <p>
+ * Each crop is a square tile of TILE_SIZE x TILE_SIZE bytes showing the bubble in the middle and parts of its neighbours around it.
+ * Tiles are kept in a temporary file that is memory-mapped in segments, so that thousands of crops do not occupy the heap.
+ * Crops are identified by (slot, bubble) of the ResultStore. They are stored by analysis workers concurrently.
+ * The file is deleted by dispose() when the project is closed.
+ *
+ * @author Tapio Auvinen
+ */
+public class BubbleAtlas {
+    public static final int TILE_SIZE = 64;                  // Width and height of a crop in pixels
+    private static final int TILE_BYTES = TILE_SIZE * TILE_SIZE;
+    private static final int TILES_PER_SEGMENT = 1024;       // Tiles per mapped segment (4 MB)
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private ArrayList<MappedByteBuffer> segments;
+    private boolean failed;                                  // Set if the file cannot be created or the atlas has been disposed. Crops are not stored after that.
+
+    private HashMap<Integer, HashMap<Integer, Integer>> tiles;   // slot -> bubble -> tile
+    private int tileCount;                                       // Number of tiles that have ever been allocated
+    private LinkedList<Integer> freeTiles;                       // Released tiles that can be reused
+    private int generation;                                      // ResultStore generation that the bubble numbers refer to
+
+    public BubbleAtlas() {
+        this.segments = new ArrayList<MappedByteBuffer>();
+        this.tiles = new HashMap<Integer, HashMap<Integer, Integer>>();
+        this.freeTiles = new LinkedList<Integer>();
+        this.generation = -1;
+    }
+
+    /**
+     * Stores a crop of a bubble. Replaces the previous crop of the same bubble.
+     * @param generation ResultStore generation that the bubble number refers to
+     * @param image Aligned sheet image
+     * @param x Left edge of the cropped square in the image
+     * @param y Top edge of the cropped square in the image
+     * @param size Width and height of the cropped square. It is scaled to TILE_SIZE x TILE_SIZE.
+     */
+    public void store(int generation, int slot, int bubble, BufferedImage image, int x, int y, int size) {
+        byte[] pixels = toTile(image, x, y, size);
+
+        synchronized (this) {
+            if (generation < this.generation) {
+                // Stored by a worker of a cancelled analysis that measured the previous layout
+                return;
+            }
+            if (generation > this.generation) {
+                // Layout has changed. Bubble numbers of the old crops are meaningless.
+                clearAll();
+                this.generation = generation;
+            }
+
+            HashMap<Integer, Integer> sheetTiles = tiles.get(slot);
+            if (sheetTiles == null) {
+                sheetTiles = new HashMap<Integer, Integer>();
+                tiles.put(slot, sheetTiles);
+            }
+
+            Integer tile = sheetTiles.get(bubble);
+            if (tile == null) {
+                tile = allocate();
+                if (tile < 0) {
+                    return;
+                }
+                sheetTiles.put(bubble, tile);
+            }
+
+            // Written under the lock, so that the tile cannot be released and given to another bubble in the middle of the write
+            ByteBuffer segment = segments.get(tile / TILES_PER_SEGMENT).duplicate();
+            segment.position((tile % TILES_PER_SEGMENT) * TILE_BYTES);
+            segment.put(pixels);
+        }
+    }
+
+    /**
+     * Returns the crop of a bubble.
+     * @param generation ResultStore generation that the bubble number refers to
+     * @return TILE_SIZE x TILE_SIZE grayscale image, or null if the bubble has not been stored
+     */
+    public BufferedImage getCrop(int generation, int slot, int bubble) {
+        BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+
+        synchronized (this) {
+            if (generation != this.generation) {
+                return null;
+            }
+
+            HashMap<Integer, Integer> sheetTiles = tiles.get(slot);
+            Integer tile = sheetTiles == null ? null : sheetTiles.get(bubble);
+            if (tile == null) {
+                return null;
+            }
+
+            // Read under the lock, so that the tile cannot be released and overwritten by another bubble in the middle of the read
+            ByteBuffer segment = segments.get(tile / TILES_PER_SEGMENT).duplicate();
+            segment.position((tile % TILES_PER_SEGMENT) * TILE_BYTES);
+            segment.get(((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+        }
+
+        return image;
+    }
+
+    /**
+     * Removes all crops of a sheet, e.g. when the sheet is removed or re-analyzed.
+     */
+    synchronized public void release(int slot) {
+        HashMap<Integer, Integer> sheetTiles = tiles.remove(slot);
+        if (sheetTiles != null) {
+            freeTiles.addAll(sheetTiles.values());
+        }
+    }
+
+    /**
+     * Removes the crops of a range of bubbles of a sheet, e.g. when a question group is measured again.
+     */
+    synchronized public void release(int slot, int firstBubble, int count) {
+        HashMap<Integer, Integer> sheetTiles = tiles.get(slot);
+        if (sheetTiles == null) {
+            return;
+        }
+
+        for (int bubble = firstBubble; bubble < firstBubble + count; bubble++) {
+            Integer tile = sheetTiles.remove(bubble);
+            if (tile != null) {
+                freeTiles.add(tile);
+            }
+        }
+    }
+
+    /**
+     * Removes all crops and deletes the file. Crops are not stored after this.
+     */
+    synchronized public void dispose() {
+        tiles.clear();
+        freeTiles.clear();
+        segments.clear();
+        tileCount = 0;
+        failed = true;
+
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                System.err.println(e);
+            }
+            randomAccessFile = null;
+        }
+
+        // The mapped segments are released by the garbage collector. The file may not be deletable until then on some platforms.
+        if (file != null && !file.delete()) {
+            System.err.println("Cannot delete " + file);
+        }
+        file = null;
+    }
+
+    /**
+     * Removes all crops. The file is kept for reuse.
+     */
+    private void clearAll() {
+        for (HashMap<Integer, Integer> sheetTiles : tiles.values()) {
+            freeTiles.addAll(sheetTiles.values());
+        }
+        tiles.clear();
+    }
+
+    /**
+     * Reserves a tile. Maps a new segment of the file if necessary.
+     * @return tile number, -1 if the file could not be mapped
+     */
+    private int allocate() {
+        if (!freeTiles.isEmpty()) {
+            return freeTiles.removeFirst();
+        }
+
+        if (tileCount >= segments.size() * TILES_PER_SEGMENT) {
+            if (failed) {
+                return -1;
+            }
+
+            try {
+                if (randomAccessFile == null) {
+                    this.file = File.createTempFile("omr-bubbles", ".atlas");
+                    this.file.deleteOnExit();
+                    this.randomAccessFile = new RandomAccessFile(file, "rw");
+                }
+
+                long offset = (long) segments.size() * TILES_PER_SEGMENT * TILE_BYTES;
+                segments.add(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, (long) TILES_PER_SEGMENT * TILE_BYTES));
+            } catch (IOException e) {
+                System.err.println("Cannot create bubble atlas: " + e);
+                this.failed = true;
+                return -1;
+            }
+        }
+
+        return tileCount++;
+    }
+
+    /**
+     * Scales a square region of an image to a tile and converts it to grayscale bytes. Areas outside the image are white.
+     */
+    private static byte[] toTile(BufferedImage image, int x, int y, int size) {
+        BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = tile.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.scale((double) TILE_SIZE / size, (double) TILE_SIZE / size);
+
+        // Only draw the part that is inside the image
+        int left = Math.max(x, 0);
+        int top = Math.max(y, 0);
+        int right = Math.min(x + size, image.getWidth());
+        int bottom = Math.min(y + size, image.getHeight());
+        if (right > left && bottom > top) {
+            g.drawImage(image.getSubimage(left, top, right - left, bottom - top), left - x, top - y, null);
+        }
+        g.dispose();
+
+        return ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+    }
+}
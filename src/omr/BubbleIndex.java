@@ -0,0 +1,177 @@
+package omr;
+
+import java.util.ArrayList;
+
+/**
+ * Index of all analyzed bubbles of a project, bucketed by brightness. When the global thresholds move,
+ * only the bubbles whose brightness lies between the old and the new threshold can change, so only those
+ * buckets need to be reclassified. This makes it possible to update answers continuously while a threshold is being dragged.
+ * <p>
+ * Bubbles are stored as (slot, bubble) pairs of the ResultStore, encoded as slot * bubbleCount + bubble and sorted by brightness.
+ * The index is built assuming that the current choices of the indexed sheets were calculated with the given thresholds.
+ * It becomes stale when the layout of the result store changes or any sheet is measured again. Sheets that are removed or
+ * whose choices are invalidated after the index was built are skipped.
+ *
+ * @author Tapio Auvinen
+ */
+public class BubbleIndex {
+
+    private ResultStore results;
+    private int generation;           // Generation of the result store layout when the index was built
+    private int brightnessStamp;      // Brightness stamp of the result store when the index was built
+    private int bubbleCount;          // Bubbles per sheet
+    private Sheet[] sheets;           // [slot] Indexed sheets
+    private int[] levelStarts;        // [brightness] Index of the first entry of each brightness level. levelStarts[256] == entries.length
+    private int[] entries;            // slot * bubbleCount + bubble, sorted by brightness
+
+    private int blackThreshold;       // Thresholds that the current choices are based on
+    private int whiteThreshold;
+
+    /**
+     * Builds an index of the sheets whose choices have been calculated.
+     * @param answerSheets Sheets to index
+     * @param blackThreshold Black threshold that was used to calculate the current choices
+     * @param whiteThreshold White threshold that was used to calculate the current choices
+     */
+    public BubbleIndex(SheetsContainer answerSheets, int blackThreshold, int whiteThreshold) {
+        this.results = answerSheets.getResultStore();
+        this.generation = results.getGeneration();
+        this.brightnessStamp = results.getBrightnessStamp();
+        this.bubbleCount = results.getBubbleCount();
+        this.blackThreshold = blackThreshold;
+        this.whiteThreshold = whiteThreshold;
+
+        // Collect analyzed sheets
+        ArrayList<Sheet> indexed = new ArrayList<Sheet>();
+        int slotCount = 0;
+        for (Sheet sheet : answerSheets) {
+            int slot = sheet.getSlot();
+            if (slot >= 0 && results.isChoicesValid(slot)) {
+                indexed.add(sheet);
+                slotCount = Math.max(slotCount, slot + 1);
+            }
+        }
+
+        this.sheets = new Sheet[slotCount];
+        for (Sheet sheet : indexed) {
+            sheets[sheet.getSlot()] = sheet;
+        }
+
+        // Counting sort by brightness
+        int[] counts = new int[256];
+        for (Sheet sheet : indexed) {
+            int slot = sheet.getSlot();
+            for (int bubble = 0; bubble < bubbleCount; bubble++) {
+                counts[results.getBrightness(slot, bubble)]++;
+            }
+        }
+
+        this.levelStarts = new int[257];
+        for (int level = 0; level < 256; level++) {
+            levelStarts[level + 1] = levelStarts[level] + counts[level];
+        }
+
+        this.entries = new int[levelStarts[256]];
+        int[] next = new int[256];
+        System.arraycopy(levelStarts, 0, next, 0, 256);
+        for (Sheet sheet : indexed) {
+            int slot = sheet.getSlot();
+            int base = slot * bubbleCount;
+            for (int bubble = 0; bubble < bubbleCount; bubble++) {
+                entries[next[results.getBrightness(slot, bubble)]++] = base + bubble;
+            }
+        }
+    }
+
+    /**
+     * Tells whether the index can be used with the given result store. Returns false if the layout has changed
+     * or brightnesses have been measured again since the index was built.
+     */
+    public boolean isCurrent(ResultStore store) {
+        return store == results && generation == store.getGeneration() && brightnessStamp == store.getBrightnessStamp();
+    }
+
+    /**
+     * Checks whether the sheets can be indexed, i.e. whether all (slot, bubble) pairs fit in an int.
+     */
+    public static boolean canIndex(SheetsContainer answerSheets) {
+        int slotCount = 0;
+        for (Sheet sheet : answerSheets) {
+            slotCount = Math.max(slotCount, sheet.getSlot() + 1);
+        }
+
+        return (long)slotCount * answerSheets.getResultStore().getBubbleCount() < Integer.MAX_VALUE;
+    }
+
+    public int getBlackThreshold() {
+        return blackThreshold;
+    }
+
+    public int getWhiteThreshold() {
+        return whiteThreshold;
+    }
+
+    /**
+     * Reclassifies the bubbles whose brightness is between the old and the new thresholds.
+     * Only choices are updated. The caller should call Sheet.answersChanged() for each returned sheet.
+     * @return sheets whose choices changed
+     */
+    public ArrayList<Sheet> reclassify(int newBlackThreshold, int newWhiteThreshold) {
+        ArrayList<Sheet> changed = new ArrayList<Sheet>();
+        boolean[] touched = new boolean[sheets.length];
+
+        // Only the levels between the old and the new value of either threshold change class
+        reclassify(Math.min(blackThreshold, newBlackThreshold), Math.max(blackThreshold, newBlackThreshold),
+                newBlackThreshold, newWhiteThreshold, touched, changed);
+        reclassify(Math.min(whiteThreshold, newWhiteThreshold), Math.max(whiteThreshold, newWhiteThreshold),
+                newBlackThreshold, newWhiteThreshold, touched, changed);
+
+        this.blackThreshold = newBlackThreshold;
+        this.whiteThreshold = newWhiteThreshold;
+
+        return changed;
+    }
+
+    /**
+     * Reclassifies the brightness levels [firstLevel, lastLevel).
+     */
+    private void reclassify(int firstLevel, int lastLevel, int black, int white, boolean[] touched, ArrayList<Sheet> changed) {
+        firstLevel = Math.max(firstLevel, 0);
+        lastLevel = Math.min(lastLevel, 256);
+        if (firstLevel >= lastLevel) {
+            return;
+        }
+
+        for (int level = firstLevel; level < lastLevel; level++) {
+            int choice;
+            if (level < black) {
+                choice = -1;
+            } else if (level >= white) {
+                choice = 1;
+            } else {
+                choice = 0;
+            }
+
+            for (int i = levelStarts[level]; i < levelStarts[level + 1]; i++) {
+                int slot = entries[i] / bubbleCount;
+                int bubble = entries[i] % bubbleCount;
+
+                // Skip sheets that have been removed or invalidated since the index was built
+                Sheet sheet = sheets[slot];
+                if (sheet.getSlot() != slot || !results.isChoicesValid(slot)) {
+                    continue;
+                }
+
+                if (results.getChoice(slot, bubble) == choice) {
+                    continue;
+                }
+
+                results.setChoice(slot, bubble, choice);
+                if (!touched[slot]) {
+                    touched[slot] = true;
+                    changed.add(sheet);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package omr;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Scratch images and image readers that are reused from one sheet to the next. Sheet images are tens of megabytes,
+ * so allocating new ones for every sheet churns the old generation when thousands of sheets are analyzed in a row.
+ * <p>
+ * Images are pooled by size and type. Sheets of a batch usually have the same size, so after the first sheet
+ * the pool serves every request. Readers are kept per image format.
+ * <p>
+ * Not thread-safe. Each analysis worker owns a pool of its own.
+ *
+ * @author Tapio Auvinen
+ */
+public class BufferPool {
+    private static final int MAX_FREE_PER_SIZE = 2;   // Free images to keep of each size and type
+
+    private HashMap<Long, LinkedList<BufferedImage>> freeImages;
+    private ArrayList<ImageReader> readers;
+
+    public BufferPool() {
+        this.freeImages = new HashMap<Long, LinkedList<BufferedImage>>();
+        this.readers = new ArrayList<ImageReader>();
+    }
+
+    /**
+     * Returns an image of the given size and type. The contents of a reused image are undefined.
+     * @param type BufferedImage type, e.g. BufferedImage.TYPE_INT_RGB. TYPE_CUSTOM is not supported.
+     */
+    public BufferedImage acquire(int width, int height, int type) {
+        LinkedList<BufferedImage> images = freeImages.get(key(width, height, type));
+        if (images != null && !images.isEmpty()) {
+            return images.removeFirst();
+        }
+
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Returns an image to the pool. The caller must not use the image afterwards. Does nothing if image is null.
+     */
+    public void release(BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM) {
+            return;
+        }
+
+        Long key = key(image.getWidth(), image.getHeight(), image.getType());
+        LinkedList<BufferedImage> images = freeImages.get(key);
+        if (images == null) {
+            images = new LinkedList<BufferedImage>();
+            freeImages.put(key, images);
+        }
+
+        // Same image may be released twice, e.g. if it was passed through without copying
+        for (BufferedImage free : images) {
+            if (free == image) {
+                return;
+            }
+        }
+
+        if (images.size() < MAX_FREE_PER_SIZE) {
+            images.add(image);
+        }
+    }
+
+    /**
+     * Returns a reader that can decode the given stream. The reader that was used for the previous image is tried first.
+     * @return null if the format is not supported
+     */
+    public ImageReader getReader(ImageInputStream input) throws IOException {
+        for (ImageReader reader : readers) {
+            if (reader.getOriginatingProvider().canDecodeInput(input)) {
+                return reader;
+            }
+        }
+
+        // Same order as ImageIO.read()
+        Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+        while (providers.hasNext()) {
+            ImageReaderSpi provider = providers.next();
+            if (provider.canDecodeInput(input)) {
+                ImageReader reader = provider.createReaderInstance();
+                readers.add(0, reader);
+                return reader;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Releases the resources of the pooled readers and drops the pooled images.
+     */
+    public void dispose() {
+        for (ImageReader reader : readers) {
+            reader.dispose();
+        }
+        readers.clear();
+        freeImages.clear();
+    }
+
+    private static Long key(int width, int height, int type) {
+        return ((long) type << 48) | ((long) width << 24) | height;
+    }
+}
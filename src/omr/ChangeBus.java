@@ -0,0 +1,115 @@
+package omr;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Delivers model changes to GUI models. Changes posted from any thread are merged into one pending change set,
+ * which is delivered to the listeners on the event dispatch thread at most once per frame. Between beginBatch() and
+ * endBatch(), changes are only collected, so a bulk operation produces a single change set when it ends.
+ *
+ * @param <E> Type of the change sets
+ */
+public class ChangeBus<E extends ChangeSet<E>> {
+
+    private static final int FRAME_MILLIS = 33;    // Minimum interval between deliveries
+
+    private CopyOnWriteArrayList<ModelListener<E>> listeners;
+
+    private E pending;                 // Changes that have not been delivered yet
+    private int batchDepth;            // Number of unfinished beginBatch() calls
+    private boolean flushScheduled;
+    private Timer timer;
+
+    public ChangeBus() {
+        this.listeners = new CopyOnWriteArrayList<ModelListener<E>>();
+        this.batchDepth = 0;
+        this.flushScheduled = false;
+
+        this.timer = new Timer(FRAME_MILLIS, new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                flush();
+            }
+        });
+        this.timer.setRepeats(false);
+    }
+
+    public void addListener(ModelListener<E> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ModelListener<E> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Posts a change. The change set must not be modified after posting.
+     */
+    synchronized public void post(E change) {
+        if (pending == null) {
+            pending = change;
+        } else {
+            pending.merge(change);
+        }
+
+        scheduleFlush();
+    }
+
+    /**
+     * Starts collecting changes without delivering them. Batches can be nested.
+     */
+    synchronized public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * Ends a batch. The changes collected during the outermost batch are delivered in the next frame.
+     */
+    synchronized public void endBatch() {
+        if (batchDepth > 0) {
+            batchDepth--;
+        }
+
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (batchDepth > 0 || flushScheduled || pending == null) {
+            return;
+        }
+
+        flushScheduled = true;
+        timer.restart();
+    }
+
+    /**
+     * Delivers the pending changes. Called on the event dispatch thread by the timer.
+     */
+    private void flush() {
+        E change;
+        synchronized (this) {
+            flushScheduled = false;
+
+            // Wait for the batch to end
+            if (batchDepth > 0) {
+                return;
+            }
+
+            change = pending;
+            pending = null;
+        }
+
+        if (change == null) {
+            return;
+        }
+
+        assert SwingUtilities.isEventDispatchThread();
+        for (ModelListener<E> listener : listeners) {
+            listener.modelChanged(change);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package omr;
+
+/**
+ * A set of model changes that can be combined with later changes of the same kind. See ChangeBus.
+ */
+public interface ChangeSet<E extends ChangeSet<E>> {
+
+    /**
+     * Adds the changes in other to this change set.
+     */
+    void merge(E other);
+}
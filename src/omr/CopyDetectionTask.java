@@ -0,0 +1,40 @@
+package omr;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import omr.CopyDetector.SimilarPair;
+
+/**
+ * A background task that finds pairs of sheets with suspiciously similar answers.
+ */
+public class CopyDetectionTask extends Task {
+
+    private Project project;
+    private List<SimilarPair> result;
+
+    public CopyDetectionTask(Project project) {
+        this.project = project;
+        this.result = new LinkedList<SimilarPair>();
+    }
+
+    @Override
+    protected void execute() {
+        this.setStatusText("Comparing answers");
+
+        try {
+            this.result = new CopyDetector(project).findSimilarPairs();
+        } catch (InterruptedException e) {
+            cancel();
+        }
+
+        this.setCompletedOperationsCount(1);
+    }
+
+    /**
+     * Returns the suspicious pairs, most suspicious first. Empty until the task has finished.
+     */
+    public List<SimilarPair> getResult() {
+        return result;
+    }
+}
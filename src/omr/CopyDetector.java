@@ -0,0 +1,401 @@
+package omr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Finds pairs of sheets with suspiciously similar answers. Sharing the same wrong answers is much stronger evidence
+ * of copying than sharing correct ones, so pairs are ranked by the number of identical wrong answers.
+ * <p>
+ * The wrong answers of each sheet are encoded as a bit vector with one bit per (question, alternative). Similarity of two
+ * sheets is calculated with AND and popcount over the vectors. Small cohorts are compared exhaustively. For large cohorts,
+ * candidate pairs are found with locality-sensitive hashing: MinHash signatures of the wrong answer sets are split into bands,
+ * and only sheets that share a band are compared. Comparisons are done in parallel.
+ * <p>
+ * A wrong answer that most of the cohort shares, e.g. a popular distractor or a mistake in the answer key, would put most sheets
+ * into the same buckets. Such answers are left out of the signatures, and buckets that are still too large are skipped, so that the
+ * number of candidate pairs stays roughly linear in the number of sheets. Questions without an answer key are ignored.
+ *
+ * @author Tapio Auvinen
+ */
+public class CopyDetector {
+
+    private static final int EXHAUSTIVE_LIMIT = OMRProperties.getInt("copy-detection-exhaustive-limit", 2000);  // Max sheets to compare pairwise
+    private static final int MIN_SHARED_WRONG = OMRProperties.getInt("copy-detection-min-shared-wrong", 3);
+    private static final double MIN_SIMILARITY = OMRProperties.getDouble("copy-detection-min-similarity", 0.5);
+    private static final double COMMON_FRACTION = OMRProperties.getDouble("copy-detection-common-fraction", 0.2);  // Wrong answers of more sheets are not hashed
+    private static final int MAX_BUCKET_SIZE = OMRProperties.getInt("copy-detection-max-bucket", 64);
+
+    private static final int BANDS = 16;              // Number of LSH bands
+    private static final int ROWS = 2;                // MinHash values per band
+    private static final int HASHES = BANDS * ROWS;
+    private static final long PRIME = 2147483647L;    // 2^31 - 1
+    private static final int CHUNK_SIZE = 4096;       // Pairs per parallel job
+
+    /**
+     * A pair of sheets with similar answers.
+     */
+    public static class SimilarPair {
+        private Sheet first;
+        private Sheet second;
+        private int sharedWrong;
+        private int identicalAnswers;
+        private double similarity;
+
+        SimilarPair(Sheet first, Sheet second, int sharedWrong, int identicalAnswers, double similarity) {
+            this.first = first;
+            this.second = second;
+            this.sharedWrong = sharedWrong;
+            this.identicalAnswers = identicalAnswers;
+            this.similarity = similarity;
+        }
+
+        public Sheet getFirst() {
+            return first;
+        }
+
+        public Sheet getSecond() {
+            return second;
+        }
+
+        /**
+         * Returns the number of questions where both sheets selected the same wrong alternative.
+         */
+        public int getSharedWrongAnswers() {
+            return sharedWrong;
+        }
+
+        /**
+         * Returns the number of questions where both sheets selected exactly the same alternatives, excluding blanks.
+         */
+        public int getIdenticalAnswers() {
+            return identicalAnswers;
+        }
+
+        /**
+         * Returns the Jaccard similarity of the wrong answers [0, 1].
+         */
+        public double getSimilarity() {
+            return similarity;
+        }
+    }
+
+    private Project project;
+
+    private ArrayList<Sheet> sheets;
+    private long[][] wrong;            // [sheet][word] Wrong answers, one bit per (question, alternative)
+    private int[] wrongCounts;         // [sheet] Number of set bits in wrong
+    private long[][] selections;       // [sheet][question] Selected alternatives
+
+    public CopyDetector(Project project) {
+        this.project = project;
+    }
+
+    /**
+     * Finds suspicious pairs among all sheets in the project.
+     * @return pairs ordered from the most to the least suspicious
+     */
+    public List<SimilarPair> findSimilarPairs() throws InterruptedException {
+        encode();
+
+        // Only sheets with enough wrong answers can produce a suspicious pair
+        ArrayList<Integer> candidates = new ArrayList<Integer>();
+        for (int i = 0; i < sheets.size(); i++) {
+            if (wrongCounts[i] >= MIN_SHARED_WRONG) {
+                candidates.add(i);
+            }
+        }
+
+        long[] pairs;
+        if (candidates.size() <= EXHAUSTIVE_LIMIT) {
+            pairs = allPairs(candidates);
+        } else {
+            pairs = candidatePairs(candidates);
+        }
+
+        List<SimilarPair> result = compare(pairs);
+
+        // Most shared wrong answers first
+        Collections.sort(result, new Comparator<SimilarPair>() {
+            public int compare(SimilarPair a, SimilarPair b) {
+                if (a.sharedWrong != b.sharedWrong) {
+                    return b.sharedWrong - a.sharedWrong;
+                }
+                if (a.similarity != b.similarity) {
+                    return Double.compare(b.similarity, a.similarity);
+                }
+                return b.identicalAnswers - a.identicalAnswers;
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Encodes the wrong answers of each sheet as a bit vector.
+     */
+    private void encode() {
+        ScoreMatrix scores = project.getScoreMatrix();
+        long[] keys = scores.getAnswerKeyMasks();
+
+        // Bit offset of the first alternative of each question
+        int[] offsets = new int[keys.length];
+        int bits = 0;
+        for (int column = 0; column < keys.length; column++) {
+            offsets[column] = bits;
+            bits += Math.min(scores.getColumnGroup(column).getAlternativesCount(), QuestionGroup.MAX_MASK_ALTERNATIVES);
+        }
+        int words = (bits + 63) / 64;
+
+        this.sheets = new ArrayList<Sheet>(project.getAnswerSheets());
+        this.wrong = new long[sheets.size()][];
+        this.wrongCounts = new int[sheets.size()];
+        this.selections = new long[sheets.size()][];
+
+        for (int i = 0; i < sheets.size(); i++) {
+            long[] selection = scores.getSelections(sheets.get(i));
+            if (selection == null || selection.length != keys.length) {
+                selection = new long[keys.length];
+            }
+
+            long[] vector = new long[words];
+            for (int column = 0; column < keys.length; column++) {
+                if (keys[column] == 0) {
+                    // Every answer would be wrong
+                    continue;
+                }
+
+                long mask = selection[column] & ~keys[column];
+                int offset = offsets[column];
+
+                // Copy the bits of the question to the vector, possibly across a word boundary
+                vector[offset >> 6] |= mask << (offset & 63);
+                if ((offset & 63) != 0 && (offset >> 6) + 1 < words) {
+                    vector[(offset >> 6) + 1] |= mask >>> (64 - (offset & 63));
+                }
+            }
+
+            int count = 0;
+            for (long word : vector) {
+                count += Long.bitCount(word);
+            }
+
+            this.wrong[i] = vector;
+            this.wrongCounts[i] = count;
+            this.selections[i] = selection;
+        }
+    }
+
+    /**
+     * Returns all pairs of the given sheets.
+     */
+    private long[] allPairs(ArrayList<Integer> candidates) {
+        int n = candidates.size();
+        long[] pairs = new long[n * (n - 1) / 2];
+
+        int count = 0;
+        for (int a = 0; a < n; a++) {
+            for (int b = a + 1; b < n; b++) {
+                pairs[count++] = pair(candidates.get(a), candidates.get(b));
+            }
+        }
+
+        return pairs;
+    }
+
+    /**
+     * Returns the pairs of sheets that share at least one LSH band. Buckets larger than MAX_BUCKET_SIZE are skipped.
+     */
+    private long[] candidatePairs(ArrayList<Integer> candidates) {
+        // Wrong answers that are too common to tell anything about copying
+        int words = wrong.length > 0 ? wrong[0].length : 0;
+        int[] bitCounts = new int[words * 64];
+        for (int sheet : candidates) {
+            long[] vector = wrong[sheet];
+            for (int word = 0; word < words; word++) {
+                for (long bits = vector[word]; bits != 0; bits &= bits - 1) {
+                    bitCounts[word * 64 + Long.numberOfTrailingZeros(bits)]++;
+                }
+            }
+        }
+
+        long[] rare = new long[words];
+        for (int bit = 0; bit < bitCounts.length; bit++) {
+            if (bitCounts[bit] > 0 && bitCounts[bit] <= COMMON_FRACTION * candidates.size()) {
+                rare[bit >> 6] |= 1L << (bit & 63);
+            }
+        }
+
+        // Hash functions h(x) = (a * x + b) mod PRIME. Fixed seed so that results are repeatable.
+        Random random = new Random(1);
+        long[] a = new long[HASHES];
+        long[] b = new long[HASHES];
+        for (int h = 0; h < HASHES; h++) {
+            a[h] = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+            b[h] = random.nextInt(Integer.MAX_VALUE);
+        }
+
+        ArrayList<HashMap<Long, ArrayList<Integer>>> buckets = new ArrayList<HashMap<Long, ArrayList<Integer>>>();
+        for (int band = 0; band < BANDS; band++) {
+            buckets.add(new HashMap<Long, ArrayList<Integer>>());
+        }
+
+        // MinHash signatures of the rare wrong answers
+        long[] signature = new long[HASHES];
+        for (int sheet : candidates) {
+            for (int h = 0; h < HASHES; h++) {
+                signature[h] = Long.MAX_VALUE;
+            }
+
+            boolean empty = true;
+            long[] vector = wrong[sheet];
+            for (int word = 0; word < vector.length; word++) {
+                long bits = vector[word] & rare[word];
+                while (bits != 0) {
+                    empty = false;
+                    long x = word * 64 + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+
+                    for (int h = 0; h < HASHES; h++) {
+                        long value = (a[h] * x + b[h]) % PRIME;
+                        if (value < signature[h]) {
+                            signature[h] = value;
+                        }
+                    }
+                }
+            }
+
+            if (empty) {
+                // All wrong answers are common. The signature would match every other such sheet.
+                continue;
+            }
+
+            for (int band = 0; band < BANDS; band++) {
+                long key = signature[band * ROWS];
+                for (int row = 1; row < ROWS; row++) {
+                    key = key * 31 + signature[band * ROWS + row];
+                }
+
+                ArrayList<Integer> bucket = buckets.get(band).get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<Integer>();
+                    buckets.get(band).put(key, bucket);
+                }
+                bucket.add(sheet);
+            }
+        }
+
+        // Sheets in the same bucket are candidates
+        long[] pairs = new long[1024];
+        int pairCount = 0;
+        for (HashMap<Long, ArrayList<Integer>> band : buckets) {
+            for (ArrayList<Integer> bucket : band.values()) {
+                if (bucket.size() > MAX_BUCKET_SIZE) {
+                    continue;
+                }
+
+                for (int i = 0; i < bucket.size(); i++) {
+                    for (int j = i + 1; j < bucket.size(); j++) {
+                        if (pairCount == pairs.length) {
+                            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                        }
+                        pairs[pairCount++] = pair(bucket.get(i), bucket.get(j));
+                    }
+                }
+            }
+        }
+
+        // The same pair may share several bands
+        Arrays.sort(pairs, 0, pairCount);
+        int count = 0;
+        for (int i = 0; i < pairCount; i++) {
+            if (count == 0 || pairs[i] != pairs[count - 1]) {
+                pairs[count++] = pairs[i];
+            }
+        }
+
+        return Arrays.copyOf(pairs, count);
+    }
+
+    private static long pair(int a, int b) {
+        return ((long)Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    /**
+     * Compares the given pairs in parallel and returns the suspicious ones.
+     */
+    private List<SimilarPair> compare(final long[] pairs) throws InterruptedException {
+        LinkedList<Future<ArrayList<SimilarPair>>> jobs = new LinkedList<Future<ArrayList<SimilarPair>>>();
+        for (int start = 0; start < pairs.length; start += CHUNK_SIZE) {
+            final int first = start;
+            final int last = Math.min(start + CHUNK_SIZE, pairs.length);
+            jobs.add(ForkJoinPool.commonPool().submit(new Callable<ArrayList<SimilarPair>>() {
+                public ArrayList<SimilarPair> call() {
+                    ArrayList<SimilarPair> found = new ArrayList<SimilarPair>();
+                    for (int i = first; i < last; i++) {
+                        SimilarPair pair = compare((int)(pairs[i] >>> 32), (int)pairs[i]);
+                        if (pair != null) {
+                            found.add(pair);
+                        }
+                    }
+                    return found;
+                }
+            }));
+        }
+
+        ArrayList<SimilarPair> result = new ArrayList<SimilarPair>();
+        for (Future<ArrayList<SimilarPair>> job : jobs) {
+            try {
+                result.addAll(job.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Compares two sheets.
+     * @return null if the pair is not suspicious
+     */
+    private SimilarPair compare(int a, int b) {
+        long[] wrongA = wrong[a];
+        long[] wrongB = wrong[b];
+
+        int shared = 0;
+        for (int word = 0; word < wrongA.length; word++) {
+            shared += Long.bitCount(wrongA[word] & wrongB[word]);
+        }
+
+        if (shared < MIN_SHARED_WRONG) {
+            return null;
+        }
+
+        double similarity = (double)shared / (wrongCounts[a] + wrongCounts[b] - shared);
+        if (similarity < MIN_SIMILARITY) {
+            return null;
+        }
+
+        int identical = 0;
+        long[] selectionA = selections[a];
+        long[] selectionB = selections[b];
+        for (int question = 0; question < selectionA.length; question++) {
+            if (selectionA[question] != 0 && selectionA[question] == selectionB[question]) {
+                identical++;
+            }
+        }
+
+        return new SimilarPair(sheets.get(a), sheets.get(b), shared, identical, similarity);
+    }
+}
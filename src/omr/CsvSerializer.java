@@ -80,7 +80,7 @@ public class CsvSerializer {
     
     public void saveResults(Project project, File file) throws IOException {
     	SheetStructure structure = project.getSheetStructure();
-    	GradingScheme grading = project.getGradingScheme();
+    	ScoreMatrix scores = project.getScoreMatrix();
         PrintStream fout = null;
         
         try {
@@ -126,14 +126,14 @@ public class CsvSerializer {
                 	
                 	int questionsCount = group.getQuestionsCount();
                     for (int i = 0; i < questionsCount; i++) {    
-                        double score = grading.getScore(sheet, group, i);
+                        double score = scores.getScore(sheet, group, i);
                         fout.print(",");
                         fout.print(score);
                     }
                 }
 
                 // Total score in the last column
-                double totalScore = grading.getScore(sheet, project.getSheetStructure());
+                double totalScore = scores.getTotalScore(sheet);
                 fout.print(",");
                 fout.print(totalScore);
 
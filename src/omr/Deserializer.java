@@ -159,7 +159,7 @@ public class Deserializer {
         
         for(int i = 0; i < sheetNodes.getLength(); i++) {
             Element sheetElement = (Element)sheetNodes.item(i);
-            Sheet sheet = sheets.importSheet(sheetElement.getAttribute("id"), sheetElement.getAttribute("src"), parseIntAttribute(sheetElement, "page"));
+            Sheet sheet = sheets.importSheet(sheetElement.getAttribute("id"), sheetElement.getAttribute("src"), sheetElement.getAttribute("entry"), parseIntAttribute(sheetElement, "page"));
             
             String rotation = sheetElement.getAttribute("rotation");
             if (rotation.length() > 0) {
@@ -84,14 +84,50 @@ public class GradingScheme {
      * @param question Local question number (row number)
      */
     public double getScore(Sheet sheet, QuestionGroup group, int question) {
-        int alternativesSelected = 0;
-        boolean correctAnswerSelected = false;
-        boolean incorrectAnswerSelected = false;
-        
         if (group.getOrientation() != Orientation.VERTICAL && group.getOrientation() != Orientation.HORIZONTAL) {
         	return 0.0;
         }
         
+        // Groups with very many alternatives don't fit in a bit mask
+        if (group.getAlternativesCount() > QuestionGroup.MAX_MASK_ALTERNATIVES) {
+            return getScoreByAlternatives(sheet, group, question);
+        }
+        
+        return getScore(sheet.getSelectionMask(group, question), group.getAnswerKeyMask(question));
+    }
+    
+    /**
+     * Returns the score from a single question, given the selected and correct alternatives as bit masks.
+     * See Sheet.getSelectionMask() and QuestionGroup.getAnswerKeyMask().
+     * @param selected Bit i is set if alternative i is selected
+     * @param correct Bit i is set if alternative i is a correct answer
+     */
+    public double getScore(long selected, long correct) {
+        int alternativesSelected = Long.bitCount(selected);
+        
+        // Calculate score
+        double score;
+        if (alternativesSelected > 1) {
+            score = multipleSelectedScore;
+        } else if ((selected & correct) != 0) {
+            score = correctScore;
+        } else if (alternativesSelected == 1) {
+            score = incorrectScore;
+        } else {
+            score = defaultScore;
+        }
+        
+        return clamp(score);
+    }
+    
+    /**
+     * Returns the score from a single question by examining alternatives one by one.
+     */
+    private double getScoreByAlternatives(Sheet sheet, QuestionGroup group, int question) {
+        int alternativesSelected = 0;
+        boolean correctAnswerSelected = false;
+        boolean incorrectAnswerSelected = false;
+        
         // Iterate through alternatives
         for (int alternative = 0; alternative < group.getAlternativesCount(); alternative++) {
             boolean selected;
@@ -131,11 +167,17 @@ public class GradingScheme {
             score = defaultScore;
         }
         
-        // Check bounds 
+        return clamp(score);
+    }
+    
+    /**
+     * Checks bounds.
+     */
+    private double clamp(double score) {
         if (score < this.minScore) {
-            score = this.minScore;
+            return this.minScore;
         } else if (score > this.maxScore) {
-            score = this.maxScore;
+            return this.maxScore;
         }
         
         return score;
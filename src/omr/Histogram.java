@@ -4,6 +4,9 @@ import java.awt.image.BufferedImage;
 
 /**
  * Histogram of bubble brighnesses.
+ * <p>
+ * increase() is not synchronized. Each analysis worker should fill a private histogram and combine it into a shared
+ * one with merge(), which is thread-safe, as are subtract() and reset().
  * 
  * @author Tapio Auvinen
  */
@@ -38,7 +41,7 @@ public class Histogram {
     /**
      * Returns the histogram to the empty state.
      */
-    public void reset() {
+    synchronized public void reset() {
         // Reset histogram
         for (int i = 0; i < 256; i++) {
             this.histogram[i] = 0;
@@ -79,6 +82,76 @@ public class Histogram {
         }
     }
     
+    /**
+     * Adds the occurrences of another histogram to this one. Example bubbles are copied to the brightness levels that don't have an example yet.
+     * @param other Histogram to add. It should not be modified concurrently.
+     */
+    synchronized public void merge(Histogram other) {
+        int[] otherHistogram = other.histogram;
+        
+        for (int i = 0; i < 256; i++) {
+            this.histogram[i] += otherHistogram[i];
+            
+            if (this.examples != null && this.examples[i] == null && other.examples != null) {
+                this.examples[i] = other.examples[i];
+            }
+        }
+        
+        updateStatistics();
+    }
+    
+    /**
+     * Removes the occurrences of another histogram from this one, e.g. when a sheet is removed from the project.
+     * Example bubbles are not removed. 
+     * @param other Histogram that has previously been merged into this one
+     */
+    synchronized public void subtract(Histogram other) {
+        int[] otherHistogram = other.histogram;
+        
+        for (int i = 0; i < 256; i++) {
+            this.histogram[i] -= otherHistogram[i];
+            
+            if (this.histogram[i] < 0) {
+                this.histogram[i] = 0;
+            }
+        }
+        
+        updateStatistics();
+    }
+    
+    /**
+     * Recalculates min, max, mode and sum from the histogram array.
+     */
+    private void updateStatistics() {
+        this.minIndex = 256;
+        this.maxIndex = 0;
+        this.maxValue = 0;
+        this.mode = 0;
+        this.sum = 0;
+        
+        for (int i = 0; i < 256; i++) {
+            int value = histogram[i];
+            if (value <= 0) {
+                continue;
+            }
+            
+            sum += value;
+            
+            if (i < minIndex) {
+                minIndex = i;
+            }
+            
+            if (i > maxIndex) {
+                maxIndex = i;
+            }
+            
+            if (value > maxValue) {
+                maxValue = value;
+                mode = i;
+            }
+        }
+    }
+    
     /**
      * Returns the histogram array.
      * @return int[256] where each slot contains the number of bubbles with that brightness.
@@ -100,7 +173,7 @@ public class Histogram {
      * @param index Brightness
      * @param image Bubble image
      */
-    public void setExample(int index, BufferedImage image) {
+    synchronized public void setExample(int index, BufferedImage image) {
         if (this.examples == null) {
             return;
         }
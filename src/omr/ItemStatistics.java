@@ -0,0 +1,342 @@
+package omr;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Item analysis of an exam. Statistics are accumulated as sums over sheets, so that sheets can be added and
+ * removed one by one when their answers change, and partial statistics of separate chunks of sheets can be merged.
+ * <p>
+ * Per question: difficulty (proportion of correct answers), discrimination (correlation between a correct answer and
+ * the score of the rest of the exam), point-biserial correlation (between a correct answer and the total score) and the
+ * number of times each alternative was chosen.
+ * Per exam: score distribution and reliability (KR-20 and Cronbach's alpha).
+ *
+ * @author Tapio Auvinen
+ */
+public class ItemStatistics {
+
+    private int sheetCount;
+    private double sumTotal;             // Sum of total scores
+    private double sumTotal2;            // Sum of squared total scores
+    private double sumCorrect;           // Sum of the number of correct answers per sheet
+    private double sumCorrect2;          // Sum of the squared number of correct answers per sheet
+    private TreeMap<Double, Integer> distribution;    // Total score -> number of sheets
+
+    // Per question
+    private int[] correctCount;          // Number of correct answers
+    private int[] blankCount;            // Number of sheets with no alternatives selected
+    private int[] multipleCount;         // Number of sheets with several alternatives selected
+    private int[][] alternativeCounts;   // [question][alternative] Number of times the alternative was selected
+    private double[] sumScore;           // Sum of scores
+    private double[] sumScore2;          // Sum of squared scores
+    private double[] sumScoreTotal;      // Sum of score * total score
+    private double[] sumCorrectTotal;    // Sum of total scores of the sheets that answered correctly
+    private double[] sumCorrectScore;    // Sum of scores of the sheets that answered correctly
+
+    /**
+     * Constructor
+     * @param alternatives Number of alternatives of each question
+     */
+    public ItemStatistics(int[] alternatives) {
+        int questions = alternatives.length;
+
+        this.distribution = new TreeMap<Double, Integer>();
+        this.correctCount = new int[questions];
+        this.blankCount = new int[questions];
+        this.multipleCount = new int[questions];
+        this.alternativeCounts = new int[questions][];
+        for (int question = 0; question < questions; question++) {
+            this.alternativeCounts[question] = new int[Math.min(alternatives[question], QuestionGroup.MAX_MASK_ALTERNATIVES)];
+        }
+        this.sumScore = new double[questions];
+        this.sumScore2 = new double[questions];
+        this.sumScoreTotal = new double[questions];
+        this.sumCorrectTotal = new double[questions];
+        this.sumCorrectScore = new double[questions];
+    }
+
+    /**
+     * Copy constructor
+     */
+    public ItemStatistics(ItemStatistics other) {
+        this(getAlternatives(other));
+        merge(other);
+    }
+
+    private static int[] getAlternatives(ItemStatistics statistics) {
+        int[] alternatives = new int[statistics.alternativeCounts.length];
+        for (int question = 0; question < alternatives.length; question++) {
+            alternatives[question] = statistics.alternativeCounts[question].length;
+        }
+
+        return alternatives;
+    }
+
+    /**
+     * Adds a sheet to the statistics.
+     * @param selections Selected alternatives of each question as bit masks
+     * @param keys Correct alternatives of each question as bit masks
+     * @param scores Score of each question
+     * @param total Total score
+     */
+    public void add(long[] selections, long[] keys, double[] scores, double total) {
+        accumulate(selections, keys, scores, total, 1);
+    }
+
+    /**
+     * Removes a sheet that was previously added with the same parameters.
+     */
+    public void remove(long[] selections, long[] keys, double[] scores, double total) {
+        accumulate(selections, keys, scores, total, -1);
+    }
+
+    private void accumulate(long[] selections, long[] keys, double[] scores, double total, int sign) {
+        int correctAnswers = 0;
+
+        for (int question = 0; question < scores.length; question++) {
+            long selection = selections[question];
+            int selectedCount = Long.bitCount(selection);
+            boolean correct = selectedCount == 1 && (selection & keys[question]) != 0;
+            double score = scores[question];
+
+            if (correct) {
+                correctAnswers++;
+                correctCount[question] += sign;
+                sumCorrectTotal[question] += sign * total;
+                sumCorrectScore[question] += sign * score;
+            }
+
+            if (selectedCount == 0) {
+                blankCount[question] += sign;
+            } else if (selectedCount > 1) {
+                multipleCount[question] += sign;
+            }
+
+            // Count selected alternatives
+            int[] counts = alternativeCounts[question];
+            while (selection != 0) {
+                int alternative = Long.numberOfTrailingZeros(selection);
+                if (alternative < counts.length) {
+                    counts[alternative] += sign;
+                }
+                selection &= selection - 1;
+            }
+
+            sumScore[question] += sign * score;
+            sumScore2[question] += sign * score * score;
+            sumScoreTotal[question] += sign * score * total;
+        }
+
+        sheetCount += sign;
+        sumTotal += sign * total;
+        sumTotal2 += sign * total * total;
+        sumCorrect += sign * correctAnswers;
+        sumCorrect2 += sign * correctAnswers * correctAnswers;
+
+        Integer count = distribution.get(total);
+        int newCount = (count == null ? 0 : count) + sign;
+        if (newCount > 0) {
+            distribution.put(total, newCount);
+        } else {
+            distribution.remove(total);
+        }
+    }
+
+    /**
+     * Adds the sheets of another accumulator with the same questions to this one.
+     */
+    public void merge(ItemStatistics other) {
+        sheetCount += other.sheetCount;
+        sumTotal += other.sumTotal;
+        sumTotal2 += other.sumTotal2;
+        sumCorrect += other.sumCorrect;
+        sumCorrect2 += other.sumCorrect2;
+
+        for (Map.Entry<Double, Integer> entry : other.distribution.entrySet()) {
+            Integer count = distribution.get(entry.getKey());
+            distribution.put(entry.getKey(), (count == null ? 0 : count) + entry.getValue());
+        }
+
+        for (int question = 0; question < correctCount.length; question++) {
+            correctCount[question] += other.correctCount[question];
+            blankCount[question] += other.blankCount[question];
+            multipleCount[question] += other.multipleCount[question];
+            sumScore[question] += other.sumScore[question];
+            sumScore2[question] += other.sumScore2[question];
+            sumScoreTotal[question] += other.sumScoreTotal[question];
+            sumCorrectTotal[question] += other.sumCorrectTotal[question];
+            sumCorrectScore[question] += other.sumCorrectScore[question];
+
+            for (int alternative = 0; alternative < alternativeCounts[question].length; alternative++) {
+                alternativeCounts[question][alternative] += other.alternativeCounts[question][alternative];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of questions.
+     */
+    public int getQuestionsCount() {
+        return correctCount.length;
+    }
+
+    /**
+     * Returns the number of sheets included in the statistics.
+     */
+    public int getSheetCount() {
+        return sheetCount;
+    }
+
+    /**
+     * Returns the mean total score.
+     */
+    public double getMean() {
+        return sheetCount > 0 ? sumTotal / sheetCount : Double.NaN;
+    }
+
+    /**
+     * Returns the standard deviation of total scores.
+     */
+    public double getStandardDeviation() {
+        return Math.sqrt(variance(sumTotal, sumTotal2));
+    }
+
+    /**
+     * Returns the number of sheets with each total score, ordered by score.
+     */
+    public TreeMap<Double, Integer> getScoreDistribution() {
+        return new TreeMap<Double, Integer>(distribution);
+    }
+
+    /**
+     * Returns the proportion of sheets that answered the question correctly [0, 1].
+     */
+    public double getDifficulty(int question) {
+        return sheetCount > 0 ? (double)correctCount[question] / sheetCount : Double.NaN;
+    }
+
+    /**
+     * Returns the mean score of a question.
+     */
+    public double getMeanScore(int question) {
+        return sheetCount > 0 ? sumScore[question] / sheetCount : Double.NaN;
+    }
+
+    /**
+     * Returns the correlation between answering the question correctly and the score of the rest of the exam.
+     * @return NaN if undefined, e.g. if everybody answered the same way
+     */
+    public double getDiscrimination(int question) {
+        double covCorrectTotal = covariance(correctCount[question], sumTotal, sumCorrectTotal[question]);
+        double covCorrectScore = covariance(correctCount[question], sumScore[question], sumCorrectScore[question]);
+        double covScoreTotal = covariance(sumScore[question], sumTotal, sumScoreTotal[question]);
+        double varScore = variance(sumScore[question], sumScore2[question]);
+
+        double covCorrectRest = covCorrectTotal - covCorrectScore;
+        double varRest = variance(sumTotal, sumTotal2) - 2 * covScoreTotal + varScore;
+
+        return correlation(covCorrectRest, variance(correctCount[question], correctCount[question]), varRest);
+    }
+
+    /**
+     * Returns the point-biserial correlation between answering the question correctly and the total score.
+     * @return NaN if undefined
+     */
+    public double getPointBiserial(int question) {
+        double cov = covariance(correctCount[question], sumTotal, sumCorrectTotal[question]);
+        return correlation(cov, variance(correctCount[question], correctCount[question]), variance(sumTotal, sumTotal2));
+    }
+
+    /**
+     * Returns the number of sheets that selected the given alternative.
+     */
+    public int getAlternativeCount(int question, int alternative) {
+        int[] counts = alternativeCounts[question];
+        return alternative < counts.length ? counts[alternative] : 0;
+    }
+
+    /**
+     * Returns the number of sheets that left the question blank.
+     */
+    public int getBlankCount(int question) {
+        return blankCount[question];
+    }
+
+    /**
+     * Returns the number of sheets that selected several alternatives.
+     */
+    public int getMultipleCount(int question) {
+        return multipleCount[question];
+    }
+
+    /**
+     * Returns the Kuder-Richardson 20 reliability coefficient, calculated from correct/incorrect answers.
+     * @return NaN if undefined
+     */
+    public double getKR20() {
+        int questions = correctCount.length;
+        double varCorrect = variance(sumCorrect, sumCorrect2);
+        if (questions < 2 || sheetCount < 1 || varCorrect <= 0) {
+            return Double.NaN;
+        }
+
+        double sum = 0.0;
+        for (int question = 0; question < questions; question++) {
+            double p = getDifficulty(question);
+            sum += p * (1 - p);
+        }
+
+        return questions / (questions - 1.0) * (1 - sum / varCorrect);
+    }
+
+    /**
+     * Returns Cronbach's alpha, calculated from question scores.
+     * @return NaN if undefined
+     */
+    public double getCronbachAlpha() {
+        int questions = correctCount.length;
+        double varTotal = variance(sumTotal, sumTotal2);
+        if (questions < 2 || sheetCount < 1 || varTotal <= 0) {
+            return Double.NaN;
+        }
+
+        double sum = 0.0;
+        for (int question = 0; question < questions; question++) {
+            sum += variance(sumScore[question], sumScore2[question]);
+        }
+
+        return questions / (questions - 1.0) * (1 - sum / varTotal);
+    }
+
+    /**
+     * Population variance from the sum and the sum of squares.
+     */
+    private double variance(double sum, double sum2) {
+        if (sheetCount < 1) {
+            return 0.0;
+        }
+
+        double mean = sum / sheetCount;
+        return Math.max(0.0, sum2 / sheetCount - mean * mean);
+    }
+
+    /**
+     * Population covariance from the sums of x, y and x * y.
+     */
+    private double covariance(double sumX, double sumY, double sumXY) {
+        if (sheetCount < 1) {
+            return 0.0;
+        }
+
+        return sumXY / sheetCount - (sumX / sheetCount) * (sumY / sheetCount);
+    }
+
+    private static double correlation(double covariance, double varianceX, double varianceY) {
+        if (varianceX <= 1e-12 || varianceY <= 1e-12) {
+            return Double.NaN;
+        }
+
+        return covariance / Math.sqrt(varianceX * varianceY);
+    }
+}
@@ -53,7 +53,7 @@ public class Mailer {
 
         // Create the message body
         BodyPart messageBody = new MimeBodyPart();
-        messageBody.setText(generateFeedback(project.getGradingScheme(), project.getSheetStructure(), sheet));
+        messageBody.setText(generateFeedback(project.getScoreMatrix(), project.getSheetStructure(), sheet));
 
         // Create the attachment
         BodyPart messageAttachment = new MimeBodyPart();
@@ -80,7 +80,7 @@ public class Mailer {
     /**
      * Generates the feedback text.
      */
-    private String generateFeedback(GradingScheme grading, SheetStructure structure, Sheet sheet) {
+    private String generateFeedback(ScoreMatrix scores, SheetStructure structure, Sheet sheet) {
         StringBuilder sb = new StringBuilder();
 
         sb.append("Student ID: " + sheet.getStudentId() + "\n\n");
@@ -100,14 +100,14 @@ public class Mailer {
                 sb.append(String.format("%1$-" + 1 + "s", sheet.getChoices(group, question)) + " ");       // Student's answer
                 sb.append(String.format("%1$-" + 4 + "s", "[" + group.getCorrectChoices(question) + "]")); // Correct answer
                 sb.append("--> ");
-                sb.append(grading.getScore(sheet, group, question));       // Score
+                sb.append(scores.getScore(sheet, group, question));       // Score
                 sb.append("\n");
             }
         }
 
         // Total score
         sb.append("\nTotal: ");
-        sb.append(grading.getScore(sheet, structure) + "\n");
+        sb.append(scores.getTotalScore(sheet) + "\n");
 
         return sb.toString();
     }
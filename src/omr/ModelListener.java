@@ -0,0 +1,12 @@
+package omr;
+
+/**
+ * Receives coalesced change sets from a ChangeBus.
+ */
+public interface ModelListener<E> {
+
+    /**
+     * Called on the event dispatch thread with all changes since the previous call.
+     */
+    void modelChanged(E change);
+}
@@ -1,12 +1,13 @@
 package omr;
 
 import java.awt.Color;
+import java.awt.Dimension;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -22,17 +23,92 @@ import com.sun.pdfview.PDFRenderer;
  * one PdfDocument as their common data source, so that the same Pdf file
  * does not need to be opened and closed repeatedly.
  * 
+ * The file is opened when a page is first accessed. Open documents are kept in
+ * a PdfDocumentPool that closes the least recently used ones when too many are open,
+ * so a project may refer to any number of PDF files.
+ * 
  * @author Tapio Auvinen
  */
 
 public class PdfDocument {
-	private PDFFile pdfFile;
+	private static final PdfDocumentPool pool = new PdfDocumentPool(OMRProperties.getInt("pdf-open-documents", 16));
+	
+	private File file;
+	private int pageCount;       // -1 until the document has been opened
+	
+	// Guarded by the pool
+	private RandomAccessFile randomAccessFile;
+	private PDFFile pdfFile;     // Null while the document is closed
+	int users;                   // Number of threads using the open document
+	
+	/**
+	 * Constructor. The file is not opened until its pages are accessed.
+	 */
+	public PdfDocument(File file) {
+		this.file = file;
+		this.pageCount = -1;
+	}
 	
-	public PdfDocument(File file) throws FileNotFoundException, IOException {
-	    RandomAccessFile raf = new RandomAccessFile(file, "r");
-	    FileChannel channel = raf.getChannel();
-	    ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
-	    this.pdfFile = new PDFFile(buf);
+	/**
+	 * Returns the pool that keeps the documents open.
+	 */
+	public static PdfDocumentPool getPool() {
+		return pool;
+	}
+	
+	/**
+	 * Opens the document if it is closed, and reserves it so that the pool does not close it while it is being used.
+	 * The caller must call pool.release() afterwards. Called while holding the lock of this document.
+	 */
+	private PDFFile acquire() throws IOException {
+		pool.reserve(this);
+		try {
+			if (this.pdfFile == null) {
+				RandomAccessFile raf = new RandomAccessFile(file, "r");
+				try {
+					FileChannel channel = raf.getChannel();
+					ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+					this.pdfFile = new PDFFile(buf);
+				} catch (IOException e) {
+					raf.close();
+					throw e;
+				} catch (RuntimeException e) {
+					// The parser throws runtime exceptions for some malformed files
+					raf.close();
+					throw new IOException(file.getName() + " cannot be read. " + e);
+				}
+				this.randomAccessFile = raf;
+				this.pageCount = pdfFile.getNumPages();
+			}
+			
+			return this.pdfFile;
+		} catch (IOException e) {
+			pool.release(this);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Closes the file. Called by the pool when nobody is using the document.
+	 * The mapped buffer is unmapped when it is garbage collected.
+	 */
+	void close() {
+		this.pdfFile = null;
+		if (this.randomAccessFile != null) {
+			try {
+				this.randomAccessFile.close();
+			} catch (IOException e) {
+				System.err.println(e);
+			}
+			this.randomAccessFile = null;
+		}
+	}
+	
+	/**
+	 * Tells whether the file is open. Called by the pool.
+	 */
+	boolean isOpen() {
+		return this.pdfFile != null;
 	}
 	
 	/**
@@ -42,33 +118,101 @@ public class PdfDocument {
 	 * @return Buffered image containing the page. Can return null if something goes wrong.
 	 */
 	synchronized public BufferedImage renderPage(double zoom, int pageNumber) {
-		// Get the right page
-	    PDFPage page = this.pdfFile.getPage(pageNumber);
+	    Dimension size;
+	    try {
+	    	size = getPageSize(zoom, pageNumber);
+	    } catch (IOException e) {
+	    	return null;
+	    }
+	    
+	    BufferedImage buffer = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+	    try {
+	    	if (!renderPage(pageNumber, buffer, null, size.width, size.height)) {
+	    		return null;
+	    	}
+	    } catch (IOException e) {
+	    	return null;
+	    }
+	    
+	    return buffer;
+	}
 	
-	    int width = (int)(page.getWidth() * zoom);
-	    int height = (int)(page.getHeight() * zoom);
+	/**
+	 * Renders one page into an existing image. The page is scaled to width x height and then transformed,
+	 * e.g. rotated, so that the image gets its final size and orientation without resampling.
+	 * @param target Image where the page is drawn
+	 * @param transform Transformation applied after scaling, or null
+	 * @param width Width of the page before the transformation
+	 * @param height Height of the page before the transformation
+	 * @return false if rendering was interrupted
+	 * @throws IOException if the document cannot be opened
+	 */
+	synchronized public boolean renderPage(int pageNumber, BufferedImage target, AffineTransform transform, int width, int height) throws IOException {
+		PDFFile pdf = acquire();
+		try {
+			return renderPage(pdf, pageNumber, target, transform, width, height);
+		} finally {
+			pool.release(this);
+		}
+	}
+	
+	private static boolean renderPage(PDFFile pdf, int pageNumber, BufferedImage target, AffineTransform transform, int width, int height) throws IOException {
+		// Get the right page
+	    PDFPage page = pdf.getPage(pageNumber);
+	    if (page == null) {
+	    	throw new IOException("Page " + pageNumber + " cannot be read.");
+	    }
 	    
 	    // create and configure a graphics object
-	    BufferedImage buffer = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-	    Graphics2D g2 = buffer.createGraphics();
+	    Graphics2D g2 = target.createGraphics();
 	    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+	    if (transform != null) {
+	    	g2.transform(transform);
+	    }
 	
 	    // Render the page
-	    PDFRenderer renderer = new PDFRenderer(page, g2, new Rectangle(0, 0, buffer.getWidth(), buffer.getHeight()), null, Color.WHITE);
+	    PDFRenderer renderer = new PDFRenderer(page, g2, new Rectangle(0, 0, width, height), null, Color.WHITE);
 	    try {
 	    	page.waitForFinish();
 	    } catch (InterruptedException e) {
-	    	return null;
+	    	g2.dispose();
+	    	return false;
 	    }
 	    renderer.run();
+	    g2.dispose();
 	    
-	    return buffer;
+	    return true;
+	}
+	
+	/**
+	 * Returns the size of a page in pixels at the given zoom level.
+	 * @param zoom 1.0 = default zoom level. DPI = 96
+	 * @throws IOException if the page cannot be read
+	 */
+	synchronized public Dimension getPageSize(double zoom, int pageNumber) throws IOException {
+		PDFFile pdf = acquire();
+		try {
+			PDFPage page = pdf.getPage(pageNumber);
+			if (page == null) {
+				throw new IOException("Page " + pageNumber + " cannot be read.");
+			}
+			
+			return new Dimension((int)(page.getWidth() * zoom), (int)(page.getHeight() * zoom));
+		} finally {
+			pool.release(this);
+		}
 	}
 	
 	/**
-	 * Returns the number of pages in this document.
+	 * Returns the number of pages in this document. The document is opened if the number is not known yet.
+	 * @throws IOException if the document cannot be opened
 	 */
-	public int getPageCount() {
-		return this.pdfFile.getNumPages();
+	synchronized public int getPageCount() throws IOException {
+		if (this.pageCount < 0) {
+			acquire();
+			pool.release(this);
+		}
+		
+		return this.pageCount;
 	}
 }
@@ -0,0 +1,101 @@
+package omr;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps a bounded number of PDF documents open. Documents open themselves when their pages are accessed, and the pool closes
+ * the least recently used ones when more than the given number are open, so that a project with hundreds of PDF files does not
+ * hold hundreds of file handles and mapped files. A closed document is opened again when it is needed.
+ * <p>
+ * Documents that are being used are never closed, so the limit may be exceeded temporarily while many threads render pages.
+ * Thread-safe. The pool never takes the lock of a document, so documents may call it while holding their own lock.
+ *
+ * @author Tapio Auvinen
+ */
+public class PdfDocumentPool {
+    private int capacity;                                          // Number of documents to keep open
+    private LinkedHashMap<PdfDocument, Boolean> openDocuments;     // Open documents in access order, least recently used first
+
+    private int opens;              // Number of times a document was opened
+    private int closes;             // Number of times the pool closed a document
+
+    /**
+     * Constructor
+     * @param capacity Number of documents to keep open
+     */
+    public PdfDocumentPool(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        this.openDocuments = new LinkedHashMap<PdfDocument, Boolean>(16, 0.75f, true);
+    }
+
+    /**
+     * Marks a document as used so that it is not closed. The document opens itself after this if it is closed.
+     */
+    synchronized void reserve(PdfDocument document) {
+        document.users++;
+    }
+
+    /**
+     * Ends a use of a document. The document becomes the most recently used one, and the least recently used
+     * documents that are not in use are closed if too many are open.
+     */
+    synchronized void release(PdfDocument document) {
+        document.users--;
+
+        if (document.isOpen() && openDocuments.put(document, Boolean.TRUE) == null) {
+            opens++;
+        }
+
+        Iterator<PdfDocument> iterator = openDocuments.keySet().iterator();
+        while (openDocuments.size() > capacity && iterator.hasNext()) {
+            PdfDocument eldest = iterator.next();
+            if (eldest.users == 0) {
+                eldest.close();
+                iterator.remove();
+                closes++;
+            }
+        }
+    }
+
+    /**
+     * Closes all documents that are not in use, e.g. when a project is closed.
+     */
+    synchronized public void closeAll() {
+        Iterator<PdfDocument> iterator = openDocuments.keySet().iterator();
+        while (iterator.hasNext()) {
+            PdfDocument document = iterator.next();
+            if (document.users == 0) {
+                document.close();
+                iterator.remove();
+                closes++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of documents that are open.
+     */
+    synchronized public int getOpenCount() {
+        return openDocuments.size();
+    }
+
+    /**
+     * Returns the number of times a document had to be opened.
+     */
+    synchronized public int getOpens() {
+        return opens;
+    }
+
+    /**
+     * Returns the number of times the pool closed a document.
+     */
+    synchronized public int getCloses() {
+        return closes;
+    }
+
+    @Override
+    synchronized public String toString() {
+        return "open: " + openDocuments.size() + ", opens: " + opens + ", closes: " + closes;
+    }
+}
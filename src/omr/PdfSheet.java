@@ -1,5 +1,6 @@
 package omr;
 
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 
@@ -33,6 +34,13 @@ public class PdfSheet extends Sheet {
         this.id = fileName + "(" + page + ")";
     }
 
+    /**
+     * Returns the document where the sheet is taken.
+     */
+    public PdfDocument getPdfDocument() {
+        return pdfDocument;
+    }
+    
     /**
      * Returns the original unaligned sheet image at 100% zoom level.
      */
@@ -42,11 +50,72 @@ public class PdfSheet extends Sheet {
     }
     
     /**
-     * Returns the original unaligned sheet image at the requested zoom level.
+     * Returns the original unaligned sheet image at the requested zoom level, rotated by the rotation of the sheet.
      * @param zoomLevel 1.0 means 100%
      */
     @Override
     public BufferedImage getUnalignedBuffer(double zoomLevel) throws IOException {
-        return this.pdfDocument.renderPage(zoomLevel, this.page);
+        Dimension size = this.pdfDocument.getPageSize(zoomLevel, this.page);
+        if (this.rotation == 90 || this.rotation == 270) {
+            return renderPage(size.height, size.width, null);
+        } else {
+            return renderPage(size.width, size.height, null);
+        }
+    }
+    
+    /**
+     * Reads the size of the page. The page is not rendered.
+     */
+    @Override
+    public void probe() throws IOException {
+        this.imageSize = this.pdfDocument.getPageSize(1.0, this.page);
+    }
+    
+    /**
+     * Returns the resolution of the page at 100% zoom level. Page sizes are in points, i.e. 1/72 inch.
+     */
+    @Override
+    public double getResolution() {
+        return 72;
+    }
+    
+    /**
+     * Renders the page at 100% zoom level without rotating it. Pages are rendered by the PDF library, so the pool is not used.
+     */
+    @Override
+    protected BufferedImage decodeImage(BufferPool pool) throws IOException {
+        BufferedImage image = this.pdfDocument.renderPage(1.0, this.page);
+        if (image == null) {
+            throw new IOException("Page " + page + " of " + fileName + " cannot be rendered.");
+        }
+        
+        return image;
+    }
+    
+    /**
+     * Renders the page directly at the requested size and orientation, so that it is not resampled afterwards.
+     */
+    @Override
+    protected BufferedImage decodeImage(int width, int height, BufferPool pool) throws IOException {
+        return renderPage(width, height, pool);
+    }
+    
+    /**
+     * Renders the page rotated by the rotation of the sheet.
+     * @param width Width of the result after rotation
+     * @param height Height of the result after rotation
+     * @param pool Pool where the image is taken, or null
+     */
+    private BufferedImage renderPage(int width, int height, BufferPool pool) throws IOException {
+        boolean sideways = this.rotation == 90 || this.rotation == 270;
+        int pageWidth = sideways ? height : width;
+        int pageHeight = sideways ? width : height;
+        
+        BufferedImage buffer = pool != null ? pool.acquire(width, height, BufferedImage.TYPE_INT_RGB) : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        if (!this.pdfDocument.renderPage(this.page, buffer, getRotationTransform(pageWidth, pageHeight), pageWidth, pageHeight)) {
+            throw new IOException("Page " + page + " of " + fileName + " cannot be rendered.");
+        }
+        
+        return buffer;
     }
 }
@@ -1,8 +1,9 @@
 package omr;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -10,6 +11,9 @@ import omr.SheetStructure.SheetStructureEvent;
 
 /**
  * Main OMR project model. 
+ * <p>
+ * Thresholds and answers are not synchronized. While the GUI is running, they are only changed on the event dispatch thread,
+ * also by the analysis task, so that calculating answers never races with the user dragging a threshold.
  * 
  * @author Tapio Auvinen
  */
@@ -27,16 +31,31 @@ public class Project implements Observer {
     private Histogram histogram;                        // Global histogram
     private ThresholdingStrategy thresholdingStrategy;
     private GradingScheme gradingScheme;
+    private ScoreMatrix scoreMatrix;                    // Cached scores of all sheets
+    private BubbleIndex bubbleIndex;                    // Bubbles by brightness for incremental thresholding, null if not built
+    private int answersBlackThreshold;                  // Global thresholds that the current answers are based on, -1 if unknown
+    private int answersWhiteThreshold;
     
     public Project() {
         this.answerSheets = new SheetsContainer();
         
         this.sheetStructure = new SheetStructure();
         this.sheetStructure.addObserver(this);
+        this.answerSheets.getResultStore().setLayout(sheetStructure.getQuestionGroups());
         
         this.histogram = new Histogram();
         this.thresholdingStrategy = ThresholdingStrategy.PER_SHEET;
         this.gradingScheme = new GradingScheme();
+        this.scoreMatrix = new ScoreMatrix(this);
+        this.answersBlackThreshold = -1;
+        this.answersWhiteThreshold = -1;
+    }
+    
+    /**
+     * Releases the files that are held open by the project. The project is not used after this.
+     */
+    public void dispose() {
+        answerSheets.dispose();
     }
     
     /**
@@ -48,18 +67,28 @@ public class Project implements Observer {
     }
     
     /**
-     * Adds answer sheets to the project.
+     * Adds answer sheets to the project. Directories are searched recursively.
      * @param files Array of files to add
+     * @return files that could not be read and were not added
      */
-    public void addAnswerSheets(File[] files) throws IOException {
-        this.answerSheets.importSheets(files);
+    public List<SheetImporter.RejectedFile> addAnswerSheets(File[] files) {
+        return this.answerSheets.importSheets(files);
     }
     
     /**
      * Removes answer sheets from the project.
      */
     public void removeAnswerSheets(Sheet[] sheets) {
+        for (Sheet sheet : sheets) {
+            this.scoreMatrix.invalidate(sheet);
+        }
+        
         this.answerSheets.removeSheets(sheets);
+        
+        // Remove the bubbles of the removed sheets from the global histogram without recalculating everything
+        for (Sheet sheet : sheets) {
+            this.histogram.subtract(sheet.getHistogram());
+        }
     }
     
     /**
@@ -91,6 +120,13 @@ public class Project implements Observer {
         return this.gradingScheme;
     }
     
+    /**
+     * Returns the cached scores of all sheets. Scores should be read from here instead of calling the GradingScheme directly.
+     */
+    public ScoreMatrix getScoreMatrix() {
+        return this.scoreMatrix;
+    }
+    
     /**
      * Returns the global histogram of all bubbles in all answer sheets.
      */
@@ -124,19 +160,86 @@ public class Project implements Observer {
      * Calculates all answers using the global black and white thresholds (set in the global histogram).
      */
     public void calculateAnswers() {
+        calculateAnswers(answerSheets);
+        
+        // Brightnesses may have changed, so the index must be rebuilt
+        this.bubbleIndex = null;
+        if (thresholdingStrategy == ThresholdingStrategy.GLOBAL) {
+            this.answersBlackThreshold = histogram.getBlackThreshold();
+            this.answersWhiteThreshold = histogram.getWhiteThreshold();
+        } else {
+            this.answersBlackThreshold = -1;
+            this.answersWhiteThreshold = -1;
+        }
+    }
+    
+    /**
+     * Calculates the answers of some of the sheets, e.g. the sheets that have been analyzed so far while analysis is still running.
+     * Answers of the other sheets may be based on different thresholds afterwards, so the next threshold change recalculates everything.
+     */
+    public void calculateAnswers(Iterable<Sheet> sheets) {
         int blackThreshold = histogram.getBlackThreshold();
         int whiteThreshold = histogram.getWhiteThreshold();
         
-        for (Sheet sheet : answerSheets) {
-            if (thresholdingStrategy == ThresholdingStrategy.GLOBAL) {                
-                for (QuestionGroup group : sheetStructure.getQuestionGroups()) {
-                    sheet.calculateAnswers(group, blackThreshold, whiteThreshold);
-                }
-            } else {
-                for (QuestionGroup group : sheetStructure.getQuestionGroups()) {
-                    sheet.calculateAnswers(group, sheet.getHistogram().getBlackThreshold(), sheet.getHistogram().getWhiteThreshold());
+        // Deliver the changes of all sheets at once
+        answerSheets.beginBatch();
+        try {
+            for (Sheet sheet : sheets) {
+                if (thresholdingStrategy == ThresholdingStrategy.GLOBAL) {                
+                    for (QuestionGroup group : sheetStructure.getQuestionGroups()) {
+                        sheet.calculateAnswers(group, blackThreshold, whiteThreshold);
+                    }
+                } else {
+                    for (QuestionGroup group : sheetStructure.getQuestionGroups()) {
+                        sheet.calculateAnswers(group, sheet.getHistogram().getBlackThreshold(), sheet.getHistogram().getWhiteThreshold());
+                    }
                 }
             }
+        } finally {
+            answerSheets.endBatch();
+        }
+        
+        this.bubbleIndex = null;
+        this.answersBlackThreshold = -1;
+        this.answersWhiteThreshold = -1;
+    }
+    
+    /**
+     * Updates answers after the global thresholds have been changed. In global thresholding mode, only the bubbles
+     * whose brightness is between the old and the new thresholds are reclassified, so this is cheap enough to be called
+     * continuously while a threshold is being dragged. Otherwise, all answers are recalculated.
+     */
+    public void updateAnswers() {
+        if (thresholdingStrategy != ThresholdingStrategy.GLOBAL || answersBlackThreshold < 0) {
+            calculateAnswers();
+            return;
+        }
+        
+        int blackThreshold = histogram.getBlackThreshold();
+        int whiteThreshold = histogram.getWhiteThreshold();
+        if (blackThreshold == answersBlackThreshold && whiteThreshold == answersWhiteThreshold) {
+            return;
+        }
+        
+        if (bubbleIndex == null || !bubbleIndex.isCurrent(answerSheets.getResultStore())) {
+            if (!BubbleIndex.canIndex(answerSheets)) {
+                calculateAnswers();
+                return;
+            }
+            this.bubbleIndex = new BubbleIndex(answerSheets, answersBlackThreshold, answersWhiteThreshold);
+        }
+        
+        ArrayList<Sheet> changed = bubbleIndex.reclassify(blackThreshold, whiteThreshold);
+        this.answersBlackThreshold = blackThreshold;
+        this.answersWhiteThreshold = whiteThreshold;
+        
+        answerSheets.beginBatch();
+        try {
+            for (Sheet sheet : changed) {
+                sheet.answersChanged();
+            }
+        } finally {
+            answerSheets.endBatch();
         }
     }
     
@@ -144,11 +247,15 @@ public class Project implements Observer {
      * Notified by sheet structure when it changes.
      */
     public void update(Observable source, Object event) {
-    	if (SheetStructureEvent.STRUCTURE_CHANGED == event || 
-    	        SheetStructureEvent.BUBBLE_POSITIONS_CHANGED == event) {
+    	if (SheetStructureEvent.STRUCTURE_CHANGED == event) {
+    	    // Question groups or their dimensions may have changed
+    	    this.answerSheets.getResultStore().setLayout(sheetStructure.getQuestionGroups());
+    	    this.answerSheets.invalidateBrightnesses();
+    	} else if (SheetStructureEvent.BUBBLE_POSITIONS_CHANGED == event) {
     	    this.answerSheets.invalidateBrightnesses();
     	} else if (SheetStructureEvent.REGISTRATION_CHANGED == event) {
-    	    this.answerSheets.invalidateRegistration();
+    	    // Sheets locate the changed markers again and keep the rest, see Sheet.analyze()
+    	    this.answerSheets.invalidateBrightnesses();
     	}
     }
     
@@ -2,6 +2,7 @@ package omr;
 
 import java.awt.Rectangle;
 import java.util.Observable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a matrix of answer bubbles.
@@ -28,8 +29,14 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
     	}
     };
     
+    /**
+     * Maximum number of alternatives that can be represented as bit masks. See getAnswerKeyMask().
+     */
+    public static final int MAX_MASK_ALTERNATIVES = 64;
+    
     public enum QuestionGroupEvent {
     	POSITION_CHANGED,    // Coordinates, dimensions or orientation is changed. Bubble values must be updated.
+    	POSITION_ADJUSTING,  // Position is being changed interactively. POSITION_CHANGED is sent when the adjustment is finished.
     	STRUCTURE_CHANGED,   // Row count, column count or index offset is changed. Sheet structure must be updated.
     	ANSWER_KEY_CHANGED
     }
@@ -49,6 +56,12 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
     
     private boolean[][] answerKey;  // Correct answers [question][alternative], true if the correct answer is to fill the bubble
     
+    private static final AtomicInteger stampCounter = new AtomicInteger();
+    private volatile int geometryStamp;   // Changes whenever the positions of the bubbles change
+    
+    private boolean adjusting;            // Set while the group is being dragged
+    private boolean adjusted;             // Set if the position has changed while adjusting
+    
     public QuestionGroup() {
         this(0,0,1,1);
     }
@@ -62,6 +75,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         this.bubbleHeight = OMRProperties.getInt("bubble-height", 10);
         
         this.orientation = Orientation.VERTICAL;
+        this.geometryStamp = stampCounter.incrementAndGet();
        
         this.rowCount = OMRProperties.getInt("question-rows", 5);
         
@@ -164,8 +178,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         }
         
         // Notify observers
-        setChanged();
-        notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        positionChanged();
     }
 
     /**
@@ -186,8 +199,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         }
         
         // Notify observers
-        setChanged();
-        notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        positionChanged();
     }
 
     /**
@@ -212,8 +224,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         }
         
         // Notify observers
-        setChanged();
-        notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        positionChanged();
     }
 
     /**
@@ -234,8 +245,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         }
         
         // Notify observers
-        setChanged();
-        notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        positionChanged();
     }
     
     /**
@@ -249,8 +259,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         this.bottomY = (int)(rect.getY() + rect.getHeight());
         
         // Notify observers
-        setChanged();
-        notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        positionChanged();
     }
     
     /**
@@ -285,10 +294,55 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         }
         
         // Notify observers
-        setChanged();
-        notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        positionChanged();
     }
 
+    /**
+     * Returns a number that changes whenever the positions or the number of the bubbles change.
+     * Used for detecting brightnesses that were calculated with outdated positions. Stamps are unique across all groups.
+     */
+    public int getGeometryStamp() {
+        return geometryStamp;
+    }
+    
+    private void geometryChanged() {
+        this.geometryStamp = stampCounter.incrementAndGet();
+    }
+    
+    /**
+     * Notifies observers that the bubbles have moved. While the group is being adjusted, POSITION_ADJUSTING is sent instead.
+     */
+    private void positionChanged() {
+        geometryChanged();
+        setChanged();
+        
+        if (adjusting) {
+            this.adjusted = true;
+            notifyObservers(QuestionGroupEvent.POSITION_ADJUSTING);
+        } else {
+            notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        }
+    }
+    
+    /**
+     * Marks the start or the end of an interactive change, e.g. dragging. Position changes during the adjustment are reported
+     * with POSITION_ADJUSTING so that observers can skip expensive updates. A single POSITION_CHANGED is sent at the end
+     * if the position changed.
+     */
+    public void setAdjusting(boolean adjusting) {
+        this.adjusting = adjusting;
+        
+        if (!adjusting && adjusted) {
+            this.adjusted = false;
+            setChanged();
+            notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        }
+    }
+    
+    public boolean isAdjusting() {
+        return adjusting;
+    }
+    
     /**
      * Returns the height of the bubbles.
      */
@@ -307,8 +361,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         }
         
         // Notify observers
-        setChanged();
-        notifyObservers(QuestionGroupEvent.POSITION_CHANGED);
+        positionChanged();
     }
     
     /**
@@ -323,6 +376,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         initializeAnswerKey();
         
         // Notify observers
+        geometryChanged();
         setChanged();
         notifyObservers(QuestionGroupEvent.STRUCTURE_CHANGED);
     }
@@ -339,6 +393,7 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         initializeAnswerKey();
         
         // Notify observers
+        geometryChanged();
         setChanged();
         notifyObservers(QuestionGroupEvent.STRUCTURE_CHANGED);
     }
@@ -470,6 +525,25 @@ public class QuestionGroup extends Observable implements Comparable<QuestionGrou
         return this.answerKey[question][alternative];
     }
     
+    /**
+     * Returns the correct alternatives of a question as a bit mask. Bit i is set if the correct answer is to select alternative i.
+     * Only the first MAX_MASK_ALTERNATIVES alternatives are included.
+     * @param question Local question number [0, n]
+     */
+    public long getAnswerKeyMask(int question) {
+        boolean[] alternatives = this.answerKey[question];
+        int count = Math.min(alternatives.length, MAX_MASK_ALTERNATIVES);
+        
+        long mask = 0;
+        for (int alternative = 0; alternative < count; alternative++) {
+            if (alternatives[alternative]) {
+                mask |= 1L << alternative;
+            }
+        }
+        
+        return mask;
+    }
+    
     /**
      * Returns the correct choices as a string, e.g. "AC"
      * @param question Local question number (row) [0,n]
@@ -4,6 +4,7 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.Observable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a registration marker that is used to align sheets. 
@@ -21,12 +22,24 @@ public class RegistrationMarker extends Observable {
     
     private BufferedImage markerBuffer;  // Image of the marker
     
+    private static final AtomicInteger stampCounter = new AtomicInteger();
+    private volatile int stamp;          // Changes whenever the marker changes
+    
     public RegistrationMarker(int x, int y) {
         this.x = x;
         this.y = y;
         this.imageWidth = 32;
         this.imageHeight = 32;
         this.searchRadius = 16;
+        this.stamp = stampCounter.incrementAndGet();
+    }
+    
+    /**
+     * Returns a number that changes whenever the position, size or image of the marker changes.
+     * Used for detecting marker locations that were searched with outdated parameters.
+     */
+    public int getStamp() {
+        return stamp;
     }
 
     /**
@@ -50,6 +63,7 @@ public class RegistrationMarker extends Observable {
         this.x = x;
         
         // Notify observers
+        this.stamp = stampCounter.incrementAndGet();
         setChanged();
         notifyObservers();
     }
@@ -68,6 +82,7 @@ public class RegistrationMarker extends Observable {
         this.y = y;
         
         // Notify observers
+        this.stamp = stampCounter.incrementAndGet();
         setChanged();
         notifyObservers();
     }
@@ -90,6 +105,7 @@ public class RegistrationMarker extends Observable {
         }
         
         // Notify observers
+        this.stamp = stampCounter.incrementAndGet();
         setChanged();
         notifyObservers();
     }
@@ -112,6 +128,7 @@ public class RegistrationMarker extends Observable {
         }
         
         // Notify observers
+        this.stamp = stampCounter.incrementAndGet();
         setChanged();
         notifyObservers();
     }
@@ -134,6 +151,7 @@ public class RegistrationMarker extends Observable {
         }
         
         // Notify observers
+        this.stamp = stampCounter.incrementAndGet();
         setChanged();
         notifyObservers();
     }
@@ -158,6 +176,7 @@ public class RegistrationMarker extends Observable {
             null);
         
         // Notify observers. Image changed.
+        this.stamp = stampCounter.incrementAndGet();
         setChanged();
         notifyObservers();
     }
@@ -0,0 +1,561 @@
+package omr;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Project-wide storage for the analysis results of all sheets, i.e. bubble brightnesses, calculated choices and manual overrides.
+ * <p>
+ * Data is stored as a structure of arrays indexed by (slot, bubble). Each sheet is assigned a slot when it is added
+ * to the SheetsContainer. Bubbles are numbered globally over all question groups: the bubble at (row, column) of a group is
+ * getOffset(group) + row * group.getColumnCount() + column.
+ * Brightnesses are stored as unsigned bytes, choices and overrides as two bits per bubble.
+ * <p>
+ * Sheets are stored in fixed-size pages that are never moved after allocation, so that analysis workers can write
+ * results of different sheets concurrently while new sheets are being added.
+ * <p>
+ * The groups, their offsets and the pages are kept in an immutable layout that is replaced as a whole when sheets are added
+ * or the groups change. Each method reads the layout once, so results are never read with the sizes of another layout.
+ *
+ * @author Tapio Auvinen
+ */
+public class ResultStore {
+    private static final int PAGE_SIZE = 256;            // Number of sheets in a page
+
+    private static final int BRIGHTNESS_VALID = 1;       // Flag: brightnesses have been calculated
+    private static final int CHOICES_VALID = 2;          // Flag: choices have been calculated
+
+    // Two-bit codes of choices and overrides
+    private static final int CODE_NONE = 0;              // Uncertain choice / automatic override
+    private static final int CODE_BLACK = 1;
+    private static final int CODE_WHITE = 2;
+
+    private volatile Layout layout;                            // Replaced as a whole, never modified
+    private volatile int brightnessStamp;                      // Increased whenever the brightnesses of a sheet become valid or invalid
+    private int slotCount;                                     // Number of slots that have ever been allocated
+    private LinkedList<Integer> freeSlots;                     // Released slots that can be reused
+
+    /**
+     * Storage for PAGE_SIZE sheets.
+     */
+    private static class Page {
+        final byte[] brightness;     // [sheet * bubbleCount + bubble]
+        final long[] choices;        // [sheet * wordsPerSheet + bubble / 32], two bits per bubble
+        final long[] overrides;
+        final byte[] flags;          // [sheet]
+        final int[] groupStamps;     // [sheet * groupCount + group] Geometry stamp of the group when its brightnesses were calculated. 0 = not calculated.
+
+        Page(int bubbleCount, int wordsPerSheet, int groupCount) {
+            this.brightness = new byte[PAGE_SIZE * bubbleCount];
+            this.choices = new long[PAGE_SIZE * wordsPerSheet];
+            this.overrides = new long[PAGE_SIZE * wordsPerSheet];
+            this.flags = new byte[PAGE_SIZE];
+            this.groupStamps = new int[PAGE_SIZE * groupCount];
+        }
+    }
+
+    /**
+     * The groups, their dimensions and the pages that were allocated for them. A layout is published as a whole, so readers
+     * that read the layout once always see pages and sizes that belong together, even while the structure is being changed.
+     */
+    private static class Layout {
+        final IdentityHashMap<QuestionGroup, Integer> indices;   // Index of each group in groups
+        final ArrayList<QuestionGroup> groups;                   // Groups in the order of offsets
+        final int[] offsets;                                     // [group] Global index of the first bubble of the group
+        final int[] rowCounts;                                   // [group] Dimensions of the group when the layout was set
+        final int[] columnCounts;
+        final int bubbleCount;                                   // Number of bubbles per sheet
+        final int wordsPerSheet;                                 // Number of longs per sheet in the choice arrays
+        final int generation;                                    // Increased whenever the groups change
+        final Page[] pages;
+
+        Layout(List<QuestionGroup> groups, int generation, int pageCount) {
+            this.indices = new IdentityHashMap<QuestionGroup, Integer>();
+            this.groups = new ArrayList<QuestionGroup>(groups);
+            this.offsets = new int[groups.size()];
+            this.rowCounts = new int[groups.size()];
+            this.columnCounts = new int[groups.size()];
+
+            int bubbleCount = 0;
+            for (int i = 0; i < groups.size(); i++) {
+                QuestionGroup group = groups.get(i);
+                indices.put(group, i);
+                offsets[i] = bubbleCount;
+                rowCounts[i] = group.getRowCount();
+                columnCounts[i] = group.getColumnCount();
+                bubbleCount += rowCounts[i] * columnCounts[i];
+            }
+
+            this.bubbleCount = bubbleCount;
+            this.wordsPerSheet = (bubbleCount + 31) / 32;
+            this.generation = generation;
+            this.pages = new Page[pageCount];
+            for (int i = 0; i < pageCount; i++) {
+                pages[i] = new Page(bubbleCount, wordsPerSheet, groups.size());
+            }
+        }
+
+        /**
+         * Copy of a layout with more pages. The existing pages are shared.
+         */
+        Layout(Layout layout, int pageCount) {
+            this.indices = layout.indices;
+            this.groups = layout.groups;
+            this.offsets = layout.offsets;
+            this.rowCounts = layout.rowCounts;
+            this.columnCounts = layout.columnCounts;
+            this.bubbleCount = layout.bubbleCount;
+            this.wordsPerSheet = layout.wordsPerSheet;
+            this.generation = layout.generation;
+            this.pages = new Page[pageCount];
+            System.arraycopy(layout.pages, 0, pages, 0, layout.pages.length);
+            for (int i = layout.pages.length; i < pageCount; i++) {
+                pages[i] = new Page(bubbleCount, wordsPerSheet, groups.size());
+            }
+        }
+
+        /**
+         * Returns the index of the group in groups, or -1 if the group is not in the layout.
+         */
+        int indexOf(QuestionGroup group) {
+            Integer index = indices.get(group);
+            return index == null ? -1 : index;
+        }
+
+        int getSize(int groupIndex) {
+            return rowCounts[groupIndex] * columnCounts[groupIndex];
+        }
+
+        boolean contains(int bubble) {
+            return bubble >= 0 && bubble < bubbleCount;
+        }
+    }
+
+    public ResultStore() {
+        this.layout = new Layout(new ArrayList<QuestionGroup>(), 0, 0);
+        this.slotCount = 0;
+        this.freeSlots = new LinkedList<Integer>();
+    }
+
+    /**
+     * Reserves a slot for a new sheet. The slot is initially empty.
+     */
+    synchronized public int allocate() {
+        int slot;
+        if (!freeSlots.isEmpty()) {
+            slot = freeSlots.removeFirst();
+        } else {
+            slot = slotCount++;
+        }
+
+        // Add a page if necessary
+        int pageIndex = slot / PAGE_SIZE;
+        if (pageIndex >= layout.pages.length) {
+            this.layout = new Layout(layout, pageIndex + 1);
+        }
+
+        clear(slot);
+
+        return slot;
+    }
+
+    /**
+     * Releases a slot of a removed sheet so that it can be reused.
+     */
+    synchronized public void release(int slot) {
+        clear(slot);
+        freeSlots.add(slot);
+    }
+
+    /**
+     * Erases all data in the given slot.
+     */
+    private void clear(int slot) {
+        Layout layout = this.layout;
+        Page page = layout.pages[slot / PAGE_SIZE];
+        int index = slot % PAGE_SIZE;
+
+        page.flags[index] = 0;
+        brightnessStamp++;
+        for (int i = index * layout.bubbleCount; i < (index + 1) * layout.bubbleCount; i++) {
+            page.brightness[i] = 0;
+        }
+        for (int i = index * layout.wordsPerSheet; i < (index + 1) * layout.wordsPerSheet; i++) {
+            page.choices[i] = 0;
+            page.overrides[i] = 0;
+        }
+        clearGroupStamps(slot);
+    }
+
+    /**
+     * Sets the question groups whose bubbles are stored. Does nothing if the layout does not change.
+     * Otherwise, brightnesses and choices are invalidated. Overrides, brightnesses and geometry stamps are preserved for the groups
+     * whose dimensions have not changed, so that only the changed groups need to be measured again.
+     */
+    synchronized public void setLayout(AbstractList<QuestionGroup> newGroups) {
+        Layout oldLayout = this.layout;
+
+        boolean changed = newGroups.size() != oldLayout.groups.size();
+        for (int i = 0; i < newGroups.size() && !changed; i++) {
+            QuestionGroup group = newGroups.get(i);
+            if (oldLayout.groups.get(i) != group || oldLayout.getSize(i) != group.getRowCount() * group.getColumnCount()) {
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            return;
+        }
+
+        Layout newLayout = new Layout(newGroups, oldLayout.generation + 1, oldLayout.pages.length);
+
+        // Copy overrides of the groups that still have the same dimensions to the new pages
+        for (int p = 0; p < oldLayout.pages.length; p++) {
+            Page oldPage = oldLayout.pages[p];
+            Page newPage = newLayout.pages[p];
+
+            for (int newGroupIndex = 0; newGroupIndex < newLayout.groups.size(); newGroupIndex++) {
+                int oldGroupIndex = oldLayout.indexOf(newLayout.groups.get(newGroupIndex));
+                int size = newLayout.getSize(newGroupIndex);
+                if (oldGroupIndex < 0 || oldLayout.getSize(oldGroupIndex) != size) {
+                    continue;
+                }
+
+                int oldOffset = oldLayout.offsets[oldGroupIndex];
+                int newOffset = newLayout.offsets[newGroupIndex];
+                for (int sheet = 0; sheet < PAGE_SIZE; sheet++) {
+                    for (int i = 0; i < size; i++) {
+                        int code = getCode(oldPage.overrides, sheet * oldLayout.wordsPerSheet, oldOffset + i);
+                        setCode(newPage.overrides, sheet * newLayout.wordsPerSheet, newOffset + i, code);
+                    }
+
+                    System.arraycopy(oldPage.brightness, sheet * oldLayout.bubbleCount + oldOffset, newPage.brightness, sheet * newLayout.bubbleCount + newOffset, size);
+                    newPage.groupStamps[sheet * newLayout.groups.size() + newGroupIndex] = oldPage.groupStamps[sheet * oldLayout.groups.size() + oldGroupIndex];
+                }
+            }
+        }
+
+        this.layout = newLayout;
+    }
+
+    /**
+     * Returns a number that changes whenever the layout changes. Used for detecting results that were calculated using an outdated layout.
+     */
+    public int getGeneration() {
+        return layout.generation;
+    }
+
+    /**
+     * Returns the global index of the first bubble of the given group.
+     * @return -1 if the group is not in the layout
+     */
+    public int getOffset(QuestionGroup group) {
+        Layout layout = this.layout;
+        int groupIndex = layout.indexOf(group);
+        return groupIndex < 0 ? -1 : layout.offsets[groupIndex];
+    }
+
+    /**
+     * Returns the global index of a bubble. The dimensions of the group are the ones it had when the layout was set,
+     * so an index is never taken from another group while the group is being resized.
+     * @return -1 if the group is not in the layout, or the bubble is outside the group
+     */
+    public int getBubbleIndex(QuestionGroup group, int row, int column) {
+        Layout layout = this.layout;
+        int groupIndex = layout.indexOf(group);
+        if (groupIndex < 0 || row < 0 || row >= layout.rowCounts[groupIndex] || column < 0 || column >= layout.columnCounts[groupIndex]) {
+            return -1;
+        }
+
+        return layout.offsets[groupIndex] + row * layout.columnCounts[groupIndex] + column;
+    }
+
+    /**
+     * Returns the number of bubbles per sheet.
+     */
+    public int getBubbleCount() {
+        return layout.bubbleCount;
+    }
+
+    /**
+     * Returns the question groups in the order of their offsets. The list must not be modified.
+     */
+    public AbstractList<QuestionGroup> getQuestionGroups() {
+        return layout.groups;
+    }
+
+
+    /**
+     * Returns the geometry stamp (see QuestionGroup.getGeometryStamp()) of the group when its brightnesses were calculated.
+     * @return 0 if the brightnesses of the group have not been calculated, or the group is not in the layout
+     */
+    public int getGroupStamp(int slot, QuestionGroup group) {
+        Layout layout = this.layout;
+        int groupIndex = layout.indexOf(group);
+        if (groupIndex < 0) {
+            return 0;
+        }
+
+        return layout.pages[slot / PAGE_SIZE].groupStamps[(slot % PAGE_SIZE) * layout.groups.size() + groupIndex];
+    }
+
+    /**
+     * Records the geometry stamp of the group whose brightnesses have been calculated.
+     */
+    public void setGroupStamp(int slot, QuestionGroup group, int stamp) {
+        Layout layout = this.layout;
+        int groupIndex = layout.indexOf(group);
+        if (groupIndex < 0) {
+            return;
+        }
+
+        layout.pages[slot / PAGE_SIZE].groupStamps[(slot % PAGE_SIZE) * layout.groups.size() + groupIndex] = stamp;
+    }
+
+    /**
+     * Marks the brightnesses of all groups of a sheet to be recalculated, e.g. when the alignment of the sheet changes.
+     */
+    public void clearGroupStamps(int slot) {
+        Layout layout = this.layout;
+        int[] stamps = layout.pages[slot / PAGE_SIZE].groupStamps;
+        int groupCount = layout.groups.size();
+        int base = (slot % PAGE_SIZE) * groupCount;
+        for (int i = base; i < base + groupCount; i++) {
+            stamps[i] = 0;
+        }
+    }
+
+    /**
+     * Returns a number that changes whenever the brightnesses of a sheet are validated or invalidated, e.g. when a sheet
+     * has been measured again. Used for detecting data that was derived from outdated brightnesses.
+     */
+    public int getBrightnessStamp() {
+        return brightnessStamp;
+    }
+
+    public boolean isBrightnessValid(int slot) {
+        return (getFlags(slot) & BRIGHTNESS_VALID) != 0;
+    }
+
+    public void setBrightnessValid(int slot, boolean valid) {
+        setFlag(slot, BRIGHTNESS_VALID, valid);
+    }
+
+    public boolean isChoicesValid(int slot) {
+        return (getFlags(slot) & CHOICES_VALID) != 0;
+    }
+
+    public void setChoicesValid(int slot, boolean valid) {
+        setFlag(slot, CHOICES_VALID, valid);
+    }
+
+    private int getFlags(int slot) {
+        return layout.pages[slot / PAGE_SIZE].flags[slot % PAGE_SIZE];
+    }
+
+    synchronized private void setFlag(int slot, int flag, boolean value) {
+        byte[] flags = layout.pages[slot / PAGE_SIZE].flags;
+        int index = slot % PAGE_SIZE;
+
+        if (flag == BRIGHTNESS_VALID && ((flags[index] & flag) != 0) != value) {
+            brightnessStamp++;
+        }
+
+        if (value) {
+            flags[index] |= flag;
+        } else {
+            flags[index] &= ~flag;
+        }
+    }
+
+    /**
+     * Returns the brightness of a bubble [0, 255].
+     * @return 255 if the bubble is not in the layout, e.g. because the layout has just changed
+     */
+    public int getBrightness(int slot, int bubble) {
+        Layout layout = this.layout;
+        if (!layout.contains(bubble)) {
+            return 255;
+        }
+
+        return layout.pages[slot / PAGE_SIZE].brightness[(slot % PAGE_SIZE) * layout.bubbleCount + bubble] & 0xFF;
+    }
+
+    /**
+     * Sets the brightness of a bubble. Values are clamped to [0, 255]. Does nothing if the bubble is not in the layout.
+     */
+    public void setBrightness(int slot, int bubble, int brightness) {
+        if (brightness < 0) {
+            brightness = 0;
+        } else if (brightness > 255) {
+            brightness = 255;
+        }
+
+        Layout layout = this.layout;
+        if (!layout.contains(bubble)) {
+            return;
+        }
+
+        layout.pages[slot / PAGE_SIZE].brightness[(slot % PAGE_SIZE) * layout.bubbleCount + bubble] = (byte)brightness;
+    }
+
+    /**
+     * Returns the calculated choice.
+     * @return negative = black, 0 = uncertain, positive = white
+     */
+    public int getChoice(int slot, int bubble) {
+        Layout layout = this.layout;
+        if (!layout.contains(bubble)) {
+            return 0;
+        }
+
+        return decode(getCode(layout.pages[slot / PAGE_SIZE].choices, (slot % PAGE_SIZE) * layout.wordsPerSheet, bubble));
+    }
+
+    /**
+     * Sets the calculated choice.
+     * @param choice negative = black, 0 = uncertain, positive = white
+     */
+    public void setChoice(int slot, int bubble, int choice) {
+        Layout layout = this.layout;
+        if (!layout.contains(bubble)) {
+            return;
+        }
+
+        setCode(layout.pages[slot / PAGE_SIZE].choices, (slot % PAGE_SIZE) * layout.wordsPerSheet, bubble, encode(choice));
+    }
+
+    /**
+     * Returns the manual override.
+     * @return negative = force black, 0 = auto, postive = force white
+     */
+    public int getOverride(int slot, int bubble) {
+        Layout layout = this.layout;
+        if (!layout.contains(bubble)) {
+            return 0;
+        }
+
+        return decode(getCode(layout.pages[slot / PAGE_SIZE].overrides, (slot % PAGE_SIZE) * layout.wordsPerSheet, bubble));
+    }
+
+    /**
+     * Sets the manual override.
+     * @param override negative = force black, 0 = auto, postive = force white
+     */
+    public void setOverride(int slot, int bubble, int override) {
+        Layout layout = this.layout;
+        if (!layout.contains(bubble)) {
+            return;
+        }
+
+        setCode(layout.pages[slot / PAGE_SIZE].overrides, (slot % PAGE_SIZE) * layout.wordsPerSheet, bubble, encode(override));
+    }
+
+    /**
+     * Returns the choice, taking overrides into account.
+     * @return negative = black, 0 = uncertain, positive = white
+     */
+    public int getAnswer(int slot, int bubble) {
+        Layout layout = this.layout;
+        if (!layout.contains(bubble)) {
+            return 0;
+        }
+
+        Page page = layout.pages[slot / PAGE_SIZE];
+        int base = (slot % PAGE_SIZE) * layout.wordsPerSheet;
+
+        int override = getCode(page.overrides, base, bubble);
+        if (override != CODE_NONE) {
+            return decode(override);
+        }
+
+        return decode(getCode(page.choices, base, bubble));
+    }
+
+    /**
+     * Returns the selected (black) bubbles of a question as a bit mask, taking overrides into account.
+     * Bit i is set if alternative i is black. The dimensions of the group are the ones it had when the layout was set.
+     * @param alternativesInRows true if the alternatives of a question are rows (horizontal groups), false if they are columns
+     * @param count Number of alternatives, at most 64
+     * @return 0 if the group is not in the layout or the question is outside the group
+     */
+    public long getSelectionMask(int slot, QuestionGroup group, int question, boolean alternativesInRows, int count) {
+        Layout layout = this.layout;
+        int groupIndex = layout.indexOf(group);
+        if (groupIndex < 0) {
+            return 0;
+        }
+
+        int rowCount = layout.rowCounts[groupIndex];
+        int columnCount = layout.columnCounts[groupIndex];
+        int bubble;
+        int stride;
+        if (alternativesInRows) {
+            if (question < 0 || question >= columnCount) {
+                return 0;
+            }
+            bubble = layout.offsets[groupIndex] + question;
+            stride = columnCount;
+            count = Math.min(count, rowCount);
+        } else {
+            if (question < 0 || question >= rowCount) {
+                return 0;
+            }
+            bubble = layout.offsets[groupIndex] + question * columnCount;
+            stride = 1;
+            count = Math.min(count, columnCount);
+        }
+
+        Page page = layout.pages[slot / PAGE_SIZE];
+        int base = (slot % PAGE_SIZE) * layout.wordsPerSheet;
+
+        long mask = 0;
+        for (int i = 0; i < count; i++) {
+            int code = getCode(page.overrides, base, bubble);
+            if (code == CODE_NONE) {
+                code = getCode(page.choices, base, bubble);
+            }
+
+            if (code == CODE_BLACK) {
+                mask |= 1L << i;
+            }
+
+            bubble += stride;
+        }
+
+        return mask;
+    }
+
+    private static int getCode(long[] words, int base, int bubble) {
+        return (int)(words[base + (bubble >> 5)] >>> ((bubble & 31) << 1)) & 3;
+    }
+
+    private static void setCode(long[] words, int base, int bubble, int code) {
+        int index = base + (bubble >> 5);
+        int shift = (bubble & 31) << 1;
+        words[index] = (words[index] & ~(3L << shift)) | ((long)code << shift);
+    }
+
+    private static int encode(int value) {
+        if (value < 0) {
+            return CODE_BLACK;
+        } else if (value > 0) {
+            return CODE_WHITE;
+        } else {
+            return CODE_NONE;
+        }
+    }
+
+    private static int decode(int code) {
+        if (code == CODE_BLACK) {
+            return -1;
+        } else if (code == CODE_WHITE) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package omr;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import omr.QuestionGroup.Orientation;
+import omr.SheetStructure.SheetStructureEvent;
+
+/**
+ * Cached scores of all sheets. A row of scores is calculated when it is first needed and kept until
+ * the answers of the sheet, the answer key or the structure change. The grading scheme is fixed for the lifetime of a project.
+ * <p>
+ * Columns are the questions of the vertical and horizontal question groups in the order of the sheet structure.
+ * Rows are stored by the slot of the sheet in the ResultStore.
+ * <p>
+ * The selected alternatives of each question are cached as bit masks (see Sheet.getSelectionMask()) separately from the scores.
+ * When the answer key changes, only the questions whose key actually changed are re-graded, and the totals are adjusted by the difference.
+ * <p>
+ * Item statistics (see ItemStatistics) are updated sheet by sheet when answers change. After re-grading, they are
+ * recalculated in one pass over the cached rows, split into chunks that are accumulated in parallel and then merged.
+ * <p>
+ * Observers are notified once with an int[] of the changed columns when only some questions are re-graded, or with null when all scores change.
+ *
+ * @author Tapio Auvinen
+ */
+public class ScoreMatrix extends Observable implements Observer {
+
+    private static final int CHUNK_SIZE = 1024;        // Number of sheets processed by one parallel job
+
+    private Project project;
+
+    private ArrayList<QuestionGroup> columnGroups;                 // Group of each column
+    private int[] columnQuestions;                                 // Local question number of each column
+    private IdentityHashMap<QuestionGroup, Integer> firstColumns;  // Column of the first question of each group
+    private long[] columnKeys;                                     // Answer key mask of each column
+    private boolean[] columnMasked;                                // False if the column has too many alternatives for masks
+    private boolean columnsValid;
+
+    private long[][] selections;        // [slot][column] Selected alternatives. Null if not extracted from the sheet.
+    private double[][] scores;          // [slot][column]. Null if the row has not been calculated.
+    private double[] totals;            // [slot]
+    private Sheet[] owners;             // [slot] Sheet that the row was calculated for. Slots are reused when sheets are removed.
+
+    private ItemStatistics statistics;  // Statistics of the calculated rows
+    private boolean statisticsValid;    // False if statistics must be recalculated from the rows
+
+    /**
+     * Selections and scores of one sheet, before they are stored.
+     */
+    private static class Row {
+        long[] selection;
+        double[] scores;
+        double total;
+    }
+
+    public ScoreMatrix(Project project) {
+        this.project = project;
+        this.columnGroups = new ArrayList<QuestionGroup>();
+        this.columnQuestions = new int[0];
+        this.columnKeys = new long[0];
+        this.columnMasked = new boolean[0];
+        this.firstColumns = new IdentityHashMap<QuestionGroup, Integer>();
+        this.columnsValid = false;
+        this.selections = new long[0][];
+        this.scores = new double[0][];
+        this.totals = new double[0];
+        this.owners = new Sheet[0];
+        this.statistics = new ItemStatistics(new int[0]);
+        this.statisticsValid = true;
+
+        project.getSheetStructure().addObserver(this);
+        project.getSheetsContainer().addObserver(this);
+    }
+
+    /**
+     * Tells whether the group contains gradable questions.
+     */
+    public static boolean isGraded(QuestionGroup group) {
+        return group.getOrientation() == Orientation.VERTICAL || group.getOrientation() == Orientation.HORIZONTAL;
+    }
+
+    /**
+     * Rebuilds the column mapping from the sheet structure.
+     */
+    private void updateColumns() {
+        if (columnsValid) {
+            return;
+        }
+
+        columnGroups.clear();
+        firstColumns.clear();
+
+        int count = 0;
+        for (QuestionGroup group : project.getSheetStructure().getQuestionGroups()) {
+            if (isGraded(group)) {
+                firstColumns.put(group, count);
+                count += group.getQuestionsCount();
+            }
+        }
+
+        columnQuestions = new int[count];
+        columnMasked = new boolean[count];
+        for (QuestionGroup group : project.getSheetStructure().getQuestionGroups()) {
+            if (!isGraded(group)) {
+                continue;
+            }
+
+            boolean masked = group.getAlternativesCount() <= QuestionGroup.MAX_MASK_ALTERNATIVES;
+            for (int question = 0; question < group.getQuestionsCount(); question++) {
+                columnQuestions[columnGroups.size()] = question;
+                columnMasked[columnGroups.size()] = masked;
+                columnGroups.add(group);
+            }
+        }
+
+        columnsValid = true;
+        updateKeys();
+
+        int[] alternatives = new int[count];
+        for (int column = 0; column < count; column++) {
+            alternatives[column] = columnGroups.get(column).getAlternativesCount();
+        }
+        statistics = new ItemStatistics(alternatives);
+        statisticsValid = false;
+    }
+
+    /**
+     * Tells whether the column mapping still matches the question groups.
+     */
+    private boolean isColumnMappingCurrent() {
+        int column = 0;
+        for (QuestionGroup group : project.getSheetStructure().getQuestionGroups()) {
+            if (!isGraded(group)) {
+                continue;
+            }
+
+            Integer first = firstColumns.get(group);
+            if (first == null || first != column) {
+                return false;
+            }
+
+            column += group.getQuestionsCount();
+        }
+
+        return column == columnQuestions.length;
+    }
+
+    /**
+     * Reads the answer key masks of all columns.
+     */
+    private void updateKeys() {
+        columnKeys = new long[columnQuestions.length];
+        for (int column = 0; column < columnKeys.length; column++) {
+            columnKeys[column] = columnGroups.get(column).getAnswerKeyMask(columnQuestions[column]);
+        }
+    }
+
+    /**
+     * Returns the number of question columns.
+     */
+    synchronized public int getColumnCount() {
+        updateColumns();
+        return columnQuestions.length;
+    }
+
+    /**
+     * Returns the question group of the given column.
+     */
+    synchronized public QuestionGroup getColumnGroup(int column) {
+        updateColumns();
+        return columnGroups.get(column);
+    }
+
+    /**
+     * Returns the local question number of the given column.
+     */
+    synchronized public int getColumnQuestion(int column) {
+        updateColumns();
+        return columnQuestions[column];
+    }
+
+    /**
+     * Returns the column of a question.
+     * @return -1 if the group is not graded
+     */
+    synchronized public int getColumn(QuestionGroup group, int question) {
+        updateColumns();
+        Integer first = firstColumns.get(group);
+        return first == null ? -1 : first + question;
+    }
+
+    /**
+     * Returns the score of a single question.
+     * @param column Question column [0, getColumnCount()-1]
+     */
+    synchronized public double getScore(Sheet sheet, int column) {
+        double[] row = getRow(sheet);
+        return row == null ? 0.0 : row[column];
+    }
+
+    /**
+     * Returns the score of a single question.
+     * @param question Local question number
+     */
+    synchronized public double getScore(Sheet sheet, QuestionGroup group, int question) {
+        int column = getColumn(group, question);
+        if (column < 0) {
+            return 0.0;
+        }
+
+        return getScore(sheet, column);
+    }
+
+    /**
+     * Returns the total score of a sheet.
+     */
+    synchronized public double getTotalScore(Sheet sheet) {
+        double[] row = getRow(sheet);
+        return row == null ? 0.0 : totals[sheet.getSlot()];
+    }
+
+    /**
+     * Returns the selected alternatives of each question of a sheet as bit masks. See Sheet.getSelectionMask().
+     * @return a copy of the selections, or null if the sheet does not belong to the project
+     */
+    synchronized public long[] getSelections(Sheet sheet) {
+        if (getRow(sheet) == null) {
+            return null;
+        }
+
+        return selections[sheet.getSlot()].clone();
+    }
+
+    /**
+     * Returns the correct alternatives of each question as bit masks. See QuestionGroup.getAnswerKeyMask().
+     */
+    synchronized public long[] getAnswerKeyMasks() {
+        updateColumns();
+        return columnKeys.clone();
+    }
+
+    /**
+     * Returns the row of scores of a sheet, calculating it if necessary.
+     * @return null if the sheet does not belong to the project
+     */
+    private double[] getRow(Sheet sheet) {
+        int slot = sheet.getSlot();
+        if (slot < 0) {
+            return null;
+        }
+
+        updateColumns();
+
+        if (slot < scores.length && owners[slot] == sheet) {
+            if (scores[slot] != null) {
+                return scores[slot];
+            }
+        } else {
+            // The slot is new or it previously belonged to a removed sheet
+            ensureCapacity(slot + 1);
+            clearRow(slot);
+            owners[slot] = sheet;
+        }
+
+        storeRow(slot, buildRow(sheet));
+
+        return scores[slot];
+    }
+
+    /**
+     * Reads the selections of a sheet and grades them. Does not modify the matrix, so rows of different sheets can be built in parallel.
+     */
+    private Row buildRow(Sheet sheet) {
+        GradingScheme grading = project.getGradingScheme();
+        Row row = new Row();
+        row.selection = new long[columnQuestions.length];
+        row.scores = new double[columnQuestions.length];
+
+        for (int column = 0; column < row.selection.length; column++) {
+            QuestionGroup group = columnGroups.get(column);
+            int question = columnQuestions[column];
+
+            // Selections of wide groups are truncated, but they are still useful for statistics
+            row.selection[column] = sheet.getSelectionMask(group, question);
+
+            if (columnMasked[column]) {
+                row.scores[column] = grading.getScore(row.selection[column], columnKeys[column]);
+            } else {
+                row.scores[column] = grading.getScore(sheet, group, question);
+            }
+            row.total += row.scores[column];
+        }
+
+        return row;
+    }
+
+    /**
+     * Stores a row that was built with buildRow() and adds it to the statistics.
+     */
+    private void storeRow(int slot, Row row) {
+        selections[slot] = row.selection;
+        scores[slot] = row.scores;
+        totals[slot] = row.total;
+
+        if (statisticsValid) {
+            statistics.add(row.selection, columnKeys, row.scores, row.total);
+        }
+    }
+
+    /**
+     * Calculates the scores of a slot from the cached selections.
+     */
+    private void grade(int slot) {
+        GradingScheme grading = project.getGradingScheme();
+        double[] row = scores[slot];
+
+        double total = 0.0;
+        for (int column = 0; column < row.length; column++) {
+            row[column] = grade(grading, slot, column);
+            total += row[column];
+        }
+
+        totals[slot] = total;
+    }
+
+    private double grade(GradingScheme grading, int slot, int column) {
+        if (columnMasked[column]) {
+            return grading.getScore(selections[slot][column], columnKeys[column]);
+        } else {
+            return grading.getScore(owners[slot], columnGroups.get(column), columnQuestions[column]);
+        }
+    }
+
+    /**
+     * Calculates the scores of all sheets in the project.
+     * Large numbers of missing rows are built in parallel.
+     */
+    private void calculateAll() {
+        updateColumns();
+
+        // Find the sheets whose rows are missing
+        final ArrayList<Sheet> missing = new ArrayList<Sheet>();
+        for (Sheet sheet : project.getAnswerSheets()) {
+            int slot = sheet.getSlot();
+            if (slot >= 0 && (slot >= scores.length || owners[slot] != sheet || scores[slot] == null)) {
+                missing.add(sheet);
+            }
+        }
+
+        if (missing.size() <= CHUNK_SIZE) {
+            for (Sheet sheet : missing) {
+                getRow(sheet);
+            }
+            return;
+        }
+
+        // Build rows in parallel
+        final Row[] rows = new Row[missing.size()];
+        LinkedList<Future<?>> jobs = new LinkedList<Future<?>>();
+        for (int start = 0; start < rows.length; start += CHUNK_SIZE) {
+            final int first = start;
+            final int last = Math.min(start + CHUNK_SIZE, rows.length);
+            jobs.add(ForkJoinPool.commonPool().submit(new Runnable() {
+                public void run() {
+                    for (int i = first; i < last; i++) {
+                        rows[i] = buildRow(missing.get(i));
+                    }
+                }
+            }));
+        }
+        waitFor(jobs);
+
+        // Store rows
+        for (int i = 0; i < rows.length; i++) {
+            Sheet sheet = missing.get(i);
+            int slot = sheet.getSlot();
+
+            ensureCapacity(slot + 1);
+            if (owners[slot] != sheet) {
+                clearRow(slot);
+                owners[slot] = sheet;
+            }
+            storeRow(slot, rows[i]);
+        }
+    }
+
+    /**
+     * Recalculates item statistics from the cached rows. Chunks of rows are accumulated in parallel and then merged.
+     */
+    private void calculateStatistics() {
+        final int[] alternatives = new int[columnQuestions.length];
+        for (int column = 0; column < alternatives.length; column++) {
+            alternatives[column] = columnGroups.get(column).getAlternativesCount();
+        }
+
+        LinkedList<Future<ItemStatistics>> jobs = new LinkedList<Future<ItemStatistics>>();
+        for (int start = 0; start < scores.length; start += CHUNK_SIZE) {
+            final int first = start;
+            final int last = Math.min(start + CHUNK_SIZE, scores.length);
+            jobs.add(ForkJoinPool.commonPool().submit(new Callable<ItemStatistics>() {
+                public ItemStatistics call() {
+                    ItemStatistics chunk = new ItemStatistics(alternatives);
+                    for (int slot = first; slot < last; slot++) {
+                        if (scores[slot] != null) {
+                            chunk.add(selections[slot], columnKeys, scores[slot], totals[slot]);
+                        }
+                    }
+                    return chunk;
+                }
+            }));
+        }
+
+        ItemStatistics result = new ItemStatistics(alternatives);
+        for (Future<ItemStatistics> job : jobs) {
+            try {
+                result.merge(job.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        this.statistics = result;
+        this.statisticsValid = true;
+    }
+
+    /**
+     * Waits until all jobs have finished.
+     */
+    private static void waitFor(LinkedList<? extends Future<?>> jobs) {
+        for (Future<?> job : jobs) {
+            try {
+                job.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Returns item statistics of all sheets in the project. The returned object is a copy that is not updated.
+     */
+    synchronized public ItemStatistics getStatistics() {
+        calculateAll();
+
+        if (!statisticsValid) {
+            calculateStatistics();
+        }
+
+        return new ItemStatistics(statistics);
+    }
+
+    /**
+     * Re-grades all cached sheets.
+     * @return false if the column mapping is outdated and the scores were discarded instead.
+     */
+    private boolean regradeAll() {
+        if (!columnsValid) {
+            // Everything will be recalculated lazily
+            return false;
+        }
+
+        this.statisticsValid = false;
+
+        // Groups reset their answer keys before announcing a structure change
+        if (!isColumnMappingCurrent()) {
+            invalidateStructure();
+            return false;
+        }
+
+        updateKeys();
+
+        for (int slot = 0; slot < selections.length; slot++) {
+            if (selections[slot] != null) {
+                grade(slot);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Re-grades only the questions whose answer key has changed, and adjusts the totals.
+     * @return changed columns, or null if everything was re-graded or discarded
+     */
+    synchronized private int[] regradeChangedKeys() {
+        if (!columnsValid || !isColumnMappingCurrent()) {
+            regradeAll();
+            return null;
+        }
+
+        // Compare answer keys
+        int changedCount = 0;
+        int[] changed = new int[columnKeys.length];
+        for (int column = 0; column < columnKeys.length; column++) {
+            long key = columnGroups.get(column).getAnswerKeyMask(columnQuestions[column]);
+
+            // Keys of wide groups are truncated, so they are always re-graded
+            if (key != columnKeys[column] || !columnMasked[column]) {
+                columnKeys[column] = key;
+                changed[changedCount++] = column;
+            }
+        }
+        changed = Arrays.copyOf(changed, changedCount);
+
+        if (changedCount > 0) {
+            // Totals change, so the correlations of all questions change
+            this.statisticsValid = false;
+        }
+
+        GradingScheme grading = project.getGradingScheme();
+        for (int slot = 0; slot < selections.length; slot++) {
+            if (selections[slot] == null) {
+                continue;
+            }
+
+            double[] row = scores[slot];
+            for (int column : changed) {
+                double score = grade(grading, slot, column);
+                totals[slot] += score - row[column];
+                row[column] = score;
+            }
+        }
+
+        return changed;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= scores.length) {
+            return;
+        }
+
+        capacity = Math.max(capacity, scores.length * 2);
+
+        long[][] newSelections = new long[capacity][];
+        double[][] newScores = new double[capacity][];
+        double[] newTotals = new double[capacity];
+        Sheet[] newOwners = new Sheet[capacity];
+        System.arraycopy(selections, 0, newSelections, 0, selections.length);
+        System.arraycopy(scores, 0, newScores, 0, scores.length);
+        System.arraycopy(totals, 0, newTotals, 0, totals.length);
+        System.arraycopy(owners, 0, newOwners, 0, owners.length);
+
+        this.selections = newSelections;
+        this.scores = newScores;
+        this.totals = newTotals;
+        this.owners = newOwners;
+    }
+
+    /**
+     * Discards the cached selections and scores of a slot.
+     */
+    private void clearRow(int slot) {
+        if (selections[slot] != null && statisticsValid) {
+            statistics.remove(selections[slot], columnKeys, scores[slot], totals[slot]);
+        }
+
+        selections[slot] = null;
+        scores[slot] = null;
+    }
+
+    /**
+     * Discards the cached scores of one sheet, e.g. when its answers change.
+     */
+    synchronized public void invalidate(Sheet sheet) {
+        int slot = sheet.getSlot();
+        if (slot >= 0 && slot < scores.length && owners[slot] == sheet) {
+            clearRow(slot);
+        }
+    }
+
+    /**
+     * Discards all cached scores and selections.
+     */
+    synchronized public void invalidateAll() {
+        for (int slot = 0; slot < scores.length; slot++) {
+            selections[slot] = null;
+            scores[slot] = null;
+        }
+
+        this.statisticsValid = false;
+    }
+
+    /**
+     * Discards all cached scores and the column mapping.
+     */
+    synchronized public void invalidateStructure() {
+        this.columnsValid = false;
+        invalidateAll();
+    }
+
+    /**
+     * Notified by the SheetsContainer when answers of a sheet change, and by the SheetStructure when the structure or the answer key changes.
+     */
+    public void update(Observable source, Object event) {
+        if (source instanceof SheetsContainer) {
+            if (event instanceof Integer) {
+                // Payload is the position of the changed sheet
+                int index = (Integer)event;
+                if (index >= 0 && index < project.getAnswerSheets().size()) {
+                    invalidate(project.getAnswerSheets().get(index));
+                }
+            } else if (event instanceof BitSet) {
+                // Positions of the sheets that changed during a batch
+                BitSet rows = (BitSet)event;
+                AbstractList<Sheet> sheets = project.getAnswerSheets();
+                for (int index = rows.nextSetBit(0); index >= 0 && index < sheets.size(); index = rows.nextSetBit(index + 1)) {
+                    invalidate(sheets.get(index));
+                }
+            } else {
+                invalidateAll();
+            }
+        } else if (SheetStructureEvent.STRUCTURE_CHANGED == event) {
+            invalidateStructure();
+        } else if (SheetStructureEvent.ANSWER_KEY_CHANGED == event) {
+            int[] changed = regradeChangedKeys();
+
+            if (changed == null) {
+                setChanged();
+                notifyObservers();
+            } else if (changed.length > 0) {
+                setChanged();
+                notifyObservers(changed);
+            }
+        }
+    }
+}
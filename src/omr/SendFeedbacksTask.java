@@ -12,7 +12,7 @@ public class SendFeedbacksTask extends Task {
     }
     
     @Override
-    public void run() {
+    protected void execute() {
         SheetsContainer sheets = project.getSheetsContainer();
 
         this.setEstimatedOperationsCount(sheets.size());
@@ -21,18 +21,20 @@ public class SendFeedbacksTask extends Task {
         Mailer mailer = new Mailer();
         
         for (Sheet sheet : sheets) {
+            if (isCancelled()) {
+                return;
+            }
+
             try {
             	mailer.sendFeedback(project, sheet);
             } catch (Exception e) {
-                System.err.println(e);
-                break;
+                addError(e);
+                return;
             }
             
             // Publish progress
             this.increaseCompletedOperationsCount();
         }
-        
-        this.finished();
     }
 
 }
@@ -152,6 +152,9 @@ public class Serializer {
         sheetElement.setAttribute("id", sheet.getId());
         sheetElement.setAttribute("src", sheet.getFilePath());
         sheetElement.setAttribute("page", Integer.toString(sheet.getPage()));
+        if (sheet instanceof ZipSheet) {
+            sheetElement.setAttribute("entry", ((ZipSheet) sheet).getEntryName());
+        }
         sheetElement.setAttribute("rotation", Integer.toString(sheet.getRotation()));
         
         return sheetElement;
@@ -8,14 +8,26 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 import omr.QuestionGroup.Orientation;
-import org.imgscalr.Scalr;
 
 /**
  * Represents an answer sheet. A Sheet object contains bubble brighnesses and answers.
@@ -29,6 +41,11 @@ import org.imgscalr.Scalr;
  * @author Tapio Auvinen
  */
 public class Sheet extends Observable {
+    private static final int CROP_THRESHOLD_MARGIN = OMRProperties.getInt("review-crop-margin", 24);   // Brightness margin around thresholds for saving bubble crops
+    private static final int DOWNSAMPLE = Math.min(Math.max(OMRProperties.getInt("analysis-downsample", 1), 1), 16);  // Bubbles are first measured at the resolution of the reference sheet divided by this
+    private static final int REFINE_MARGIN = OMRProperties.getInt("analysis-refine-margin", 48);       // Bubbles within this margin of the thresholds are measured again at full resolution
+    private static final int MARKER_TOLERANCE = OMRProperties.getInt("analysis-marker-tolerance", 48); // Average marker difference above which a sheet is measured at full resolution
+    private static final int ANALYSIS_DPI = OMRProperties.getInt("analysis-dpi", 0);                     // Resolution at which sheets are analyzed. 0 means the resolution of the reference sheet.
 
     protected String id;         // Unique id of this sheet
     protected String fileName;   // e.g. AnswerSheet001.jpg
@@ -38,10 +55,11 @@ public class Sheet extends Observable {
     protected String studentIdNumber;  // Number part of the student id
     protected String studentIdLetter;  // Check letter of the student id
 
-    private HashMap<QuestionGroup, int[][]> brightness;      // [row][column]
     private HashMap<RegistrationMarker, Point> markers;      // Detected marker positions
-    private HashMap<QuestionGroup, int[][]> choices;         // Choices for each question group. [row][column] negative = black, 0 = uncertain, postive = white
-    private HashMap<QuestionGroup, int[][]> overrideChoices; // negative = force black, 0 = auto, postive = force white
+    private HashMap<RegistrationMarker, Integer> markerStamps; // Stamps of the markers when they were located
+    private ResultStore results;                             // Brightnesses, choices and overrides. Set when the sheet is added to a SheetsContainer.
+    private int slot;                                        // Slot of this sheet in the result store
+    private SheetsContainer container;                       // Container that indexes this sheet by id, null if not added
     protected String userId;     // Id of the student
 
     private Histogram histogram;
@@ -49,6 +67,8 @@ public class Sheet extends Observable {
     protected int rotation;                       // Rotation in degrees. 0, 90, 180 or 270
     protected AffineTransform transformation;     // Transformation that aligns the image with the reference sheet
     protected BufferedImage rawBuffer;            // Unaligned, un-zoomed buffer. The buffer is kept cached as long as the sheet has registered observers. Always TYPE_INT_RGB
+    protected Dimension imageSize;                // Size of the image before rotation as recorded in the file header. Null until the file is probed.
+    protected double resolution;                  // Resolution in dpi as recorded in the file, 0 if unknown, -1 until read
 
 
     public Dimension dimension(){
@@ -93,15 +113,46 @@ public class Sheet extends Observable {
         this.histogram = new Histogram(false);
 
         this.transformation = new AffineTransform();
+        this.resolution = -1;
 
         this.answersValid = false;
+        this.slot = -1;
+    }
+
+    /**
+     * Sets the store where the analysis results of this sheet are kept. Called by SheetsContainer.
+     * @param results Project-wide result store
+     * @param slot Slot allocated for this sheet
+     */
+    void setResultStore(ResultStore results, int slot) {
+        this.results = results;
+        this.slot = slot;
+    }
+
+    /**
+     * Sets the container that is told when the id of this sheet changes. Called by SheetsContainer.
+     */
+    void setContainer(SheetsContainer container) {
+        this.container = container;
+    }
+
+    /**
+     * Returns the slot of this sheet in the project's ResultStore, -1 if the sheet does not belong to a project.
+     */
+    public int getSlot() {
+        return this.slot;
     }
 
     /**
      * Sets the unique id of this sheet. This is used in serialization.
      */
     public void setId(String id) {
+        String oldId = this.id;
         this.id = id;
+
+        if (container != null) {
+            container.idChanged(this, oldId);
+        }
     }
 
     /**
@@ -127,9 +178,17 @@ public class Sheet extends Observable {
 
     /**
      * Returns true if the loaded file can be read by the OMR algorithm, ie. the file is in a proper format.
+     * The header of the file is read if the file has not been probed yet.
      */
     public boolean isValidFile() {
-        // TODO: validate file
+        if (imageSize == null) {
+            try {
+                probe();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
         return true;
     }
 
@@ -186,7 +245,7 @@ public class Sheet extends Observable {
     public SheetStatus getStatus() {
         if (answersValid) {
             return SheetStatus.ANALYZED;
-        } else if (this.choices != null) {
+        } else if (results != null && results.isChoicesValid(slot)) {
             return SheetStatus.ANALYZED_WITH_ERRORS;
         } else {
             return SheetStatus.NOT_ANALYZED;
@@ -245,6 +304,10 @@ public class Sheet extends Observable {
      */
     public void invalidateRegistration() {
         this.markers = null;
+        this.markerStamps = null;
+        if (results != null) {
+            results.clearGroupStamps(slot);
+        }
         invalidateBrightnesses();
     }
 
@@ -252,7 +315,9 @@ public class Sheet extends Observable {
      * Invalidates bubble brighnesses so that they will be recalculated next time analyze() is called.
      */
     public void invalidateBrightnesses() {
-        this.brightness = null;
+        if (results != null) {
+            results.setBrightnessValid(slot, false);
+        }
         invalidateAnswers();
     }
 
@@ -261,7 +326,9 @@ public class Sheet extends Observable {
      * Bubble brightnesses are not invalidated, so the only reason to call this is when the answer key is changed.
      */
     public void invalidateAnswers() {
-        this.choices = null;
+        if (results != null) {
+            results.setChoicesValid(slot, false);
+        }
     }
 
     /**
@@ -279,8 +346,18 @@ public class Sheet extends Observable {
      * @param unalignedBuffer Raw buffer
      */
     private BufferedImage getAlignedBuffer(BufferedImage unalignedBuffer) throws OutOfMemoryError, IOException {
+        return getAlignedBuffer(unalignedBuffer, null);
+    }
+
+    /**
+     * Returns an aligned, unzoomed buffer taken from the given pool.
+     *
+     * @param unalignedBuffer Raw buffer
+     * @param pool Pool where the result is taken, or null to allocate a new buffer
+     */
+    private BufferedImage getAlignedBuffer(BufferedImage unalignedBuffer, BufferPool pool) throws OutOfMemoryError, IOException {
         // Transform the unaligned buffer
-        BufferedImage transformedBuffer = new BufferedImage(unalignedBuffer.getWidth(), unalignedBuffer.getHeight(), BufferedImage.TYPE_INT_RGB);
+        BufferedImage transformedBuffer = acquireBlank(pool, unalignedBuffer.getWidth(), unalignedBuffer.getHeight());
         Graphics2D g = transformedBuffer.createGraphics();
         g.drawRenderedImage(unalignedBuffer, this.transformation);
         g.dispose();
@@ -321,35 +398,19 @@ public class Sheet extends Observable {
         }
 
         // Load image
-        BufferedImage tempBuffer = ImageIO.read(new File(filePath));  // read() returns null if image format is unsupported
-
-        if (tempBuffer == null) {
-            throw new IOException("Image " + fileName + " cannot be opened. Unsupported format.");
-        }
+        BufferedImage tempBuffer = decodeImage(null);
 
         // Convert to the required bit format and rotate
         BufferedImage convertedBuffer;
-        AffineTransform transform;
-
-        if (this.rotation == 90) {
-            convertedBuffer = new BufferedImage(tempBuffer.getHeight(), tempBuffer.getWidth(), BufferedImage.TYPE_INT_RGB);
-            transform = AffineTransform.getTranslateInstance(tempBuffer.getHeight(), 0);
-        } else if (this.rotation == 180) {
-            convertedBuffer = new BufferedImage(tempBuffer.getWidth(), tempBuffer.getHeight(), BufferedImage.TYPE_INT_RGB);
-            transform = AffineTransform.getTranslateInstance(tempBuffer.getWidth(), tempBuffer.getHeight());
-        } else if (this.rotation == 270) {
+        if (this.rotation == 90 || this.rotation == 270) {
             convertedBuffer = new BufferedImage(tempBuffer.getHeight(), tempBuffer.getWidth(), BufferedImage.TYPE_INT_RGB);
-            transform = AffineTransform.getTranslateInstance(0, tempBuffer.getWidth());
         } else {
             convertedBuffer = new BufferedImage(tempBuffer.getWidth(), tempBuffer.getHeight(), BufferedImage.TYPE_INT_RGB);
-            transform = new AffineTransform();
         }
 
-        transform.concatenate(AffineTransform.getRotateInstance(Math.toRadians(this.rotation)));
-
         // Rotate
         Graphics2D g = convertedBuffer.createGraphics();
-        g.drawRenderedImage(tempBuffer, transform);
+        g.drawRenderedImage(tempBuffer, getRotationTransform(tempBuffer.getWidth(), tempBuffer.getHeight()));
         g.dispose();
 
         // Cache buffer if there are observers
@@ -370,11 +431,381 @@ public class Sheet extends Observable {
      * @throws IOException
      */
     public BufferedImage getUnalignedBuffer(int newWidth, int newHeight) throws OutOfMemoryError, IOException {
-        BufferedImage originalImage =  getUnalignedBuffer();
-        // now scale it...
-        BufferedImage newImage =
-                Scalr.resize(originalImage, Scalr.Method.BALANCED, newWidth, newHeight);
-        return newImage ;
+        return render(newWidth, newHeight, null, null);
+    }
+
+    /**
+     * Opens the image file for reading. Sheets whose images are not plain files, e.g. entries of an archive, override this.
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    protected ImageInputStream openImage() throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(new File(filePath));
+        if (input == null) {
+            throw new IOException("Image " + fileName + " cannot be opened.");
+        }
+
+        return input;
+    }
+
+    /**
+     * Decodes the image file without rotating or converting it.
+     *
+     * @param pool Pool that provides the image reader and the decoded image, or null
+     */
+    protected BufferedImage decodeImage(BufferPool pool) throws OutOfMemoryError, IOException {
+        if (pool == null) {
+            ImageInputStream input = openImage();
+            BufferedImage image = ImageIO.read(input);  // read() closes the stream, or returns null if image format is unsupported
+
+            if (image == null) {
+                input.close();
+                throw new IOException("Image " + fileName + " cannot be opened. Unsupported format.");
+            }
+
+            return image;
+        }
+
+        ImageInputStream input = openImage();
+        try {
+            ImageReader reader = pool.getReader(input);
+            if (reader == null) {
+                throw new IOException("Image " + fileName + " cannot be opened. Unsupported format.");
+            }
+
+            reader.setInput(input, true, true);
+            try {
+                // Decode into a pooled image of the type that ImageIO.read() would choose
+                ImageReadParam param = reader.getDefaultReadParam();
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                ImageTypeSpecifier type = types.hasNext() ? types.next() : null;
+                if (type != null && type.getBufferedImageType() != BufferedImage.TYPE_CUSTOM) {
+                    param.setDestination(pool.acquire(reader.getWidth(0), reader.getHeight(0), type.getBufferedImageType()));
+                }
+
+                return reader.read(0, param);
+            } finally {
+                reader.setInput(null);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the header of the image file to check that the file can be decoded, and records the size of the image.
+     * Pixels are not decoded, so this is fast enough to be done for every file when sheets are imported.
+     *
+     * @throws IOException if the file cannot be opened or its format is not supported
+     */
+    public void probe() throws IOException {
+        readHeader(false);
+    }
+
+    /**
+     * Returns the size of the image in pixels before rotation, as recorded in the header of the file.
+     *
+     * @return size, or null if the file has not been probed
+     */
+    public Dimension getImageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Returns the resolution of the image file in dots per inch, as recorded by the scanner. Only the header of the file is read.
+     *
+     * @return resolution, or 0 if the file does not tell it
+     */
+    public double getResolution() throws IOException {
+        if (resolution < 0) {
+            readHeader(true);
+        }
+
+        return resolution;
+    }
+
+    /**
+     * Reads the size of the image, and optionally its resolution, from the header of the file.
+     *
+     * @param readResolution True to read the metadata that contains the resolution
+     */
+    private void readHeader(boolean readResolution) throws IOException {
+        ImageInputStream input = openImage();
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Image " + fileName + " cannot be opened. Unsupported format.");
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, !readResolution);
+
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (width <= 0 || height <= 0) {
+                    throw new IOException("Image " + fileName + " is empty.");
+                }
+                this.imageSize = new Dimension(width, height);
+
+                if (readResolution) {
+                    this.resolution = readResolution(reader.getImageMetadata(0));
+                }
+            } catch (RuntimeException e) {
+                // Readers throw e.g. IndexOutOfBoundsException for files that have no images
+                throw new IOException("Image " + fileName + " cannot be read. " + e.getMessage());
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the resolution in dots per inch given by standard image metadata, or 0 if the metadata does not tell it.
+     */
+    private static double readResolution(IIOMetadata metadata) {
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+            return 0;
+        }
+
+        // Standard metadata gives the size of a pixel in millimeters
+        Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (!"Dimension".equals(node.getNodeName())) {
+                continue;
+            }
+
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                NamedNodeMap attributes = child.getAttributes();
+                Node value = attributes == null ? null : attributes.getNamedItem("value");
+                if ("HorizontalPixelSize".equals(child.getNodeName()) && value != null) {
+                    try {
+                        double pixelSize = Double.parseDouble(value.getNodeValue());
+                        return pixelSize > 0 ? 25.4 / pixelSize : 0;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Renders the image directly at the given size, rotated by the rotation of this sheet. Formats that can be rendered
+     * at any resolution, e.g. PDF, override this to avoid decoding at one size and resampling to another.
+     *
+     * @param width Width of the result after rotation
+     * @param height Height of the result after rotation
+     * @param pool Pool that provides the result, or null
+     * @return TYPE_INT_RGB image, or null if the format must be decoded with decodeImage(BufferPool) and scaled
+     */
+    protected BufferedImage decodeImage(int width, int height, BufferPool pool) throws OutOfMemoryError, IOException {
+        return null;
+    }
+
+    /**
+     * Returns a TYPE_INT_RGB image whose pixels are black.
+     *
+     * @param pool Pool where the image is taken, or null to allocate a new image
+     */
+    private static BufferedImage acquireBlank(BufferPool pool, int width, int height) {
+        if (pool == null) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        BufferedImage image = pool.acquire(width, height, BufferedImage.TYPE_INT_RGB);
+        Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0);
+        return image;
+    }
+
+    /**
+     * Returns the transformation that rotates a decoded image of the given size by the rotation of this sheet.
+     */
+    protected AffineTransform getRotationTransform(int width, int height) {
+        AffineTransform transform;
+        if (this.rotation == 90) {
+            transform = AffineTransform.getTranslateInstance(height, 0);
+        } else if (this.rotation == 180) {
+            transform = AffineTransform.getTranslateInstance(width, height);
+        } else if (this.rotation == 270) {
+            transform = AffineTransform.getTranslateInstance(0, width);
+        } else {
+            transform = new AffineTransform();
+        }
+
+        transform.concatenate(AffineTransform.getRotateInstance(Math.toRadians(this.rotation)));
+        return transform;
+    }
+
+    /**
+     * Decoded image of a sheet and the transformation that rotates and scales it to the analysis resolution.
+     * Structure coordinates are pixels of the reference sheet. They are multiplied by scale to get pixels of the source.
+     */
+    private static class SourceImage {
+        BufferedImage image;          // Decoded image, or the cached unaligned buffer
+        AffineTransform transform;    // Rotation and scaling to the analysis resolution
+        boolean scaled;               // True if the image is scaled, in which case it is interpolated
+        double scale;                 // Analysis resolution relative to the reference sheet
+        int width;                    // Size of the reference sheet at the analysis resolution
+        int height;
+    }
+
+    /**
+     * Decodes the image, or takes the cached unaligned buffer, for rendering it with render() or renderArea() at the size of the reference sheet.
+     * Close it with closeSource().
+     *
+     * @param width Width of the reference sheet
+     * @param height Height of the reference sheet
+     * @param pool Pool that provides the decoded image, or null
+     */
+    private SourceImage openSource(int width, int height, BufferPool pool) throws OutOfMemoryError, IOException {
+        return openSource(width, height, 1.0, false, pool);
+    }
+
+    /**
+     * Decodes the image, or takes the cached unaligned buffer, for rendering it at the given resolution.
+     * Close it with closeSource().
+     *
+     * @param width Width of the reference sheet
+     * @param height Height of the reference sheet
+     * @param scale Analysis resolution relative to the reference sheet
+     * @param limit If true, the scale is reduced so that the decoded image is not enlarged
+     * @param pool Pool that provides the decoded image, or null
+     */
+    private SourceImage openSource(int width, int height, double scale, boolean limit, BufferPool pool) throws OutOfMemoryError, IOException {
+        SourceImage source = new SourceImage();
+        source.image = this.rawBuffer;
+        source.transform = new AffineTransform();
+        source.scale = scale;
+        source.width = toAnalysis(width, scale);
+        source.height = toAnalysis(height, scale);
+
+        if (source.image == null) {
+            // Rendered directly at the analysis size and orientation if the format allows it
+            source.image = decodeImage(source.width, source.height, pool);
+            if (source.image != null) {
+                return source;
+            }
+        }
+
+        int rotatedWidth;
+        int rotatedHeight;
+        if (source.image != null) {
+            // Cached buffer is already rotated
+            rotatedWidth = source.image.getWidth();
+            rotatedHeight = source.image.getHeight();
+        } else {
+            source.image = decodeImage(pool);
+            boolean sideways = this.rotation == 90 || this.rotation == 270;
+            rotatedWidth = sideways ? source.image.getHeight() : source.image.getWidth();
+            rotatedHeight = sideways ? source.image.getWidth() : source.image.getHeight();
+        }
+
+        // Sheets scanned at a lower resolution are analyzed at their own resolution
+        if (limit && rotatedWidth < source.width) {
+            source.scale = (double) rotatedWidth / width;
+            source.width = rotatedWidth;
+            source.height = toAnalysis(height, source.scale);
+        }
+
+        // Compose scale * rotation
+        source.scaled = rotatedWidth != source.width || rotatedHeight != source.height;
+        if (source.scaled) {
+            source.transform.scale((double) source.width / rotatedWidth, (double) source.height / rotatedHeight);
+        }
+        if (source.image != this.rawBuffer) {
+            source.transform.concatenate(getRotationTransform(source.image.getWidth(), source.image.getHeight()));
+        }
+
+        return source;
+    }
+
+    /**
+     * Returns the decoded image of the source to the pool. Does nothing if source is null.
+     */
+    private void closeSource(SourceImage source, BufferPool pool) {
+        if (source != null && pool != null && source.image != this.rawBuffer) {
+            pool.release(source.image);
+        }
+    }
+
+    /**
+     * Renders the sheet into a new TYPE_INT_RGB buffer in a single resampling pass. Rotation, scaling to the given size
+     * and the alignment are composed into one transformation that is applied directly to the decoded image,
+     * or to the cached unaligned buffer if it is available. Scaling is skipped when the size already matches.
+     *
+     * @param width Width of the result, usually the width of the reference sheet
+     * @param height Height of the result
+     * @param alignment Transformation applied after rotating and scaling, or null
+     * @param pool Pool that provides the scratch images, or null. The decoded image is returned to the pool.
+     */
+    private BufferedImage render(int width, int height, AffineTransform alignment, BufferPool pool) throws OutOfMemoryError, IOException {
+        SourceImage source = openSource(width, height, pool);
+
+        // The decoded image can be used as such if nothing needs to be done. The cached buffer is shared, so it is always copied.
+        if ((alignment == null || alignment.isIdentity()) && source.transform.isIdentity() && source.image != this.rawBuffer
+                && source.image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return source.image;
+        }
+
+        BufferedImage result = render(source, width, height, alignment, pool);
+        closeSource(source, pool);
+        return result;
+    }
+
+    /**
+     * Renders an opened source into a new TYPE_INT_RGB buffer in a single resampling pass.
+     * The image is interpolated only if the source is scaled, so a downsampled result samples every n'th pixel.
+     *
+     * @param width Width of the result
+     * @param height Height of the result
+     * @param transform Transformation from the coordinates of the source to the result, or null.
+     *                  Includes scaling if the result is not of the size of the source.
+     */
+    private static BufferedImage render(SourceImage source, int width, int height, AffineTransform transform, BufferPool pool) {
+        AffineTransform composed = transform != null ? new AffineTransform(transform) : new AffineTransform();
+        composed.concatenate(source.transform);
+
+        BufferedImage result = acquireBlank(pool, width, height);
+        Graphics2D g = result.createGraphics();
+        if (source.scaled) {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        g.drawRenderedImage(source.image, composed);
+        g.dispose();
+
+        return result;
+    }
+
+    /**
+     * Renders a rectangle of the sheet at the resolution of the source. The result has the same pixels as the
+     * corresponding area of a full render(). Pixels outside the sheet are black.
+     *
+     * @param alignment Alignment transformation in the coordinates of the source, or null for the unaligned sheet
+     * @param left Left edge of the rectangle in the coordinates of the source
+     * @param top Top edge of the rectangle
+     */
+    private static BufferedImage renderArea(SourceImage source, AffineTransform alignment, int left, int top, int width, int height, BufferPool pool) {
+        AffineTransform composed = AffineTransform.getTranslateInstance(-left, -top);
+        if (alignment != null) {
+            composed.concatenate(alignment);
+        }
+        composed.concatenate(source.transform);
+
+        BufferedImage result = acquireBlank(pool, width, height);
+        Graphics2D g = result.createGraphics();
+        g.clipRect(0, 0, source.width - left, source.height - top);
+        if (source.scaled) {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        g.drawRenderedImage(source.image, composed);
+        g.dispose();
+
+        return result;
     }
 
     /**
@@ -404,25 +835,32 @@ public class Sheet extends Observable {
      * @return negative number if the bubble is clearly filled, 0 if uncertain, positive if the bubble is clearly unfilled
      */
     public int getAnswer(QuestionGroup group, int row, int column) {
-        if (this.choices == null) {
+        if (results == null || !results.isChoicesValid(slot)) {
             return 0;
         }
 
-        int[][] choices = this.choices.get(group);
-        if (choices == null) {
+        int bubble = results.getBubbleIndex(group, row, column);
+        if (bubble < 0) {
             return 0;
         }
 
-        int[][] overrideChoices = null;
-        if (this.overrideChoices != null) {
-            overrideChoices = this.overrideChoices.get(group);
-        }
+        return results.getAnswer(slot, bubble);
+    }
 
-        if (overrideChoices != null && overrideChoices[row][column] != 0) {
-            return overrideChoices[row][column];
-        } else {
-            return choices[row][column];
+    /**
+     * Returns the selected alternatives of a question as a bit mask. Bit i is set if alternative i is clearly filled,
+     * taking overrides into account. Only the first QuestionGroup.MAX_MASK_ALTERNATIVES alternatives are included.
+     *
+     * @param group    Question group with VERTICAL or HORIZONTAL orientation
+     * @param question Local question number [0,n]
+     */
+    public long getSelectionMask(QuestionGroup group, int question) {
+        if (results == null || !results.isChoicesValid(slot)) {
+            return 0;
         }
+
+        int count = Math.min(group.getAlternativesCount(), QuestionGroup.MAX_MASK_ALTERNATIVES);
+        return results.getSelectionMask(slot, group, question, group.getOrientation() == Orientation.HORIZONTAL, count);
     }
 
     /**
@@ -434,42 +872,40 @@ public class Sheet extends Observable {
      * @return negative = force black, 0 = auto, postive = force white
      */
     public int getAnswerOverride(QuestionGroup group, int row, int column) {
-        if (this.overrideChoices == null) {
+        if (results == null) {
             return 0;
         }
 
-        int[][] overrideChoices = this.overrideChoices.get(group);
-        if (overrideChoices == null) {
+        int bubble = results.getBubbleIndex(group, row, column);
+        if (bubble < 0) {
             return 0;
         }
 
-        return overrideChoices[row][column];
+        return results.getOverride(slot, bubble);
     }
 
     /**
      * Toggles the answer override between "force black", "force white" and "auto".
      */
     public void toggleAnswer(QuestionGroup group, int row, int column) {
-        // Create override array if it doesn't exist
-        if (this.overrideChoices == null) {
-            this.overrideChoices = new HashMap<QuestionGroup, int[][]>();
+        if (results == null) {
+            return;
         }
 
-        // Create override array for this group if necessary
-        int[][] overrideChoices = this.overrideChoices.get(group);
-        if (overrideChoices == null) {
-            overrideChoices = new int[group.getRowCount()][group.getColumnCount()];
-            this.overrideChoices.put(group, overrideChoices);
+        int bubble = results.getBubbleIndex(group, row, column);
+        if (bubble < 0) {
+            return;
         }
 
         // Toggle between 1, 0, -1
-        overrideChoices[row][column]--;
-        if (overrideChoices[row][column] < -1) {
-            overrideChoices[row][column] = 1;
+        int override = results.getOverride(slot, bubble) - 1;
+        if (override < -1) {
+            override = 1;
         }
+        results.setOverride(slot, bubble, override);
 
         // Update answer validity
-        validateAnswers(group);
+        validateAnswers();
 
         // Notify observers
         setChanged();
@@ -480,33 +916,19 @@ public class Sheet extends Observable {
      * Checks if all answers are either detected with certainty or manually overridden.
      * Use getStatus() to get the result.
      */
-    private void validateAnswers(QuestionGroup group) {
-        if (this.choices == null) {
+    private void validateAnswers() {
+        if (results == null || !results.isChoicesValid(slot)) {
             this.answersValid = false;
             return;
         }
 
-        for (QuestionGroup key : this.choices.keySet()) {
-            int[][] choices = this.choices.get(key);
-            if (choices == null) {
+        // Check that all uncertain answers are overridden
+        int bubbleCount = results.getBubbleCount();
+        for (int bubble = 0; bubble < bubbleCount; bubble++) {
+            if (results.getAnswer(slot, bubble) == 0) {
                 this.answersValid = false;
                 return;
             }
-
-            int[][] overrideChoices = null;
-            if (this.overrideChoices != null) {
-                overrideChoices = this.overrideChoices.get(key);
-            }
-
-            for (int row = 0; row < choices.length; row++) {
-                for (int col = 0; col < choices[row].length; col++) {
-                    // Check that all uncertain answers are overridden
-                    if (choices[row][col] == 0 && (overrideChoices == null || overrideChoices[row][col] == 0)) {
-                        this.answersValid = false;
-                        return;
-                    }
-                }
-            }
         }
 
         this.answersValid = true;
@@ -520,12 +942,7 @@ public class Sheet extends Observable {
      * @return e.g. "AC", null if choices have not been calculated by calling analyze().
      */
     public String getChoices(QuestionGroup group, int question) {
-        if (this.choices == null) {
-            return null;
-        }
-
-        int[][] choices = this.choices.get(group);
-        if (choices == null) {
+        if (results == null || !results.isChoicesValid(slot) || results.getOffset(group) < 0) {
             return null;
         }
 
@@ -577,16 +994,16 @@ public class Sheet extends Observable {
      * @return average value of the pixels contained by the bubble [0...255]. 255 if the sheet has not been analyzed.
      */
     public int getBubbleBrightness(QuestionGroup group, int row, int column) {
-        if (this.brightness == null) {
+        if (results == null || !results.isBrightnessValid(slot)) {
             return 255;
         }
 
-        int[][] brightnessArray = this.brightness.get(group);
-        if (brightnessArray == null) {
+        int bubble = results.getBubbleIndex(group, row, column);
+        if (bubble < 0) {
             return 255;
         }
 
-        return brightnessArray[row][column];
+        return results.getBrightness(slot, bubble);
     }
 
     /**
@@ -608,46 +1025,265 @@ public class Sheet extends Observable {
     /**
      * Locates registration markers, aligns the sheet, calculates brightness values of the bubbles, and calcualtes answers.
      * Results are cached. Use invalidate*() to flush cache.
+     * <p>
+     * Results are kept per marker and per question group: only markers that have been added or changed since the last analysis
+     * are located again, and only groups that have been moved or resized are measured again, unless the alignment of the sheet changes.
+     * The image is not loaded at all if nothing needs to be recalculated.
+     * <p>
+     * Brightnesses are counted in the histogram of this sheet only. The caller is responsible for merging it into the global histogram.
      *
      * @param structure Sheet structure that contains positions of the markers and bubbles.
+     * @param exampleHistogram Histogram where example bubble images are collected. Not thread-safe, so each analysis worker should have its own.
+     */
+    public void analyze(SheetStructure structure, Histogram exampleHistogram) throws OutOfMemoryError, IOException {
+        analyze(structure, exampleHistogram, null);
+    }
+
+    /**
+     * Analyzes the sheet like analyze(SheetStructure, Histogram) and saves crops of doubtful bubbles into the given atlas
+     * so that they can be reviewed without loading the sheet.
+     *
+     * @param atlas Atlas where crops are stored, or null
+     */
+    public void analyze(SheetStructure structure, Histogram exampleHistogram, BubbleAtlas atlas) throws OutOfMemoryError, IOException {
+        BufferPool pool = new BufferPool();
+        try {
+            analyze(structure, exampleHistogram, atlas, pool);
+        } finally {
+            pool.dispose();
+        }
+    }
+
+    /**
+     * Analyzes the sheet like analyze(SheetStructure, Histogram, BubbleAtlas) using scratch images and image readers from the given pool.
+     * All images taken from the pool are returned to it, so analyzing a series of sheets of the same size does not allocate new images.
+     *
+     * @param pool Pool owned by the calling thread
      */
-    public void analyze(SheetStructure structure, Histogram globalHistogram) throws OutOfMemoryError, IOException {
+    public void analyze(SheetStructure structure, Histogram exampleHistogram, BubbleAtlas atlas, BufferPool pool) throws OutOfMemoryError, IOException {
+        if (results == null) {
+            throw new IllegalStateException("Sheet " + id + " does not belong to a project");
+        }
 
         Dimension dim = structure.getReferenceSheet().dimension();
 
-        BufferedImage unalignedBuffer = getUnalignedBuffer( dim.width, dim.height );
+        int downsample = DOWNSAMPLE;            // Set to 1 if the sheet needs to be analyzed at full resolution
+        double analysisScale = getAnalysisScale(structure);
+        boolean windowed = DOWNSAMPLE > 1 || ANALYSIS_DPI > 0;   // Markers are located by rendering only their search windows
 
-        // Locate registration markers
-        if (this.markers == null) {
-            // Invalidate everything when alignemnt changes
-            this.invalidateBrightnesses();
+        SourceImage source = null;              // Decoded image. Kept open for measuring details at full resolution.
+
+        BufferedImage unalignedBuffer = null;   // Loaded when needed
+        BufferedImage alignedBuffer = null;
+        try {
+            // Locate registration markers that have been added or changed
+            if (this.markers == null) {
+                this.markers = new HashMap<RegistrationMarker, Point>();
+                this.markerStamps = new HashMap<RegistrationMarker, Integer>();
+            }
+            markers.keySet().retainAll(structure.getRegistrationMarkers());
+            markerStamps.keySet().retainAll(structure.getRegistrationMarkers());
 
-            this.markers = new HashMap<RegistrationMarker, Point>();
             for (RegistrationMarker marker : structure.getRegistrationMarkers()) {
+                Integer stamp = markerStamps.get(marker);
+                if (stamp != null && stamp == marker.getStamp()) {
+                    continue;
+                }
+
+                // The stamp is read before locating so that a concurrent change is noticed next time
+                markerStamps.put(marker, marker.getStamp());
+
+                if (windowed) {
+                    // Only the search window is rendered
+                    if (source == null) {
+                        source = openSource(dim.width, dim.height, analysisScale, ANALYSIS_DPI > 0, pool);
+                    }
+                    if (locateMarker(source, marker, pool)) {
+                        continue;
+                    }
+
+                    // Poor match. The sheet may be damaged or misplaced, so it is measured at full resolution.
+                    downsample = 1;
+                    continue;
+                }
+
+                if (unalignedBuffer == null) {
+                    unalignedBuffer = source != null ? render(source, dim.width, dim.height, null, pool) : render(dim.width, dim.height, null, pool);
+                }
                 locateMarker(unalignedBuffer, marker);
             }
+
+            // Calculate transformation. Every bubble moves if it changes.
+            AffineTransform previousTransformation = this.transformation;
+            calculateTransformation(structure);
+            if (!transformation.equals(previousTransformation)) {
+                results.clearGroupStamps(slot);
+                this.invalidateBrightnesses();
+            }
+
+            // Calculate bubble brightnesses
+            if (!results.isBrightnessValid(slot)) {
+                // Invalidate answers when brightnesses change
+                this.invalidateAnswers();
+
+                int generation = results.getGeneration();
+
+                // Measure the groups that have changed since they were last measured
+                ArrayList<QuestionGroup> measuredGroups = new ArrayList<QuestionGroup>();
+                ArrayList<Integer> measuredStamps = new ArrayList<Integer>();
+                for (QuestionGroup group : results.getQuestionGroups()) {
+                    int stamp = group.getGeometryStamp();
+                    if (results.getGroupStamp(slot, group) == stamp) {
+                        continue;
+                    }
+
+                    if (alignedBuffer == null) {
+                        if (windowed) {
+                            if (source == null) {
+                                source = openSource(dim.width, dim.height, analysisScale, ANALYSIS_DPI > 0, pool);
+                            }
+                            AffineTransform transform = AffineTransform.getScaleInstance(1.0 / downsample, 1.0 / downsample);
+                            transform.concatenate(getAlignment(source.scale));
+                            alignedBuffer = render(source, source.width / downsample, source.height / downsample, transform, pool);
+                        } else if (unalignedBuffer != null) {
+                            // Already decoded for locating markers
+                            alignedBuffer = getAlignedBuffer(unalignedBuffer, pool);
+                        } else if (source != null) {
+                            alignedBuffer = render(source, dim.width, dim.height, this.transformation, pool);
+                        } else {
+                            alignedBuffer = render(dim.width, dim.height, this.transformation, pool);
+                        }
+                        pool.release(unalignedBuffer);  // Not needed any more
+                        unalignedBuffer = null;
+                    }
+
+                    calculateBrightnesses(alignedBuffer, group, exampleHistogram, source != null ? source.scale : 1.0, downsample);
+                    measuredGroups.add(group);
+                    measuredStamps.add(stamp);
+                }
+
+                if (downsample > 1) {
+                    for (QuestionGroup group : measuredGroups) {
+                        refineBrightnesses(source, group, pool);
+                    }
+                }
+
+                // Results are discarded if the layout was changed during the analysis
+                if (generation == results.getGeneration()) {
+                    for (int i = 0; i < measuredGroups.size(); i++) {
+                        results.setGroupStamp(slot, measuredGroups.get(i), measuredStamps.get(i));
+                    }
+                    results.setBrightnessValid(slot, true);
+                }
+
+                // Count all bubbles in the histogram, including the ones that were not measured again
+                countBrightnesses();
+
+                // Calculate threshold
+                this.histogram.guessThreshold();
+
+                if (atlas != null && generation == results.getGeneration()) {
+                    storeCrops(alignedBuffer, atlas, generation, measuredGroups, (source != null ? source.scale : 1.0) / downsample);
+                }
+            }
+        } finally {
+            pool.release(unalignedBuffer);
+            pool.release(alignedBuffer);
+            closeSource(source, pool);
         }
+    }
 
-        // Calculate transformation
-        calculateTransformation(structure);
+    /**
+     * Returns the resolution at which sheets are analyzed relative to the reference sheet. Sheets are analyzed at the
+     * resolution of the reference sheet if the analysis resolution is not set or the resolution of the reference sheet is not known.
+     */
+    private static double getAnalysisScale(SheetStructure structure) {
+        double referenceResolution = structure.getReferenceResolution();
+        if (ANALYSIS_DPI <= 0 || referenceResolution <= 0) {
+            return 1.0;
+        }
+
+        return ANALYSIS_DPI / referenceResolution;
+    }
+
+    /**
+     * Returns the alignment transformation in the coordinates of a source of the given scale.
+     */
+    private AffineTransform getAlignment(double scale) {
+        if (scale == 1.0) {
+            return this.transformation;
+        }
+
+        AffineTransform alignment = AffineTransform.getScaleInstance(scale, scale);
+        alignment.concatenate(this.transformation);
+        alignment.scale(1.0 / scale, 1.0 / scale);
+        return alignment;
+    }
+
+    /**
+     * Converts a length in the coordinates of the reference sheet to pixels at the given scale.
+     */
+    private static int toAnalysis(int length, double scale) {
+        return (int) Math.round(length * scale);
+    }
 
-        // Calculate bubble brightnesses
-        if (this.brightness == null) {
-            // Invalidate answers when brightnesses change
-            this.invalidateAnswers();
+    /**
+     * Converts a coordinate at the given scale to the coordinates of the reference sheet.
+     */
+    private static int toReference(int position, double scale) {
+        return (int) Math.round(position / scale);
+    }
 
-            this.histogram.reset();
-            this.brightness = new HashMap<QuestionGroup, int[][]>();
+    /**
+     * Counts the brightnesses of all bubbles of this sheet in the histogram of this sheet.
+     */
+    private void countBrightnesses() {
+        this.histogram.reset();
+        for (int bubble = 0; bubble < results.getBubbleCount(); bubble++) {
+            this.histogram.increase(results.getBrightness(slot, bubble));
+        }
+    }
 
-            BufferedImage alignedBuffer = getAlignedBuffer(unalignedBuffer);
+    /**
+     * Saves crops of the bubbles that are near or between the thresholds of this sheet. The global thresholds are not known
+     * during the analysis, so a margin is added around the sheet's own thresholds.
+     *
+     * @param groups Groups that were measured. Crops of the other groups are kept.
+     * @param scale Size of the buffer relative to the reference sheet
+     */
+    private void storeCrops(BufferedImage buffer, BubbleAtlas atlas, int generation, List<QuestionGroup> groups, double scale) {
+        int black = histogram.getBlackThreshold() - CROP_THRESHOLD_MARGIN;
+        int white = histogram.getWhiteThreshold() + CROP_THRESHOLD_MARGIN;
 
-            unalignedBuffer = null;  // Not needed any more
-            for (QuestionGroup group : structure.getQuestionGroups()) {
-                calculateBrightnesses(alignedBuffer, group, globalHistogram);
+        for (QuestionGroup group : groups) {
+            int firstBubble = results.getOffset(group);
+            int rowCount = group.getRowCount();
+            int columnCount = group.getColumnCount();
+            if (firstBubble < 0) {
+                continue;
             }
 
-            // Calculate threshold
-            this.histogram.guessThreshold();
+            atlas.release(slot, firstBubble, rowCount * columnCount);
+
+            double columnSpacing = columnCount <= 1 ? 0 : (double) group.getWidth() / (columnCount - 1);
+            double rowSpacing = rowCount <= 1 ? 0 : (double) group.getHeight() / (rowCount - 1);
+
+            // The crop covers three bubbles in each direction so that the neighbours can be compared
+            int size = (int) (3 * Math.max(group.getBubbleWidth(), group.getBubbleHeight()) * scale);
+
+            for (int row = 0; row < rowCount; row++) {
+                for (int col = 0; col < columnCount; col++) {
+                    int bubble = firstBubble + row * columnCount + col;
+                    int brightness = results.getBrightness(slot, bubble);
+                    if (brightness < black || brightness >= white) {
+                        continue;
+                    }
+
+                    int centerX = (int) ((group.getLeftX() + col * columnSpacing) * scale);
+                    int centerY = (int) ((group.getTopY() + row * rowSpacing) * scale);
+                    atlas.store(generation, slot, bubble, buffer, centerX - size / 2, centerY - size / 2, size);
+                }
+            }
         }
     }
 
@@ -723,16 +1359,20 @@ public class Sheet extends Observable {
      * Calculates average bubble brightnesses in the given group.
      *
      * @param group QuestionGroup from SheetStructure.
+     * @param exampleHistogram Histogram where example bubbles are copied
+     * @param scale Analysis resolution relative to the reference sheet
+     * @param downsample Resolution of the buffer is the analysis resolution divided by this
      */
-    private void calculateBrightnesses(final BufferedImage buffer, final QuestionGroup group, Histogram globalHistogram) {
+    private void calculateBrightnesses(final BufferedImage buffer, final QuestionGroup group, Histogram exampleHistogram, final double scale, final int downsample) {
         final int[] array = ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData(); // Image buffer
 
-        // Initialize the array where brightness values are saved
-        int[][] brightnessArray = new int[group.getRowCount()][group.getColumnCount()];
-        this.brightness.put(group, brightnessArray);
+        final int firstBubble = results.getOffset(group);   // Index of the first bubble of this group in the result store
+        if (firstBubble < 0) {
+            return;
+        }
 
         // Prepare histogram
-        BufferedImage[] histogramExamples = globalHistogram.getExamples();
+        BufferedImage[] histogramExamples = exampleHistogram.getExamples();
 
         final int bufferWidth = buffer.getWidth();
         final int bufferHeight = buffer.getHeight();
@@ -752,60 +1392,181 @@ public class Sheet extends Observable {
         for (int row = 0; row < rowCount; row++) {
             final int bubbleY = Math.max((int) (group.getTopY() - bubbleHeight / 2 + row * rowSpacing), 0);  // Top edge y coordinate
 
+            // Rows of a downsampled buffer whose samples are inside the bubble
+            final int sampleY = toSample(bubbleY, scale, downsample);
+            final int sampleHeight = toSample(bubbleY + bubbleHeight, scale, downsample) - sampleY;
+
             // Iterate through each bubble on the row
             for (int col = 0; col < columnCount; col++) {
                 final int bubbleX = Math.max((int) (group.getLeftX() - bubbleWidth / 2 + col * columnSpacing), 0);  // Left edge x coordinate
 
-                // Read every pixel in the bubble
-                long sum = 0;
-                final int bubbleBottomY = Math.min(bubbleY + bubbleHeight, bufferHeight - 1);     // Bottom edge y coordinate
-                final int bubbleRightX = Math.min(bubbleX + bubbleWidth, bufferWidth);        // Right edge x coordinate
+                final int sampleX = toSample(bubbleX, scale, downsample);
+                final int sampleWidth = toSample(bubbleX + bubbleWidth, scale, downsample) - sampleX;
 
-                for (int y = bubbleY; y < bubbleBottomY; y++) {
-                    int offset = y * bufferWidth;
+                final int bubbleBottomY = Math.min(sampleY + sampleHeight, bufferHeight - 1);     // Bottom edge y coordinate
+                final int bubbleRightX = Math.min(sampleX + sampleWidth, bufferWidth);        // Right edge x coordinate
 
-                    for (int x = bubbleX; x < bubbleRightX; x++) {
-                        final int index = offset + x;
-                        sum += ((array[index] & 0x00FF0000) >> 16)
-                                + ((array[index] & 0x0000FF00) >> 8)
-                                + ((array[index] & 0x000000FF));
-                    }
+                final int brightness = measureBubble(array, bufferWidth, bufferHeight, sampleX, sampleY, sampleWidth, sampleHeight);
+
+                // Save brightness value
+                results.setBrightness(slot, firstBubble + row * columnCount + col, brightness);
+
+                // Copy example bubble
+                if (brightness >= 0 && brightness <= 255 && histogramExamples != null && histogramExamples[brightness] == null) {
+                    BufferedImage example = new BufferedImage(exampleWidth, exampleHeight, BufferedImage.TYPE_INT_RGB);
+                    histogramExamples[brightness] = example;
+
+                    // Copy bubble
+                    Graphics g = example.createGraphics();
+                    g.drawImage(buffer,
+                            0, 0, exampleWidth, exampleHeight,
+                            sampleX, sampleY, bubbleRightX, bubbleBottomY,
+                            null);
+                    g.dispose();
                 }
+            }
+        }
+    }
 
-                final int brightness = (int) ((double) sum / (bubbleWidth * bubbleHeight * 3));
+    /**
+     * Converts a coordinate of the reference sheet to the first pixel of a scaled and downsampled buffer whose sample is at or after it.
+     * render() samples pixel i of a buffer downsampled by n at (i + 0.5) * n in the coordinates of the source.
+     *
+     * @param scale Analysis resolution relative to the reference sheet
+     */
+    private static int toSample(int position, double scale, int downsample) {
+        return (int) Math.ceil(position * scale / downsample - 0.5);
+    }
 
-                // Save brightness value
-                brightnessArray[row][col] = brightness;
-
-                // Update histogram
-                if (brightness < 0) {
-                    globalHistogram.increase(0);
-                    this.histogram.increase(0);
-                } else if (brightness > 255) {
-                    globalHistogram.increase(255);
-                    this.histogram.increase(255);
-                } else {
-                    globalHistogram.increase(brightness);
-                    this.histogram.increase(brightness);
-
-                    // Copy example bubble
-                    if (histogramExamples[brightness] == null) {
-                        BufferedImage example = new BufferedImage(exampleWidth, exampleHeight, BufferedImage.TYPE_INT_RGB);
-                        histogramExamples[brightness] = example;
-
-                        // Copy bubble
-                        Graphics g = example.createGraphics();
-                        g.drawImage(buffer,
-                                0, 0, exampleWidth, exampleHeight,
-                                bubbleX, bubbleY, bubbleRightX, bubbleBottomY,
-                                null);
-                        g.dispose();
-                    }
+    /**
+     * Measures again at the analysis resolution the bubbles of a group whose downsampled brightness is near the thresholds.
+     * Others are clearly black or white. Only the pixels of the measured bubbles are rendered, and the results are
+     * the same as measuring the whole aligned sheet.
+     * <p>
+     * Thresholds are guessed from the bubbles of the group only, so that the result of a group does not depend on
+     * which other groups were measured at the same time.
+     */
+    private void refineBrightnesses(SourceImage source, QuestionGroup group, BufferPool pool) {
+        final int firstBubble = results.getOffset(group);
+        if (firstBubble < 0) {
+            return;
+        }
+
+        final int columnCount = group.getColumnCount();
+        final int rowCount = group.getRowCount();
+
+        Histogram groupHistogram = new Histogram(false);
+        groupHistogram.reset();
+        for (int bubble = firstBubble; bubble < firstBubble + rowCount * columnCount; bubble++) {
+            groupHistogram.increase(results.getBrightness(slot, bubble));
+        }
+        groupHistogram.guessThreshold();
+        final int black = groupHistogram.getBlackThreshold() - REFINE_MARGIN;
+        final int white = groupHistogram.getWhiteThreshold() + REFINE_MARGIN;
+
+        final int bubbleWidth = group.getBubbleWidth();
+        final int bubbleHeight = group.getBubbleHeight();
+
+        final double columnSpacing = columnCount <= 1 ? 0 : (double) group.getWidth() / (columnCount - 1);
+        final double rowSpacing = rowCount <= 1 ? 0 : (double) group.getHeight() / (rowCount - 1);
+
+        final AffineTransform alignment = getAlignment(source.scale);
+
+        for (int row = 0; row < rowCount; row++) {
+            final int bubbleY = Math.max((int) (group.getTopY() - bubbleHeight / 2 + row * rowSpacing), 0);
+            final int areaY = toSample(bubbleY, source.scale, 1);
+            final int areaHeight = toSample(bubbleY + bubbleHeight, source.scale, 1) - areaY;
+
+            for (int col = 0; col < columnCount; col++) {
+                final int bubble = firstBubble + row * columnCount + col;
+                final int brightness = results.getBrightness(slot, bubble);
+                if (brightness < black || brightness >= white) {
+                    continue;
+                }
+
+                final int bubbleX = Math.max((int) (group.getLeftX() - bubbleWidth / 2 + col * columnSpacing), 0);
+                final int areaX = toSample(bubbleX, source.scale, 1);
+                final int areaWidth = toSample(bubbleX + bubbleWidth, source.scale, 1) - areaX;
+                if (areaWidth <= 0 || areaHeight <= 0) {
+                    continue;
+                }
+
+                BufferedImage area = renderArea(source, alignment, areaX, areaY, areaWidth, areaHeight, pool);
+
+                // measureBubble() leaves out the last row of the sheet. Passing the height that remains below the bubble does the same here.
+                final int remainingHeight = Math.min(areaHeight, source.height - 1 - areaY) + 1;
+                results.setBrightness(slot, bubble, measureBubble(((DataBufferInt) area.getRaster().getDataBuffer()).getData(),
+                        areaWidth, remainingHeight, 0, 0, areaWidth, areaHeight));
+
+                if (pool != null) {
+                    pool.release(area);
                 }
             }
         }
     }
 
+    /**
+     * Measures the bubble brightnesses of a group directly from the unaligned image without storing them. Used for previewing
+     * a group on the reference sheet while it is being edited, so the sheet is not aligned. The image is cached as long as the sheet is displayed.
+     *
+     * @return brightnesses [row * columnCount + column]
+     */
+    public int[] measureBrightnesses(QuestionGroup group) throws OutOfMemoryError, IOException {
+        BufferedImage buffer = getUnalignedBuffer();
+        final int[] array = ((DataBufferInt) buffer.getRaster().getDataBuffer()).getData();
+
+        final int bufferWidth = buffer.getWidth();
+        final int bufferHeight = buffer.getHeight();
+        final int columnCount = group.getColumnCount();
+        final int rowCount = group.getRowCount();
+        final int bubbleWidth = group.getBubbleWidth();
+        final int bubbleHeight = group.getBubbleHeight();
+
+        final double columnSpacing = columnCount <= 1 ? 0 : (double) group.getWidth() / (columnCount - 1);
+        final double rowSpacing = rowCount <= 1 ? 0 : (double) group.getHeight() / (rowCount - 1);
+
+        int[] brightnesses = new int[rowCount * columnCount];
+        for (int row = 0; row < rowCount; row++) {
+            final int bubbleY = Math.max((int) (group.getTopY() - bubbleHeight / 2 + row * rowSpacing), 0);
+
+            for (int col = 0; col < columnCount; col++) {
+                final int bubbleX = Math.max((int) (group.getLeftX() - bubbleWidth / 2 + col * columnSpacing), 0);
+                brightnesses[row * columnCount + col] = measureBubble(array, bufferWidth, bufferHeight, bubbleX, bubbleY, bubbleWidth, bubbleHeight);
+            }
+        }
+
+        return brightnesses;
+    }
+
+    /**
+     * Calculates the average brightness of a bubble. Pixels outside the image count as black.
+     *
+     * @param array Pixels of a TYPE_INT_RGB image
+     * @param bubbleX Left edge of the bubble
+     * @param bubbleY Top edge of the bubble
+     */
+    static int measureBubble(final int[] array, final int bufferWidth, final int bufferHeight,
+            final int bubbleX, final int bubbleY, final int bubbleWidth, final int bubbleHeight) {
+
+        // Read every pixel in the bubble
+        long sum = 0;
+        final int bubbleBottomY = Math.min(bubbleY + bubbleHeight, bufferHeight - 1);     // Bottom edge y coordinate
+        final int bubbleRightX = Math.min(bubbleX + bubbleWidth, bufferWidth);        // Right edge x coordinate
+
+        for (int y = bubbleY; y < bubbleBottomY; y++) {
+            int offset = y * bufferWidth;
+
+            for (int x = bubbleX; x < bubbleRightX; x++) {
+                final int index = offset + x;
+                sum += ((array[index] & 0x00FF0000) >> 16)
+                        + ((array[index] & 0x0000FF00) >> 8)
+                        + ((array[index] & 0x000000FF));
+            }
+        }
+
+        return (int) ((double) sum / (bubbleWidth * bubbleHeight * 3));
+    }
+
     /**
      * Locates registration markers.
      *
@@ -834,7 +1595,6 @@ public class Sheet extends Observable {
         final int markerHeight = markerBuffer.getHeight();
         final int searchRadius = marker.getSearchRadius();
 
-        long minDifference = Long.MAX_VALUE;
         int foundX = markerX;
         int foundY = markerY;
 
@@ -843,49 +1603,168 @@ public class Sheet extends Observable {
         final int searchEndY = Math.min(searchStartY + 2 * searchRadius, sheetHeight - markerHeight);
         final int searchEndX = Math.min(searchStartX + 2 * searchRadius, sheetWidth - markerWidth);
 
-        for (int searchY = searchStartY; searchY < searchEndY; searchY++) {
-            for (int searchX = searchStartX; searchX < searchEndX; searchX++) {
+        if (searchEndX > searchStartX && searchEndY > searchStartY) {
+            long[] match = matchMarker(sheetArray, sheetWidth, 0, 0, markerArray, markerWidth, markerHeight,
+                    searchStartX, searchStartY, searchEndX, searchEndY);
+            foundX = (int) match[0];
+            foundY = (int) match[1];
+        }
+
+        // Store the location of the marker
+        Point location = new Point(foundX + markerWidth / 2, foundY + markerHeight / 2);
+        this.markers.put(marker, location);
+    }
+
+    /**
+     * Locates a registration marker like locateMarker(BufferedImage, RegistrationMarker), but renders only the search window
+     * instead of the whole unaligned sheet. The marker is searched at the resolution of the source, and its location is
+     * stored in the coordinates of the reference sheet.
+     *
+     * @return false if the marker does not match the sheet well, e.g. because the sheet is damaged or of a different form
+     */
+    private boolean locateMarker(SourceImage source, RegistrationMarker marker, BufferPool pool) {
+        BufferedImage markerBuffer = marker.getBuffer();
+        if (markerBuffer == null) {
+            System.err.println("locateMarker: marker buffer not available");
+            return true;
+        }
+
+        if (source.scale != 1.0) {
+            // Marker image was copied from the reference sheet
+            markerBuffer = scaleMarker(markerBuffer, source.scale);
+        }
+
+        final int[] markerArray = ((DataBufferInt) markerBuffer.getRaster().getDataBuffer()).getData();
+        final int markerX = toAnalysis(marker.getX(), source.scale);
+        final int markerY = toAnalysis(marker.getY(), source.scale);
+        final int markerWidth = markerBuffer.getWidth();
+        final int markerHeight = markerBuffer.getHeight();
+        final int searchRadius = (int) Math.ceil(marker.getSearchRadius() * source.scale);
+
+        int foundX = markerX;
+        int foundY = markerY;
+        long difference = 0;
+
+        final int searchStartY = Math.max(markerY - searchRadius - markerHeight / 2, 0);
+        final int searchStartX = Math.max(markerX - searchRadius - markerWidth / 2, 0);
+        final int searchEndY = Math.min(searchStartY + 2 * searchRadius, source.height - markerHeight);
+        final int searchEndX = Math.min(searchStartX + 2 * searchRadius, source.width - markerWidth);
+
+        if (searchEndX > searchStartX && searchEndY > searchStartY) {
+            final int areaWidth = searchEndX - searchStartX + markerWidth;
+            final int areaHeight = searchEndY - searchStartY + markerHeight;
+            BufferedImage area = renderArea(source, null, searchStartX, searchStartY, areaWidth, areaHeight, pool);
+
+            long[] match = matchMarker(((DataBufferInt) area.getRaster().getDataBuffer()).getData(), areaWidth, searchStartX, searchStartY,
+                    markerArray, markerWidth, markerHeight, searchStartX, searchStartY, searchEndX, searchEndY);
+            foundX = (int) match[0];
+            foundY = (int) match[1];
+            difference = match[2];
+
+            if (pool != null) {
+                pool.release(area);
+            }
+        }
+
+        // Store the location of the marker
+        Point location = new Point(toReference(foundX + markerWidth / 2, source.scale), toReference(foundY + markerHeight / 2, source.scale));
+        this.markers.put(marker, location);
+
+        // Red and green are compared, so each pixel adds two differences
+        return difference <= (long) MARKER_TOLERANCE * markerWidth * markerHeight * 2;
+    }
+
+    /**
+     * Returns a marker image scaled to the analysis resolution.
+     */
+    private static BufferedImage scaleMarker(BufferedImage markerBuffer, double scale) {
+        BufferedImage scaled = new BufferedImage(Math.max(toAnalysis(markerBuffer.getWidth(), scale), 1),
+                Math.max(toAnalysis(markerBuffer.getHeight(), scale), 1), BufferedImage.TYPE_INT_RGB);
+
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(markerBuffer, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        g.dispose();
+
+        return scaled;
+    }
+
+    /**
+     * Finds the position in the search window where the marker differs least from the sheet. The window must not be empty.
+     *
+     * @param sheetArray Pixels of a TYPE_INT_RGB image that covers the marker at every position of the window
+     * @param sheetLeft Position of the image in the sheet
+     * @param sheetTop Position of the image in the sheet
+     * @param searchStartX First position of the top left corner of the marker in the sheet
+     * @param searchEndX Position after the last position of the top left corner of the marker
+     * @return {x, y, difference}, where (x, y) is the best position of the top left corner in the sheet
+     */
+    static long[] matchMarker(final int[] sheetArray, final int sheetWidth, final int sheetLeft, final int sheetTop,
+            final int[] markerArray, final int markerWidth, final int markerHeight,
+            final int searchStartX, final int searchStartY, final int searchEndX, final int searchEndY) {
+
+        long minDifference = Long.MAX_VALUE;
+        int foundX = searchStartX;
+        int foundY = searchStartY;
+
+        // Split the marker and the searched area into red and green planes once, so that the inner loop only subtracts.
+        // The blue component is not compared. It never has been, and results must not change.
+        final int[] markerRed = new int[markerWidth * markerHeight];
+        final int[] markerGreen = new int[markerWidth * markerHeight];
+        splitPlanes(markerArray, markerWidth, 0, 0, markerWidth, markerHeight, markerRed, markerGreen);
+
+        final int areaWidth = searchEndX - searchStartX + markerWidth;
+        final int areaHeight = searchEndY - searchStartY + markerHeight;
+        final int[] areaRed = new int[areaWidth * areaHeight];
+        final int[] areaGreen = new int[areaWidth * areaHeight];
+        splitPlanes(sheetArray, sheetWidth, searchStartX - sheetLeft, searchStartY - sheetTop, areaWidth, areaHeight, areaRed, areaGreen);
+
+        for (int searchY = 0; searchY < searchEndY - searchStartY; searchY++) {
+            for (int searchX = 0; searchX < searchEndX - searchStartX; searchX++) {
                 long difference = 0;
 
-                // Calculate difference between marker and the sheet
-                for (int y = 0; y < markerHeight; y++) {
+                // Calculate difference between marker and the sheet. Stop as soon as this cannot be the minimum.
+                for (int y = 0; y < markerHeight && difference < minDifference; y++) {
                     final int markerOffset = y * markerWidth;
-                    final int sheetOffset = (y + searchY) * sheetWidth + searchX;
+                    final int areaOffset = (y + searchY) * areaWidth + searchX;
+                    int rowDifference = 0;
 
                     for (int x = 0; x < markerWidth; x++) {
-                        final int markerIndex = markerOffset + x;
-                        final int sheetIndex = sheetOffset + x;
-
-                        // Sum the absolute differences in red, green and blue component
-                        difference += Math.abs(((markerArray[markerIndex] & 0x00FF0000) >> 16) - ((sheetArray[sheetIndex] & 0x00FF0000) >> 16))
-                                + Math.abs(((markerArray[markerIndex] & 0x0000FF00) >> 8) - ((sheetArray[sheetIndex] & 0x0000FF00) >> 8))
-                                + Math.abs((markerArray[markerIndex] & 0x000000FF) - (markerArray[markerIndex] & 0x000000FF));
-
-		    			/*
-		    			int d = ((markerArray[markerIndex] & 0x00FF0000) >> 16) - ((sheetArray[sheetIndex] & 0x00FF0000) >> 16)
-		    				+ ((markerArray[markerIndex] & 0x0000FF00) >> 8) - ((sheetArray[sheetIndex] & 0x0000FF00) >> 8)
-	                    	+ (markerArray[markerIndex] & 0x000000FF) - (markerArray[markerIndex] & 0x000000FF);
-	                    // Don't need to divide by 3, because it doesn't change the sign nor the minimum position
-	                    
-	                    if (d < 0) {
-		    				difference -= d;
-		    			}
-	                    */
+                        rowDifference += Math.abs(markerRed[markerOffset + x] - areaRed[areaOffset + x])
+                                + Math.abs(markerGreen[markerOffset + x] - areaGreen[areaOffset + x]);
                     }
+
+                    difference += rowDifference;
                 }
 
                 // Store minimum
                 if (difference < minDifference) {
                     minDifference = difference;
-                    foundX = searchX;
-                    foundY = searchY;
+                    foundX = searchStartX + searchX;
+                    foundY = searchStartY + searchY;
                 }
             }
         }
 
-        // Store the location of the marker
-        Point location = new Point(foundX + markerWidth / 2, foundY + markerHeight / 2);
-        this.markers.put(marker, location);
+        return new long[] {foundX, foundY, minDifference};
+    }
+
+    /**
+     * Copies the red and green components of a rectangle of an image into separate arrays.
+     *
+     * @param array Pixels of a TYPE_INT_RGB image
+     * @param red Red components, width * height values
+     * @param green Green components, width * height values
+     */
+    private static void splitPlanes(int[] array, int arrayWidth, int left, int top, int width, int height, int[] red, int[] green) {
+        for (int y = 0; y < height; y++) {
+            int offset = (top + y) * arrayWidth + left;
+            for (int x = 0; x < width; x++) {
+                int pixel = array[offset + x];
+                red[y * width + x] = (pixel >> 16) & 0xFF;
+                green[y * width + x] = (pixel >> 8) & 0xFF;
+            }
+        }
     }
 
     /**
@@ -896,45 +1775,70 @@ public class Sheet extends Observable {
      */
     public void calculateAnswers(QuestionGroup group, int blackThreshold, int whiteThreshold) {
         // Don't do anything if bubbles have not been analyzed
-        if (this.brightness == null) {
+        if (results == null || !results.isBrightnessValid(slot)) {
             return;
         }
 
-        int[][] brightnessArray = this.brightness.get(group);
-        if (brightnessArray == null) {
+        int offset = results.getOffset(group);
+        if (offset < 0) {
             return;
         }
 
         int rowCount = group.getRowCount();
         int columnCount = group.getColumnCount();
+        int bubbleCount = rowCount * columnCount;
+
+        // Populate the choices based on bubble brightnesses
+        for (int bubble = offset; bubble < offset + bubbleCount; bubble++) {
+            int brightness = results.getBrightness(slot, bubble);
 
-        // Reset choice array
-        if (this.choices == null) {
-            this.choices = new HashMap<QuestionGroup, int[][]>();
+            if (brightness < blackThreshold) {
+                results.setChoice(slot, bubble, -1);
+            } else if (brightness >= whiteThreshold) {
+                results.setChoice(slot, bubble, 1);
+            } else {
+                results.setChoice(slot, bubble, 0);
+            }
         }
+        results.setChoicesValid(slot, true);
 
-        int[][] choices = new int[rowCount][columnCount];
-        this.choices.put(group, choices);
+        updateStudentId(group);
 
-        // Populate the choices array based on bubble brightnesses
-        for (int row = 0; row < rowCount; row++) {
-            for (int col = 0; col < columnCount; col++) {
-                int brightness = brightnessArray[row][col];
+        // Validate answers
+        validateAnswers();
 
-                if (brightness < blackThreshold) {
-                    choices[row][col] = -1;
-                } else if (brightness >= whiteThreshold) {
-                    choices[row][col] = 1;
-                } else {
-                    choices[row][col] = 0;
-                }
-            }
+        // Notify observers
+        setChanged();
+        notifyObservers();
+    }
+
+    /**
+     * Updates the student id, answer validity and observers after choices have been changed directly in the result store,
+     * e.g. by BubbleIndex when the global thresholds move.
+     */
+    void answersChanged() {
+        if (results == null) {
+            return;
+        }
+
+        for (QuestionGroup group : results.getQuestionGroups()) {
+            updateStudentId(group);
         }
 
+        validateAnswers();
+
+        setChanged();
+        notifyObservers();
+    }
+
+    /**
+     * Updates the student id from the choices of the given group if it is a student number or check letter group.
+     */
+    private void updateStudentId(QuestionGroup group) {
         // Set student number
         if (group.getOrientation() == Orientation.STUDENT_NUMBER) {
             this.studentIdNumber = "";
-            for (int row = 0; row < choices.length; row++) {
+            for (int row = 0; row < group.getRowCount(); row++) {
                 this.studentIdNumber += getChoices(group, row);
             }
         }
@@ -945,13 +1849,6 @@ public class Sheet extends Observable {
         }
 
         this.studentId = this.studentIdNumber + this.studentIdLetter;
-
-        // Validate answers
-        validateAnswers(group);
-
-        // Notify observers
-        setChanged();
-        notifyObservers();
     }
 
     /**
@@ -0,0 +1,301 @@
+package omr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import omr.gui.ImageFileFilter;
+
+/**
+ * Finds answer sheet files in directory trees and checks them before they are added to a project.
+ * <p>
+ * Files are probed in parallel by reading their headers only, so that broken and unsupported files are rejected at import
+ * instead of stopping the analysis later. The size of each image is recorded in the sheet while the header is read.
+ * Images in zip archives are probed like files, entry by entry, without extracting them.
+ * Sheets are returned in the order in which the files were found, regardless of which probe finishes first.
+ * The id of a sheet is the path of its file relative to the directory that was imported, so that files with the same name
+ * in different subdirectories get different ids.
+ *
+ * @author Tapio Auvinen
+ */
+public class SheetImporter {
+    private static final int THREAD_COUNT =
+            OMRProperties.getInt("import-threads", Math.min(Runtime.getRuntime().availableProcessors() * 2, 8));
+
+    /**
+     * A file that could not be imported.
+     */
+    public static class RejectedFile {
+        private File file;
+        private String reason;
+
+        public RejectedFile(File file, String reason) {
+            this.file = file;
+            this.reason = reason;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return file.getPath() + ": " + reason;
+        }
+    }
+
+    private Map<String, PdfDocument> openDocuments;        // Documents that are already open, by path. Not modified.
+    private HashMap<String, PdfDocument> newDocuments;     // Documents opened by this importer
+    private Map<String, ZipArchive> openArchives;          // Archives that are already open, by path. Not modified.
+    private HashMap<String, ZipArchive> newArchives;       // Archives opened by this importer
+    private ArrayList<Sheet> sheets;
+    private ArrayList<RejectedFile> rejectedFiles;
+
+    /**
+     * Constructor
+     * @param openDocuments PDF documents that have already been opened, by path. They are reused if the same files are imported again.
+     * @param openArchives Zip archives that have already been opened, by path
+     */
+    public SheetImporter(Map<String, PdfDocument> openDocuments, Map<String, ZipArchive> openArchives) {
+        this.openDocuments = openDocuments;
+        this.newDocuments = new HashMap<String, PdfDocument>();
+        this.openArchives = openArchives;
+        this.newArchives = new HashMap<String, ZipArchive>();
+        this.sheets = new ArrayList<Sheet>();
+        this.rejectedFiles = new ArrayList<RejectedFile>();
+    }
+
+    /**
+     * Finds and probes the given files. Directories are searched recursively.
+     */
+    public void scan(File[] files) {
+        ArrayList<File> found = new ArrayList<File>();
+        ArrayList<String> foundIds = new ArrayList<String>();
+        HashSet<String> visited = new HashSet<String>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                findFiles(file, "", found, foundIds, visited);
+            } else if (file.isFile()) {
+                found.add(file);
+                foundIds.add(file.getName());
+            }
+        }
+
+        // Files and archive entries to probe. Entries are reported as archive/entry.
+        ArrayList<File> sources = new ArrayList<File>();
+        ArrayList<Callable<List<Sheet>>> tasks = new ArrayList<Callable<List<Sheet>>>();
+        for (int i = 0; i < found.size(); i++) {
+            final File file = found.get(i);
+            final String id = foundIds.get(i);
+            if (ImageFileFilter.isArchive(file.getName())) {
+                addEntries(file, id, sources, tasks);
+                continue;
+            }
+
+            sources.add(file);
+            tasks.add(new Callable<List<Sheet>>() {
+                public List<Sheet> call() throws IOException {
+                    return probe(file, id);
+                }
+            });
+        }
+
+        ExecutorService probes = Executors.newFixedThreadPool(Math.max(1, Math.min(THREAD_COUNT, tasks.size())));
+        try {
+            ArrayList<Future<List<Sheet>>> results = new ArrayList<Future<List<Sheet>>>(tasks.size());
+            for (Callable<List<Sheet>> task : tasks) {
+                results.add(probes.submit(task));
+            }
+
+            // Collect in the original order
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    for (Sheet sheet : results.get(i).get()) {
+                        sheets.add(sheet);
+                        if (sheet instanceof PdfSheet && !openDocuments.containsKey(sheet.getFilePath())) {
+                            newDocuments.put(sheet.getFilePath(), ((PdfSheet) sheet).getPdfDocument());
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    rejectedFiles.add(new RejectedFile(sources.get(i), cause.getMessage() != null ? cause.getMessage() : cause.toString()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            probes.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds the supported files in a directory and its subdirectories to the list in name order.
+     * @param prefix Path of the directory relative to the imported directory, ending with a slash, or empty
+     * @param foundIds Ids of the found files, i.e. their paths relative to the imported directory
+     * @param visited Canonical paths of the directories that have been searched. Prevents loops through symbolic links.
+     */
+    private void findFiles(File directory, String prefix, List<File> found, List<String> foundIds, HashSet<String> visited) {
+        try {
+            if (!visited.add(directory.getCanonicalPath())) {
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+            return;
+        }
+
+        File[] children = directory.listFiles(new ImageFileFilter());
+        if (children == null) {
+            rejectedFiles.add(new RejectedFile(directory, "Directory cannot be read."));
+            return;
+        }
+
+        Arrays.sort(children);
+        for (File child : children) {
+            if (child.isHidden()) {
+                continue;
+            }
+
+            if (child.isDirectory()) {
+                findFiles(child, prefix + child.getName() + "/", found, foundIds, visited);
+            } else if (child.isFile()) {
+                found.add(child);
+                foundIds.add(prefix + child.getName());
+            }
+        }
+    }
+
+    /**
+     * Adds a probe for each image in a zip archive. The list of entries is read from the archive here, the images by the probes.
+     * @param id Id of the archive. The sheets get the entry path appended, e.g. batch1.zip/scans/0001.jpg.
+     */
+    private void addEntries(File file, final String id, List<File> sources, List<Callable<List<Sheet>>> tasks) {
+        ZipArchive archive = openArchives.get(file.getPath());
+        if (archive == null) {
+            archive = newArchives.get(file.getPath());
+        }
+        if (archive == null) {
+            archive = new ZipArchive(file);
+        }
+
+        List<String> entryNames;
+        try {
+            entryNames = archive.getEntryNames();
+        } catch (IOException e) {
+            rejectedFiles.add(new RejectedFile(file, "Archive cannot be read. " + e.getMessage()));
+            return;
+        }
+
+        if (!openArchives.containsKey(file.getPath())) {
+            newArchives.put(file.getPath(), archive);
+        }
+
+        final ZipArchive sheetArchive = archive;
+        for (final String entryName : entryNames) {
+            if (ZipArchive.isDocumentEntry(entryName)) {
+                rejectedFiles.add(new RejectedFile(new File(file, entryName), "PDF documents cannot be imported from archives."));
+                continue;
+            }
+            if (!ZipArchive.isSheetEntry(entryName)) {
+                continue;
+            }
+
+            sources.add(new File(file, entryName));
+            tasks.add(new Callable<List<Sheet>>() {
+                public List<Sheet> call() throws IOException {
+                    Sheet sheet = new ZipSheet(sheetArchive, entryName);
+                    sheet.setId(id + "/" + entryName);
+                    sheet.probe();
+                    return Collections.singletonList(sheet);
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates the sheets of a file and reads their headers. Called by several threads at once.
+     * @param id Id of the sheet. Pages of a PDF document get the page number appended.
+     * @return one sheet for an image, one sheet per page for a PDF document
+     * @throws IOException if the file cannot be imported
+     */
+    private List<Sheet> probe(File file, String id) throws IOException {
+        ArrayList<Sheet> result = new ArrayList<Sheet>();
+
+        try {
+            if (file.getName().toLowerCase().endsWith(".pdf")) {
+                PdfDocument pdf = openDocuments.get(file.getPath());
+                if (pdf == null) {
+                    pdf = new PdfDocument(file);
+                }
+
+                int pageCount = pdf.getPageCount();
+                if (pageCount < 1) {
+                    throw new IOException("Document has no pages.");
+                }
+
+                for (int page = 0; page < pageCount; page++) {
+                    Sheet sheet = new PdfSheet(pdf, page, file.getPath(), file.getName());
+                    sheet.setId(id + "(" + page + ")");
+                    result.add(sheet);
+                }
+            } else {
+                Sheet sheet = new Sheet(file.getPath(), file.getName());
+                sheet.setId(id);
+                result.add(sheet);
+            }
+
+            for (Sheet sheet : result) {
+                sheet.probe();
+            }
+        } catch (RuntimeException e) {
+            // The PDF parser throws runtime exceptions for some malformed files
+            throw new IOException("File cannot be read. " + e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the sheets that were found, in the order in which the files were found.
+     */
+    public List<Sheet> getSheets() {
+        return sheets;
+    }
+
+    /**
+     * Returns the PDF documents that were opened by this importer, by path.
+     */
+    public Map<String, PdfDocument> getNewDocuments() {
+        return newDocuments;
+    }
+
+    /**
+     * Returns the zip archives that were opened by this importer, by path.
+     */
+    public Map<String, ZipArchive> getNewArchives() {
+        return newArchives;
+    }
+
+    /**
+     * Returns the files that could not be imported.
+     */
+    public List<RejectedFile> getRejectedFiles() {
+        return rejectedFiles;
+    }
+}
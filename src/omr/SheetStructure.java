@@ -25,6 +25,7 @@ public class SheetStructure extends Observable implements Observer {
     }
 	
 	private Sheet referenceSheet;
+	private double referenceResolution;     // Resolution of the reference sheet in dpi, 0 if not known
 	
 	private ArrayList<QuestionGroup> questionGroups;
     private ArrayList<RegistrationMarker> registrationMarkers;
@@ -44,6 +45,7 @@ public class SheetStructure extends Observable implements Observer {
         }
     	
         this.referenceSheet = sheet;
+        this.referenceResolution = 0;
     	
     	if (sheet != null) {
     	    BufferedImage sheetBuffer;
@@ -61,6 +63,12 @@ public class SheetStructure extends Observable implements Observer {
 	    	for (RegistrationMarker marker : registrationMarkers) {
 	    		marker.copyMarkerImage(sheetBuffer);
 	    	}
+	    	
+	    	try {
+	    	    this.referenceResolution = sheet.getResolution();
+	    	} catch (IOException e) {
+	    	    System.err.println(e);
+	    	}
     	}
     }
     
@@ -71,6 +79,14 @@ public class SheetStructure extends Observable implements Observer {
     	return this.referenceSheet;
     }
     
+    /**
+     * Returns the resolution of the reference sheet in dots per inch. Positions of the bubbles and markers are pixels at this resolution.
+     * @return resolution, or 0 if the image file of the reference sheet does not tell it
+     */
+    public double getReferenceResolution() {
+        return this.referenceResolution;
+    }
+    
     /**
      * Adds a question group to the project.
      */
@@ -152,6 +168,11 @@ public class SheetStructure extends Observable implements Observer {
      * Notified by structure components when they change.
      */
     public void update(Observable source, Object event) {
+    	if (QuestionGroupEvent.POSITION_ADJUSTING == event) {
+    	    // Sheets are measured again when the adjustment is finished
+    	    return;
+    	}
+    	
     	setChanged();
     	
     	if (QuestionGroupEvent.STRUCTURE_CHANGED == event) {
@@ -161,6 +182,8 @@ public class SheetStructure extends Observable implements Observer {
     		notifyObservers(SheetStructureEvent.STRUCTURE_CHANGED);
     	} else if (QuestionGroupEvent.POSITION_CHANGED == event) {
     		notifyObservers(SheetStructureEvent.BUBBLE_POSITIONS_CHANGED);
+    	} else if (QuestionGroupEvent.ANSWER_KEY_CHANGED == event) {
+    	    notifyObservers(SheetStructureEvent.ANSWER_KEY_CHANGED);
     	} else if (source instanceof RegistrationMarker) {
     	    notifyObservers(SheetStructureEvent.REGISTRATION_CHANGED);
     	}
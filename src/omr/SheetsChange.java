@@ -0,0 +1,56 @@
+package omr;
+
+import java.util.BitSet;
+
+/**
+ * Changes in the SheetsContainer: either some sheets have changed (e.g. new answers or status), or the list itself
+ * has changed (sheets added or removed).
+ */
+public class SheetsChange implements ChangeSet<SheetsChange> {
+
+    private boolean listChanged;
+    private BitSet rows;          // Positions of the changed sheets
+
+    private SheetsChange(boolean listChanged) {
+        this.listChanged = listChanged;
+        this.rows = new BitSet();
+    }
+
+    /**
+     * Returns a change where sheets were added or removed.
+     */
+    public static SheetsChange listChanged() {
+        return new SheetsChange(true);
+    }
+
+    /**
+     * Returns a change where the sheet at the given position changed.
+     */
+    public static SheetsChange rowChanged(int row) {
+        SheetsChange change = new SheetsChange(false);
+        if (row >= 0) {
+            change.rows.set(row);
+        }
+
+        return change;
+    }
+
+    public void merge(SheetsChange other) {
+        this.listChanged |= other.listChanged;
+        this.rows.or(other.rows);
+    }
+
+    /**
+     * Tells whether sheets were added or removed. If so, positions may have changed and the whole list should be refreshed.
+     */
+    public boolean isListChanged() {
+        return listChanged;
+    }
+
+    /**
+     * Returns the positions of the changed sheets.
+     */
+    public BitSet getChangedRows() {
+        return (BitSet)rows.clone();
+    }
+}
@@ -4,23 +4,176 @@ import java.io.File;
 import java.io.IOException;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
 
-import omr.gui.ImageFileFilter;
-
 /**
  * Stores answer sheets.
+ * <p>
+ * Sheets are indexed by position and id, so that looking up a sheet or relaying a change notification
+ * does not require scanning the list. The indexes are updated when sheets are added or removed, and when the id of a sheet changes.
+ * <p>
+ * Observers are notified synchronously with the position of a changed sheet, or null when the list changes.
+ * Between beginBatch() and endBatch(), the changed positions are collected, and observers are notified once with a BitSet of them
+ * when the batch ends. GUI models should listen to getChangeBus() instead, which delivers the same changes coalesced once per frame.
  */
 public class SheetsContainer extends Observable implements Observer, Iterable<Sheet> {
-    private ArrayList<Sheet> sheets;  // TODO: should probably replace this with a more powerful data structure to enable search with id
+    private ArrayList<Sheet> sheets;
+    private IdentityHashMap<Sheet, Integer> positions;   // Sheet -> index in sheets
+    private HashMap<String, Sheet> sheetsById;            // First sheet with each id
     private HashMap<String, PdfDocument> pdfDocuments;
+    private HashMap<String, ZipArchive> zipArchives;
+    private ResultStore results;      // Analysis results of all sheets
+    private BubbleAtlas atlas;        // Crops of doubtful bubbles
+    private ChangeBus<SheetsChange> changeBus;
+    private int batchDepth;           // Number of unfinished beginBatch() calls
+    private BitSet batchRows;         // Positions of the sheets that have changed during the batch
     
     public SheetsContainer() {
         this.sheets = new ArrayList<Sheet>();
+        this.positions = new IdentityHashMap<Sheet, Integer>();
+        this.sheetsById = new HashMap<String, Sheet>();
         this.pdfDocuments = new HashMap<String, PdfDocument>();
+        this.zipArchives = new HashMap<String, ZipArchive>();
+        this.results = new ResultStore();
+        this.atlas = new BubbleAtlas();
+        this.changeBus = new ChangeBus<SheetsChange>();
+        this.batchRows = new BitSet();
+    }
+    
+    /**
+     * Returns the store that contains the bubble brightnesses, choices and overrides of all sheets.
+     */
+    public ResultStore getResultStore() {
+        return this.results;
+    }
+    
+    /**
+     * Returns the atlas that contains crops of doubtful bubbles of all sheets.
+     */
+    public BubbleAtlas getBubbleAtlas() {
+        return this.atlas;
+    }
+    
+    /**
+     * Releases the files that are held open by the sheets. Called when the project is closed.
+     */
+    public void dispose() {
+        atlas.dispose();
+        
+        for (ZipArchive archive : zipArchives.values()) {
+            archive.dispose();
+        }
+        
+        // Documents are opened again if the next project needs them
+        PdfDocument.getPool().closeAll();
+    }
+    
+    /**
+     * Returns the bus that delivers coalesced changes of the sheets to GUI models.
+     */
+    public ChangeBus<SheetsChange> getChangeBus() {
+        return this.changeBus;
+    }
+    
+    /**
+     * Starts collecting sheet changes, e.g. before recalculating the answers of many sheets. Observers and the change bus are
+     * notified when the outermost batch ends. Batches can be nested.
+     */
+    public void beginBatch() {
+        synchronized (this) {
+            batchDepth++;
+        }
+        changeBus.beginBatch();
+    }
+    
+    /**
+     * Ends a batch. Observers are notified once of all sheets that have changed during the outermost batch.
+     */
+    public void endBatch() {
+        BitSet rows = null;
+        synchronized (this) {
+            if (batchDepth > 0) {
+                batchDepth--;
+            }
+            if (batchDepth == 0 && !batchRows.isEmpty()) {
+                rows = batchRows;
+                batchRows = new BitSet();
+            }
+        }
+        
+        if (rows != null) {
+            setChanged();
+            notifyObservers(rows);
+        }
+        changeBus.endBatch();
+    }
+    
+    /**
+     * Adds a sheet to the list and allocates storage for its results.
+     */
+    private void addSheet(Sheet sheet) {
+        sheet.setResultStore(results, results.allocate());
+        sheet.addObserver(this);
+        
+        synchronized (this) {
+            positions.put(sheet, sheets.size());
+            sheets.add(sheet);
+            sheet.setContainer(this);
+            
+            if (!sheetsById.containsKey(sheet.getId())) {
+                sheetsById.put(sheet.getId(), sheet);
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds the position and id indexes after sheets have been removed.
+     */
+    private void rebuildIndexes() {
+        positions.clear();
+        sheetsById.clear();
+        
+        for (int i = 0; i < sheets.size(); i++) {
+            Sheet sheet = sheets.get(i);
+            positions.put(sheet, i);
+            
+            if (!sheetsById.containsKey(sheet.getId())) {
+                sheetsById.put(sheet.getId(), sheet);
+            }
+        }
+    }
+    
+    /**
+     * Updates the id index when the id of a sheet changes. Called by the sheet.
+     */
+    synchronized void idChanged(Sheet sheet, String oldId) {
+        Integer position = positions.get(sheet);
+        if (position == null) {
+            return;
+        }
+        
+        // Another sheet with the old id takes its place, if there is one
+        if (oldId != null && sheetsById.get(oldId) == sheet) {
+            sheetsById.remove(oldId);
+            for (Sheet other : sheets) {
+                if (other != sheet && oldId.equals(other.getId())) {
+                    sheetsById.put(oldId, other);
+                    break;
+                }
+            }
+        }
+        
+        // The first sheet in the list wins
+        Sheet current = sheetsById.get(sheet.getId());
+        if (current == null || positions.get(current) > position) {
+            sheetsById.put(sheet.getId(), sheet);
+        }
     }
     
     /**
@@ -65,30 +218,33 @@ public class SheetsContainer extends Observable implements Observer, Iterable<Sh
     }
     
     /**
-     * Imports multiple answer sheet files to the project. 
+     * Imports multiple answer sheet files to the project. Directories are searched recursively.
+     * Files are checked by reading their headers, and files that cannot be read are not imported.
+     * Images in zip archives are imported as sheets without extracting them.
      * @param files
+     * @return files that were rejected
      */
-    public void importSheets(File[] files) throws IOException {
-    	for (File file : files) {
-            if (file.isDirectory()) {
-                // Add all files in the directory non-recursively
-                File[] children = file.listFiles(new ImageFileFilter());
-                
-                for (File child : children) {
-                    importSheet(child);
-                }
-            } else if (file.isFile()) {
-                importSheet(file);
-            }
+    public List<SheetImporter.RejectedFile> importSheets(File[] files) {
+        SheetImporter importer = new SheetImporter(pdfDocuments, zipArchives);
+        importer.scan(files);
+        
+        pdfDocuments.putAll(importer.getNewDocuments());
+        zipArchives.putAll(importer.getNewArchives());
+        for (Sheet sheet : importer.getSheets()) {
+            addSheet(sheet);
         }
         
         // Notify listeners
         setChanged();
         notifyObservers();
+        changeBus.post(SheetsChange.listChanged());
+        
+        return importer.getRejectedFiles();
     }
     
     /**
      * Adds an answer sheet file to the project. If the file contains multiple pages, each page is added as a separate sheet.
+     * Each image in a zip archive is added as a separate sheet.
      */
     public void importSheet(File file) throws IOException {
         // Do not accept directories
@@ -96,7 +252,14 @@ public class SheetsContainer extends Observable implements Observer, Iterable<Sh
             return;
         }
         
-        if (getFileExtension(file.getName()).equals("pdf")) {
+        if (getFileExtension(file.getName()).equals("zip")) {
+            ZipArchive archive = getZipArchive(file);
+            for (String entryName : archive.getEntryNames()) {
+                if (ZipArchive.isSheetEntry(entryName)) {
+                    addSheet(new ZipSheet(archive, entryName));
+                }
+            }
+        } else if (getFileExtension(file.getName()).equals("pdf")) {
         	// If it's a PDF, add a new sheet for each page
         	// Do we already have this document?
         	PdfDocument pdf = pdfDocuments.get(file.getPath());
@@ -109,15 +272,11 @@ public class SheetsContainer extends Observable implements Observer, Iterable<Sh
 
         	// Add pages
         	for (int page = 0; page < pdf.getPageCount(); page++) {
-        		Sheet sheet = new PdfSheet(pdf, page, file.getPath(), file.getName());
-        		sheet.addObserver(this);
-        		sheets.add(sheet);
+        		addSheet(new PdfSheet(pdf, page, file.getPath(), file.getName()));
         	}
         } else {
         	// If it's an image, just add it as a sheet
-        	Sheet sheet = new Sheet(file.getPath(), file.getName());
-        	sheet.addObserver(this);
-            sheets.add(sheet);
+            addSheet(new Sheet(file.getPath(), file.getName()));
         }
     }
     
@@ -135,10 +294,24 @@ public class SheetsContainer extends Observable implements Observer, Iterable<Sh
      * @return the imported sheet
      */
     public Sheet importSheet(String id, String fileName, int page) throws IOException {
+        return importSheet(id, fileName, null, page);
+    }
+    
+    /**
+     * Adds a single sheet to the project.
+     * @param file File to add
+     * @param entryName Image to take from a zip archive, or null or empty if the file is not an archive
+     * @param page Page to take from a multi-page document. This parameter has no effect for single-page documents such as jpgs.
+     * @return the imported sheet
+     */
+    public Sheet importSheet(String id, String fileName, String entryName, int page) throws IOException {
     	File file = new File(fileName);
     	
     	Sheet sheet;
-    	if (getFileExtension(fileName).equals("pdf")) {
+    	if (entryName != null && entryName.length() > 0) {
+    		// The archive is opened when the image is needed
+    		sheet = new ZipSheet(getZipArchive(file), entryName);
+    	} else if (getFileExtension(fileName).equals("pdf")) {
     		// Do we already have this document?
         	PdfDocument pdf = pdfDocuments.get(file.getPath());
         	
@@ -153,21 +326,62 @@ public class SheetsContainer extends Observable implements Observer, Iterable<Sh
         	sheet = new Sheet(file.getPath(), file.getName());
         }
     	
-    	sheet.addObserver(this);
     	sheet.setId(id);
-    	sheets.add(sheet);
+    	addSheet(sheet);
     	
     	return sheet;
     }
     
+    /**
+     * Returns the archive of the given file. Sheets of the same archive share it.
+     */
+    private ZipArchive getZipArchive(File file) {
+        ZipArchive archive = zipArchives.get(file.getPath());
+        if (archive == null) {
+            archive = new ZipArchive(file);
+            zipArchives.put(file.getPath(), archive);
+        }
+        
+        return archive;
+    }
+    
     /**
      * Removes the given sheets from the project.
      */
     public void removeSheets(Sheet[] sheets) {
-        for (Sheet sheet : sheets) {
-        	sheet.deleteObserver(this);  // TODO: is this necessary?
-        	this.sheets.remove(sheet);
+        synchronized (this) {
+            boolean removed = false;
+            for (Sheet sheet : sheets) {
+                sheet.deleteObserver(this);  // TODO: is this necessary?
+                if (positions.remove(sheet) != null) {
+                    results.release(sheet.getSlot());
+                    atlas.release(sheet.getSlot());
+                    sheet.setResultStore(null, -1);
+                    sheet.setContainer(null);
+                    removed = true;
+                }
+            }
+            
+            if (!removed) {
+                return;
+            }
+            
+            // Remove in one pass instead of shifting the list once per sheet
+            ArrayList<Sheet> remaining = new ArrayList<Sheet>(this.sheets.size());
+            for (Sheet sheet : this.sheets) {
+                if (positions.containsKey(sheet)) {
+                    remaining.add(sheet);
+                }
+            }
+            
+            // The list object is shared with the users of getSheets()
+            this.sheets.clear();
+            this.sheets.addAll(remaining);
+            
+            rebuildIndexes();
         }
+        
+        changeBus.post(SheetsChange.listChanged());
     }
 
     /**
@@ -181,14 +395,8 @@ public class SheetsContainer extends Observable implements Observer, Iterable<Sh
      * Returns a sheet with the given id.
      * @return null if sheet is not found
      */
-    public Sheet getSheet(String sheetId) {
-    	for (Sheet sheet : this.sheets) {
-    		if (sheet.getId().equals(sheetId)) {
-    			return sheet;
-    		}
-    	}
-    	
-    	return null;
+    synchronized public Sheet getSheet(String sheetId) {
+        return sheetsById.get(sheetId);
     }
 
     private static String getFileExtension(String fileName) {
@@ -217,9 +425,24 @@ public class SheetsContainer extends Observable implements Observer, Iterable<Sh
      */
     public void update(Observable source, Object event) {
     	if (source instanceof Sheet) {
-    		// Relay forward (to SheetTableModel). Payload has the changed row.
-    		setChanged();
-            notifyObservers(this.sheets.indexOf(source));
+    	    int index;
+    	    boolean batched;
+    	    synchronized (this) {
+    	        Integer position = positions.get(source);
+    	        index = position == null ? -1 : position;
+    	        
+    	        batched = batchDepth > 0 && index >= 0;
+    	        if (batched) {
+    	            batchRows.set(index);
+    	        }
+    	    }
+    	    
+    		// Relay forward. Payload has the changed row.
+    	    if (!batched) {
+    	        setChanged();
+    	        notifyObservers(index);
+    	    }
+            changeBus.post(SheetsChange.rowChanged(index));
     	}
     }
 }
@@ -1,23 +1,43 @@
 package omr;
 
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
 
 import omr.gui.StatusBar;
 
-
+/**
+ * A background task. Tasks are submitted to an Executor with submit(), which returns a future that completes when
+ * the task and all of its dependent tasks (see then()) have finished.
+ * <p>
+ * Tasks are cancelled cooperatively: cancel() only sets a flag, and subclasses are expected to check isCancelled()
+ * inside their loops. Errors are collected with addError() instead of aborting the whole chain silently.
+ * Observers are notified when the task is finished, whether it completed, failed or was cancelled.
+ */
 abstract public class Task extends Observable implements Runnable {
     
-    //private LinkedList<ProgressListener> listeners;
     private StatusBar statusBar;
+    private String statusText;
     
-    private int estimatedOperationsCount;
-    private int completedOperationsCount;
+    private volatile int estimatedOperationsCount;
+    private volatile int completedOperationsCount;
+    private volatile long startTime;                 // System.nanoTime() when the task started running. 0 if not started.
+    private volatile boolean cancelled;
+
+    private List<Throwable> errors;                  // Errors encountered while running this task
+    private LinkedList<Task> dependents;             // Tasks to run after this one has completed successfully
     
     public Task() {
-        //this.listeners = new LinkedList<ProgressListener>();
         this.estimatedOperationsCount = 1;
         this.completedOperationsCount = 0;
+        this.errors = Collections.synchronizedList(new LinkedList<Throwable>());
+        this.dependents = new LinkedList<Task>();
     }
     
     /**
@@ -25,7 +45,7 @@ abstract public class Task extends Observable implements Runnable {
      * @param observer Observer to be notified when task is finished
      */
     public Task(Observer observer) {
-        super();
+        this();
         
         if (observer != null) {
         	this.addObserver(observer);
@@ -33,25 +53,110 @@ abstract public class Task extends Observable implements Runnable {
     }
     
     /**
-     * Sets the statusbar for showing progress to the user.
+     * Sets the statusbar for showing progress to the user. Dependent tasks use the same statusbar.
      */
     public void setStatusBar(StatusBar statusBar) {
         this.statusBar = statusBar;
+
+        for (Task dependent : dependents) {
+            dependent.setStatusBar(statusBar);
+        }
     }
     
-    /*
-    public void addProgressListener(ProgressListener listener) {
-        this.listeners.add(listener);
+    /**
+     * Adds a task that is run after this task has completed without errors. If this task fails or is cancelled,
+     * the dependent task is cancelled too.
+     * @return the dependent task so that calls can be chained: a.then(b).then(c)
+     */
+    public Task then(Task task) {
+        this.dependents.add(task);
+
+        if (statusBar != null) {
+            task.setStatusBar(statusBar);
+        }
+
+        return task;
+    }
+
+    /**
+     * Submits this task to the given executor. Dependent tasks are submitted to the same executor once this task has completed.
+     * @return Future that completes when this task and all of its dependents have finished.
+     */
+    public CompletableFuture<Void> submit(final Executor executor) {
+        CompletableFuture<Void> future = CompletableFuture.runAsync(this, executor);
+
+        for (final Task dependent : dependents) {
+            future = future.thenCompose(new Function<Void, CompletionStage<Void>>() {
+                public CompletionStage<Void> apply(Void result) {
+                    if (isCancelled() || hasErrors()) {
+                        dependent.cancel();
+                        dependent.finished();
+                        return CompletableFuture.completedFuture(null);
+                    }
+
+                    return dependent.submit(executor);
+                }
+            });
+        }
+
+        return future;
+    }
+
+    /**
+     * Requests the task and its dependents to stop. The task stops at the next point where it checks isCancelled().
+     */
+    public void cancel() {
+        this.cancelled = true;
+
+        for (Task dependent : dependents) {
+            dependent.cancel();
+        }
+    }
+
+    /**
+     * Tells whether the task has been requested to stop.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Records an error. The task continues unless the subclass decides to stop. Dependent tasks are not run if errors have been recorded.
+     */
+    protected void addError(Throwable error) {
+        errors.add(error);
+        System.err.println(error);
+    }
+
+    /**
+     * Tells whether this task or any of its dependents has recorded errors.
+     */
+    public boolean hasErrors() {
+        return !getErrors().isEmpty();
+    }
+
+    /**
+     * Returns the errors recorded by this task and all of its dependents.
+     */
+    public List<Throwable> getErrors() {
+        LinkedList<Throwable> result;
+        synchronized (errors) {
+            result = new LinkedList<Throwable>(errors);
+        }
+
+        for (Task dependent : dependents) {
+            result.addAll(dependent.getErrors());
+        }
+
+        return result;
     }
-    */
     
     /**
      * Updates the statusbar text.
      */
     protected void setStatusText(String text) {
-        if (statusBar != null) {
-            statusBar.setStatusText(text);
-        }
+        this.statusText = text;
+        this.updateStatusBar();
     }
     
     /**
@@ -72,12 +177,19 @@ abstract public class Task extends Observable implements Runnable {
         return estimatedOperationsCount;
     }
     
+    /**
+     * Returns the number of completed operations.
+     */
+    public int getCompletedOperationsCount() {
+        return completedOperationsCount;
+    }
+
     /**
      * Sets the number of completed operation.
      */
     protected void setCompletedOperationsCount(int n) {
         this.completedOperationsCount = n;
-        this.updateProgressBar();
+        this.updateStatusBar();
     }
     
     /**
@@ -85,21 +197,87 @@ abstract public class Task extends Observable implements Runnable {
      */
     synchronized protected void increaseCompletedOperationsCount() {
         this.completedOperationsCount++;
-        this.updateProgressBar();
+        this.updateStatusBar();
     }
     
-    private void updateProgressBar() {
+    /**
+     * Estimates the remaining time based on the rate of completed operations so far.
+     * @return Remaining time in milliseconds, -1 if the rate is not known yet.
+     */
+    public long getEstimatedTimeRemaining() {
+        int completed = this.completedOperationsCount;
+        int remaining = this.estimatedOperationsCount - completed;
+
+        if (startTime == 0 || completed < 1) {
+            return -1;
+        }
+
+        if (remaining <= 0) {
+            return 0;
+        }
+
+        long elapsed = (System.nanoTime() - startTime) / 1000000;
+        return elapsed * remaining / completed;
+    }
+
+    private void updateStatusBar() {
         if (statusBar == null) {
             return;
         }
             
         statusBar.setProgress(completedOperationsCount);
+
+        if (statusText == null) {
+            statusBar.setStatusText(null);
+            return;
+        }
+
+        long eta = getEstimatedTimeRemaining();
+        if (eta < 0) {
+            statusBar.setStatusText(statusText);
+        } else {
+            statusBar.setStatusText(statusText + " (" + formatDuration(eta) + " left)");
+        }
+    }
+
+    /**
+     * Formats milliseconds as e.g. "5 s" or "3 min 20 s".
+     */
+    private static String formatDuration(long millis) {
+        long seconds = (millis + 999) / 1000;
+
+        if (seconds < 60) {
+            return seconds + " s";
+        } else {
+            return (seconds / 60) + " min " + (seconds % 60) + " s";
+        }
+    }
+
+    /**
+     * Runs the task. Subclasses implement execute(). Observers are notified when the task is finished, even if it was cancelled or failed.
+     */
+    public final void run() {
+        this.startTime = System.nanoTime();
+
+        try {
+            if (!cancelled) {
+                execute();
+            }
+        } catch (RuntimeException e) {
+            addError(e);
+        } catch (OutOfMemoryError e) {
+            addError(e);
+        } finally {
+            finished();
+        }
     }
     
     /**
      * Called when the task is finished.
      */
     protected void finished() {
+        this.statusText = null;
+
         if (statusBar != null) {
             statusBar.setStatusText(null);
             statusBar.setProgress(0);
@@ -110,5 +288,8 @@ abstract public class Task extends Observable implements Runnable {
         notifyObservers();
     }
 
-    abstract public void run();
+    /**
+     * Performs the actual work. Long loops should check isCancelled() and return when it is set.
+     */
+    abstract protected void execute();
 }
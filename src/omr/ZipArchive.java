@@ -0,0 +1,135 @@
+package omr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import omr.gui.ImageFileFilter;
+
+/**
+ * A ZIP archive of answer sheet images. Multiple ZipSheets read their images from one archive, so that the archive
+ * does not need to be opened repeatedly. Images are streamed from the archive and never extracted to disk.
+ * <p>
+ * The archive is opened when it is first read and stays open until dispose() is called when the project is closed.
+ * Entries can be read by several threads at once.
+ *
+ * @author Tapio Auvinen
+ */
+public class ZipArchive {
+    private File file;
+    private ZipFile zipFile;       // Null until the archive is opened
+    private boolean disposed;      // Set when the project is closed. The archive is not opened again after that.
+
+    /**
+     * Constructor. The archive is not opened until it is read.
+     */
+    public ZipArchive(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Tells whether an entry is an image that can be imported as a sheet. PDF documents are only read from files,
+     * and hidden files, e.g. metadata added by archivers, are left out.
+     */
+    public static boolean isSheetEntry(String entryName) {
+        String name = getBaseName(entryName);
+        return ImageFileFilter.isImageFile(name) && !isDocument(name) && !name.startsWith(".");
+    }
+
+    /**
+     * Tells whether an entry is a PDF document. They cannot be imported from archives.
+     */
+    public static boolean isDocumentEntry(String entryName) {
+        String name = getBaseName(entryName);
+        return isDocument(name) && !name.startsWith(".");
+    }
+
+    private static boolean isDocument(String name) {
+        return name.toLowerCase().endsWith(".pdf");
+    }
+
+    /**
+     * Returns the file name of an entry without the directories.
+     */
+    public static String getBaseName(String entryName) {
+        return entryName.substring(entryName.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Returns the archive file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens the archive if it has not been opened.
+     */
+    synchronized private ZipFile open() throws IOException {
+        if (disposed) {
+            throw new IOException(file.getName() + " has been closed.");
+        }
+
+        if (zipFile == null) {
+            zipFile = new ZipFile(file);
+        }
+
+        return zipFile;
+    }
+
+    /**
+     * Returns the names of the files in the archive in name order. Directories are left out.
+     * @throws IOException if the archive cannot be opened
+     */
+    public List<String> getEntryNames() throws IOException {
+        ArrayList<String> names = new ArrayList<String>();
+        Enumeration<? extends ZipEntry> entries = open().entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.isDirectory()) {
+                names.add(entry.getName());
+            }
+        }
+
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Returns a stream that reads and decompresses an entry. The caller must close the stream.
+     * The entry is read outside the lock, since ZipFile can be read by several threads at once.
+     * @throws IOException if the archive cannot be opened or it does not contain the entry
+     */
+    public InputStream getInputStream(String entryName) throws IOException {
+        ZipFile zip = open();
+        ZipEntry entry = zip.getEntry(entryName);
+        if (entry == null) {
+            throw new IOException(entryName + " not found in " + file.getName());
+        }
+
+        return zip.getInputStream(entry);
+    }
+
+    /**
+     * Closes the archive for good. Reading it after this fails. Streams that were opened before this fail on their next read.
+     */
+    synchronized public void dispose() {
+        disposed = true;
+        if (zipFile == null) {
+            return;
+        }
+
+        try {
+            zipFile.close();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+        zipFile = null;
+    }
+}
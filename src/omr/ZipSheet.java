@@ -0,0 +1,62 @@
+package omr;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Represents an answer sheet image that is an entry of a ZIP archive. The image is decompressed from the archive
+ * whenever it is decoded, and it is never written to disk.
+ *
+ * @author Tapio Auvinen
+ */
+public class ZipSheet extends Sheet {
+    private ZipArchive archive;
+    private String entryName;
+
+    /**
+     * Constructor. The id of the sheet is the name of the archive followed by the entry path, e.g. batch1.zip/scans/0001.jpg,
+     * because images in different archives or in different directories of an archive may have the same name.
+     * @param archive Archive where the image is read
+     * @param entryName Path of the image inside the archive, e.g. scans/AnswerSheet001.jpg
+     */
+    public ZipSheet(ZipArchive archive, String entryName) {
+        super(archive.getFile().getPath(), ZipArchive.getBaseName(entryName));
+        this.archive = archive;
+        this.entryName = entryName;
+        this.id = archive.getFile().getName() + "/" + entryName;
+    }
+
+    /**
+     * Returns the path of the image inside the archive.
+     */
+    public String getEntryName() {
+        return entryName;
+    }
+
+    /**
+     * Returns the archive where the image is read.
+     */
+    public ZipArchive getArchive() {
+        return archive;
+    }
+
+    /**
+     * Opens the entry for reading. The stream is cached in memory, not in a temporary file.
+     */
+    @Override
+    protected ImageInputStream openImage() throws IOException {
+        final InputStream entry = archive.getInputStream(entryName);
+
+        // Closing the image stream does not close the underlying stream
+        return new MemoryCacheImageInputStream(entry) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                entry.close();
+            }
+        };
+    }
+}
@@ -3,19 +3,29 @@ package omr.gui;
 
 import java.awt.*;
 import java.io.File;
-import java.util.concurrent.Executor;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import javax.swing.*;
 
+import omr.AnalyzeSheetsTask;
+import omr.CopyDetectionTask;
 import omr.CsvSerializer;
 import omr.Deserializer;
 import omr.Project;
 import omr.SendFeedbacksTask;
 import omr.Serializer;
+import omr.SheetImporter;
 import omr.Task;
 import omr.gui.calibration.CalibratePanel;
 import omr.gui.results.ResultsPanel;
+import omr.gui.results.SimilarPairsDialog;
+import omr.gui.results.StatisticsPanel;
+import omr.gui.review.ReviewPanel;
 import omr.gui.structure.StructurePanel;
 
 /**
@@ -30,12 +40,15 @@ public class Gui extends JFrame {
     private File projectFile;           // Currently open project file
     
     private UndoSupport undoSupport;
-    private Executor executor;          // Background tasks executor
+    private ExecutorService executor;   // Background tasks executor
+    private LinkedList<Task> tasks;     // Submitted tasks that may still be running
     
     // Tabs
     private StructurePanel structurePanel;
     private CalibratePanel calibratePanel;
     private ResultsPanel resultsPanel;
+    private StatisticsPanel statisticsPanel;
+    private ReviewPanel reviewPanel;
     
     private StatusBar statusBar;
 
@@ -48,6 +61,7 @@ public class Gui extends JFrame {
 
         // Background tasks executor
         this.executor = Executors.newSingleThreadExecutor();
+        this.tasks = new LinkedList<Task>();
         
         this.reset();
 
@@ -96,6 +110,14 @@ public class Gui extends JFrame {
         // setMnemonicAt(0, KeyEvent.VK_1);
         tabs.addChangeListener(resultsPanel);
         
+        statisticsPanel = new StatisticsPanel(this);
+        tabs.addTab("Statistics", null, statisticsPanel, "Item analysis");
+        tabs.addChangeListener(statisticsPanel);
+        
+        reviewPanel = new ReviewPanel(this);
+        tabs.addTab("Review", null, reviewPanel, "Review uncertain bubbles");
+        tabs.addChangeListener(reviewPanel);
+        
         // Statusbar at the bottom
         statusBar = new StatusBar();
         this.add(statusBar, BorderLayout.PAGE_END);
@@ -110,10 +132,20 @@ public class Gui extends JFrame {
      * @param project Project to be edited. Never set to null.
      */
     private void setProject(Project project) {
+        // Work queued for the previous project is useless now
+        this.cancelTasks();
+        
+        Project previousProject = this.project;
         this.project = project;
         structurePanel.setProject(project);
         calibratePanel.setProject(project);
         resultsPanel.setProject(project);
+        statisticsPanel.setProject(project);
+        reviewPanel.setProject(project);
+        
+        if (previousProject != null && previousProject != project) {
+            previousProject.dispose();
+        }
     }
     
     public UndoSupport getUndoSupport() {
@@ -121,11 +153,65 @@ public class Gui extends JFrame {
     }
 
     /**
-     * Executes the given Runnable task in a thread. Tasks are queued and executed sequentially.
+     * Executes the given task in a thread. Tasks are queued and executed sequentially.
+     * @return Future that completes when the task and its dependent tasks have finished.
      */
-    public void execute(Task task) {
+    public CompletableFuture<Void> execute(final Task task) {
         task.setStatusBar(statusBar);
-        executor.execute(task);
+        
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        
+        CompletableFuture<Void> future = task.submit(executor);
+        future.thenRun(new Runnable() {
+            public void run() {
+                synchronized (tasks) {
+                    tasks.remove(task);
+                }
+            }
+        });
+        
+        return future;
+    }
+    
+    /**
+     * Requests all queued and running tasks to stop.
+     */
+    public void cancelTasks() {
+        synchronized (tasks) {
+            Iterator<Task> iterator = tasks.iterator();
+            while (iterator.hasNext()) {
+                iterator.next().cancel();
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Shows the errors of a finished task in an error dialog. Does nothing if the task succeeded.
+     * May be called from any thread.
+     */
+    private void showTaskErrors(final Task task, final String message) {
+        final List<Throwable> errors = task.getErrors();
+        if (errors.isEmpty()) {
+            return;
+        }
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                StringBuilder sb = new StringBuilder(message);
+                for (Throwable error : errors) {
+                    sb.append('\n');
+                    sb.append(error.getMessage() != null ? error.getMessage() : error.toString());
+                }
+                
+                JOptionPane.showMessageDialog(Gui.this,
+                    sb.toString(),
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            }
+        });
     }
     
     /**
@@ -289,7 +375,23 @@ public class Gui extends JFrame {
         File[] files = chooser.getSelectedFiles();
         
         try {
-            project.addAnswerSheets(files);
+            List<SheetImporter.RejectedFile> rejectedFiles = project.addAnswerSheets(files);
+            if (!rejectedFiles.isEmpty()) {
+                // List the first files only, there may be thousands
+                StringBuilder sb = new StringBuilder(rejectedFiles.size() + " files could not be read and were not imported.");
+                for (int i = 0; i < Math.min(rejectedFiles.size(), 10); i++) {
+                    sb.append('\n');
+                    sb.append(rejectedFiles.get(i));
+                }
+                if (rejectedFiles.size() > 10) {
+                    sb.append("\n...");
+                }
+                
+                JOptionPane.showMessageDialog(this,
+                    sb.toString(),
+                    "Warning",
+                    JOptionPane.WARNING_MESSAGE);
+            }
         } catch (Exception e) {
             // Show an error dialog
             JOptionPane.showMessageDialog(this,
@@ -351,10 +453,44 @@ public class Gui extends JFrame {
      * Sends all feedback emails.
      */
     public void mailFeedback() {
-    	SendFeedbacksTask mailerTask = new SendFeedbacksTask(project);
+        // Analyze the sheets that have not been analyzed yet. Thresholds and existing answers are kept, so the results
+        // that are mailed are the ones on the screen.
+        final AnalyzeSheetsTask analyzeTask = new AnalyzeSheetsTask(project, null);
+        analyzeTask.then(new SendFeedbacksTask(project));
 
         // Send emails in a background process
-        execute(mailerTask);
+        execute(analyzeTask).thenRun(new Runnable() {
+            public void run() {
+                showTaskErrors(analyzeTask, "Failed to send feedback emails.");
+            }
+        });
+    }
+    
+    /**
+     * Finds sheets with suspiciously similar answers and shows them in a dialog.
+     */
+    public void detectCopying() {
+        // Answers are read from the score matrix as they are on the screen
+        final CopyDetectionTask detectionTask = new CopyDetectionTask(project);
+
+        execute(detectionTask).thenRun(new Runnable() {
+            public void run() {
+                if (detectionTask.hasErrors()) {
+                    showTaskErrors(detectionTask, "Failed to compare answers.");
+                    return;
+                }
+                
+                if (detectionTask.isCancelled()) {
+                    return;
+                }
+                
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        new SimilarPairsDialog(Gui.this, detectionTask.getResult());
+                    }
+                });
+            }
+        });
     }
     
 }
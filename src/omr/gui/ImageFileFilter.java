@@ -3,7 +3,7 @@ package omr.gui;
 import java.io.File;
 
 /**
- * File filter that accepts supported image file formats (tiff, tif, gif, jpeg, jpg, png, pdf).
+ * File filter that accepts supported image file formats (tiff, tif, gif, jpeg, jpg, png, pdf) and zip archives of images.
  */
 public class ImageFileFilter extends javax.swing.filechooser.FileFilter implements java.io.FileFilter {
 
@@ -15,16 +15,14 @@ public class ImageFileFilter extends javax.swing.filechooser.FileFilter implemen
             return true;
         }
 
-        String extension = null;
-        String fileName = file.getName();
-        int index = fileName.lastIndexOf('.');
-        if (index > 0 && index < fileName.length() - 1) {
-            extension = fileName.substring(index + 1).toLowerCase();
-        }
-        
-        if (extension == null) {
-            return false;
-        }
+        return isImageFile(file.getName()) || isArchive(file.getName());
+    }
+
+    /**
+     * Returns true if the file name has the extension of a supported image format.
+     */
+    public static boolean isImageFile(String fileName) {
+        String extension = getExtension(fileName);
         
         if (extension.equals("tiff") ||
             extension.equals("tif") ||
@@ -40,6 +38,25 @@ public class ImageFileFilter extends javax.swing.filechooser.FileFilter implemen
         return false;
     }
 
+    /**
+     * Returns true if the file name has the extension of a zip archive.
+     */
+    public static boolean isArchive(String fileName) {
+        return getExtension(fileName).equals("zip");
+    }
+
+    /**
+     * Returns the extension of a file name in lower case, or an empty string if there is none.
+     */
+    private static String getExtension(String fileName) {
+        int index = fileName.lastIndexOf('.');
+        if (index > 0 && index < fileName.length() - 1) {
+            return fileName.substring(index + 1).toLowerCase();
+        }
+        
+        return "";
+    }
+
     public String getDescription() {
         return "Images";
     }
@@ -24,6 +24,7 @@ public class Menu extends JMenuBar implements ActionListener {
     private JMenuItem exportAnswers;
     private JMenuItem exportResults;
     private JMenuItem mailFeedback;
+    private JMenuItem detectCopying;
     
     public Menu(Gui gui) {
         this.gui = gui;
@@ -86,6 +87,12 @@ public class Menu extends JMenuBar implements ActionListener {
         mailFeedback.addActionListener(this);
         fileMenu.add(mailFeedback);
         
+        // Detect copying
+        detectCopying = new JMenuItem("Find similar answers...", KeyEvent.VK_F);
+        detectCopying.getAccessibleContext().setAccessibleDescription("Finds pairs of students with suspiciously similar answers");
+        detectCopying.addActionListener(this);
+        fileMenu.add(detectCopying);
+        
         
         // Edit menu
         JMenu editMenu = new JMenu("Edit");
@@ -154,6 +161,8 @@ public class Menu extends JMenuBar implements ActionListener {
             gui.exportResults();
         } else if (source == mailFeedback) {
             gui.mailFeedback();
+        } else if (source == detectCopying) {
+            gui.detectCopying();
         }
     }
 
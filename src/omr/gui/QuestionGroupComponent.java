@@ -6,6 +6,7 @@ import java.awt.Cursor;
 import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.io.IOException;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
@@ -14,11 +15,16 @@ import javax.swing.undo.AbstractUndoableEdit;
 import javax.swing.undo.CannotRedoException;
 import javax.swing.undo.CannotUndoException;
 
+import omr.Histogram;
 import omr.QuestionGroup;
+import omr.Sheet;
 import omr.gui.SheetEditor.Tool;
 
 /**
  * Graphical representation of a QuestionGroup. The component allows user to move and resize the QuestionGroup. 
+ * <p>
+ * While the group is being dragged, bubbles are measured on the displayed sheet and painted with their brightness,
+ * so that the user can see whether the group hits the bubbles. Other sheets are measured when the drag is finished.
  */
 public class QuestionGroupComponent extends SheetViewComponent implements MouseListener, MouseMotionListener {
     
@@ -59,6 +65,7 @@ public class QuestionGroupComponent extends SheetViewComponent implements MouseL
     private int resizeMode;               // Which edge is being dragged
     private Point dragStartPoint;         // Mouse down coordinates 
     private Rectangle originalGroupRect;  // Original bounds when resizing
+    private int[] preview;                // Brightnesses measured from the displayed sheet while dragging. Null if not dragging.
     
     /**
      * Constructor.
@@ -120,6 +127,7 @@ public class QuestionGroupComponent extends SheetViewComponent implements MouseL
                     this.dragStartPoint = point;
                     dragStartPoint.translate(getX(), getY()); // Use parent coordinate system because local coordinate system will be dragged.
                     this.originalGroupRect = new Rectangle(group.getLeftX(), group.getTopY(), group.getWidth(), group.getHeight()); 
+                    group.setAdjusting(true);
                     return;
                 }
             }
@@ -178,18 +186,48 @@ public class QuestionGroupComponent extends SheetViewComponent implements MouseL
         // Update component size and location
         if (resizeMode >= 0) {
             updateBounds();
+            updatePreview();
         }
     }
     
     public void mouseReleased(MouseEvent event) {
         // Save state for undo
         if (originalGroupRect != null) {
+            // Let the other sheets be measured
+            group.setAdjusting(false);
+            
             undoSupport.postEdit(new ResizeQuestionGroupEdit(this, originalGroupRect));
         }
         
         this.resizeMode = -1;
         this.dragStartPoint = null;
         this.originalGroupRect = null;
+        
+        if (preview != null) {
+            this.preview = null;
+            repaint();
+        }
+    }
+    
+    /**
+     * Measures the bubbles on the displayed sheet. The sheet image is cached while it is displayed, so this is fast enough to do on every mouse move.
+     */
+    private void updatePreview() {
+        Sheet sheet = sheetEditor.getSheet();
+        if (sheet == null) {
+            return;
+        }
+        
+        try {
+            this.preview = sheet.measureBrightnesses(group);
+        } catch (OutOfMemoryError e) {
+            this.preview = null;
+        } catch (IOException e) {
+            this.preview = null;
+            System.err.println("Unable to preview bubbles.\n" + e);
+        }
+        
+        repaint();
     }
 
     public void mouseMoved(MouseEvent event) {
@@ -293,7 +331,15 @@ public class QuestionGroupComponent extends SheetViewComponent implements MouseL
             //letter++;
         }
         
+        // Thresholds for previewing answers
+        int blackThreshold = -1;
+        Histogram histogram = sheetEditor.getHistogram();
+        if (histogram != null) {
+            blackThreshold = histogram.getBlackThreshold();
+        }
+        
         // Draw bubbles
+        int[] preview = this.preview;
         g.setColor(Color.BLUE);
         for (int row = 0; row < rowCount; row++) {
             int bubbleY = (int)(row * rowSpacing) + topMargin;
@@ -301,6 +347,14 @@ public class QuestionGroupComponent extends SheetViewComponent implements MouseL
             for (int col = 0; col < columnCount; col++) {
                 int bubbleX = (int)(col * columnSpacing) + leftMargin;
                 
+                if (preview != null && preview.length == rowCount * columnCount) {
+                    // Show measured brightness. Bubbles that would be filled are outlined in red.
+                    int brightness = Math.max(0, Math.min(255, preview[row * columnCount + col]));
+                    g.setColor(new Color(brightness, brightness, brightness));
+                    g.fillRect(bubbleX, bubbleY, bubbleWidth, bubbleHeight);
+                    g.setColor(brightness < blackThreshold ? Color.RED : Color.BLUE);
+                }
+                
                 g.drawRect(bubbleX, bubbleY, bubbleWidth, bubbleHeight);
             }   
         }
@@ -14,6 +14,7 @@ import javax.swing.JComponent;
 import javax.swing.Scrollable;
 import javax.swing.SwingConstants;
 
+import omr.Histogram;
 import omr.Sheet;
 
 public class SheetEditor extends JComponent implements Scrollable, Observer {
@@ -25,6 +26,7 @@ public class SheetEditor extends JComponent implements Scrollable, Observer {
     protected double zoomLevel;
     protected Sheet sheet;                        // Currently displayed sheet. May be null.
     protected BufferedImage sheetBuffer;          // Local copy of the current sheet image at current zoom level.
+    protected Histogram histogram;                // Thresholds used for previewing answers. May be null.
     
     protected UndoSupport undoSupport;
     
@@ -47,6 +49,17 @@ public class SheetEditor extends JComponent implements Scrollable, Observer {
         return this.currentTool;
     }
     
+    /**
+     * Sets the histogram whose thresholds are used for previewing answers.
+     */
+    public void setHistogram(Histogram histogram) {
+        this.histogram = histogram;
+    }
+    
+    public Histogram getHistogram() {
+        return this.histogram;
+    }
+    
     /**
      * Sets the sheet to be displayed. Set to null to display nothing.
      */
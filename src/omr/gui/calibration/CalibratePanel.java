@@ -2,6 +2,8 @@ package omr.gui.calibration;
 
 
 import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.Observable;
 import java.util.Observer;
 
@@ -13,21 +15,35 @@ import javax.swing.JSplitPane;
 import javax.swing.JTabbedPane;
 import javax.swing.JTable;
 import javax.swing.JToolBar;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
 import omr.AnalyzeSheetsTask;
+import omr.ModelListener;
+import omr.OMRProperties;
 import omr.Project;
 import omr.Sheet;
-import omr.Task;
+import omr.SheetStructure;
+import omr.SheetsChange;
 import omr.Project.ThresholdingStrategy;
+import omr.SheetStructure.SheetStructureEvent;
 import omr.gui.Gui;
 
-public class CalibratePanel extends JPanel implements ListSelectionListener, ChangeListener, Observer  {
+/**
+ * Calibrate tab. Sheets are analyzed when the tab is opened. They are also analyzed speculatively in the background
+ * soon after sheets are imported or the structure changes, so that most of the work is done by the time the tab is opened.
+ * The background analysis only measures the brightnesses. Thresholds and answers are calculated when the tab is opened.
+ */
+public class CalibratePanel extends JPanel implements ListSelectionListener, ChangeListener, Observer, ModelListener<SheetsChange>  {
     private static final long serialVersionUID = 1L;
     
+    // Milliseconds to wait after the last import or structure change before analyzing in the background. Negative disables.
+    private static final int SPECULATION_DELAY = OMRProperties.getInt("speculative-analysis-delay", 1000);
+    
     private Gui gui;
     private Project project;
     
@@ -45,7 +61,8 @@ public class CalibratePanel extends JPanel implements ListSelectionListener, Cha
     private CalibrationPropertiesPanel calibrationProperties;        // Global properties
 
     
-    private Task analyzeTask;
+    private AnalyzeSheetsTask analyzeTask;
+    private Timer speculationTimer;       // Starts background analysis when changes have settled
     
     
     private JPanel rightPanel;  // Contains the sheet editor and the properties panel
@@ -98,11 +115,37 @@ public class CalibratePanel extends JPanel implements ListSelectionListener, Cha
         // Add top level components
         this.add(toolbar, BorderLayout.PAGE_START);
         this.add(splitPane, BorderLayout.CENTER);
+        
+        speculationTimer = new Timer(Math.max(SPECULATION_DELAY, 0), new ActionListener() {
+            public void actionPerformed(ActionEvent event) {
+                startSpeculativeAnalysis();
+            }
+        });
+        speculationTimer.setRepeats(false);
     }
     
     public void setProject(Project project) {
+        // Stop analyzing the previous project
+        speculationTimer.stop();
+        if (analyzeTask != null) {
+            analyzeTask.cancel();
+            analyzeTask = null;
+        }
+        
+        // Unsubscribe from previous model
+        if (this.project != null) {
+            this.project.getSheetsContainer().getChangeBus().removeListener(this);
+            this.project.getSheetStructure().deleteObserver(this);
+        }
+        
         this.project = project;
         
+        // Subscribe to new model
+        if (project != null) {
+            project.getSheetsContainer().getChangeBus().addListener(this);
+            project.getSheetStructure().addObserver(this);
+        }
+        
         sheetTableModel.setProject(project);
         sheetView.setProject(project);
         histogram.setProject(project);
@@ -124,6 +167,12 @@ public class CalibratePanel extends JPanel implements ListSelectionListener, Cha
             if (row >= 0) {
                 Sheet sheet = (Sheet)sheetList.getValueAt(row, 0);
                 if (sheet != null) {
+                    // Analyze the selected sheet first if analysis is running
+                    AnalyzeSheetsTask task = analyzeTask;
+                    if (task != null) {
+                        task.prioritize(sheet);
+                    }
+                    
                     // Display selected sheet
                     sheetView.setSheet(sheet);
                     
@@ -142,19 +191,101 @@ public class CalibratePanel extends JPanel implements ListSelectionListener, Cha
         JTabbedPane tabs = (JTabbedPane)event.getSource();
         
         // Switched to this tab?        
-        if (this == tabs.getSelectedComponent() && analyzeTask == null) {
-            // TODO: don't recalculate sheets or sheet structure have not changed
-            analyzeTask = new AnalyzeSheetsTask(project, this);
+        if (this == tabs.getSelectedComponent()) {
+            if (analyzeTask != null && !analyzeTask.isCancelled()) {
+                // Speculative analysis is already running. Results are needed now.
+                analyzeTask.setBackground(false);
+            } else {
+                startAnalysis(false);
+            }
+        }
+    }
+    
+    /**
+     * Starts analyzing the sheets. Sheets whose results are still valid are skipped quickly.
+     * @param background Run at low priority
+     */
+    private void startAnalysis(boolean background) {
+        speculationTimer.stop();
+        
+        analyzeTask = new AnalyzeSheetsTask(project, this, background);
 
-            // Calculate brightnesses in a background process
-            gui.execute(analyzeTask);
+        // Calculate brightnesses in a background process
+        gui.execute(analyzeTask);
+    }
+    
+    /**
+     * Starts background analysis if there is something to analyze and the analysis is not running already.
+     * Sheets cannot be aligned before a reference sheet with registration markers exists.
+     */
+    private void startSpeculativeAnalysis() {
+        if (project == null || project.getAnswerSheets().isEmpty()) {
+            return;
+        }
+        
+        SheetStructure structure = project.getSheetStructure();
+        if (structure.getReferenceSheet() == null || structure.getRegistrationMarkers().isEmpty()) {
+            return;
+        }
+        
+        if (analyzeTask != null && !analyzeTask.isCancelled()) {
+            return;
+        }
+        
+        startAnalysis(!this.isShowing());
+    }
+    
+    /**
+     * Waits for the changes to settle and then starts background analysis.
+     */
+    private void scheduleSpeculativeAnalysis() {
+        if (SPECULATION_DELAY >= 0) {
+            speculationTimer.restart();
+        }
+    }
+    
+    /**
+     * Notified by the sheets container when sheets are imported or removed.
+     */
+    public void modelChanged(SheetsChange change) {
+        if (change.isListChanged()) {
+            scheduleSpeculativeAnalysis();
         }
     }
 
     
     public void update(Observable source, Object event) {
-        // Called when brightness task is finished
-        analyzeTask = null;
+        // Structure changed. The running analysis cancels itself, so start a new one when the user stops editing.
+        if (source instanceof SheetStructure) {
+            if (event != SheetStructureEvent.ANSWER_KEY_CHANGED) {
+                scheduleSpeculativeAnalysis();
+            }
+            return;
+        }
+        
+
+        // Partial results while the analysis is running. The sheet list is updated through the change bus.
+        if (event == AnalyzeSheetsTask.PARTIAL_RESULTS) {
+            histogram.repaint();
+            return;
+        }
+        
+        // Called when brightness task is finished. Ignore tasks that have been replaced.
+        if (source == analyzeTask) {
+            AnalyzeSheetsTask task = analyzeTask;
+            analyzeTask = null;
+            
+            // The task may have finished in the background just before the tab was opened. Calculate the answers now.
+            if (!task.isCancelled() && !task.hasErrors() && !task.isAnswersCalculated()) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (analyzeTask == null && isShowing()) {
+                            startAnalysis(false);
+                        }
+                    }
+                });
+            }
+        }
         repaint();
     }
     
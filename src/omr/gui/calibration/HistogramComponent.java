@@ -15,6 +15,7 @@ import javax.swing.JComponent;
 
 import omr.Histogram;
 import omr.Project;
+import omr.Project.ThresholdingStrategy;
 
 public class HistogramComponent extends JComponent implements MouseListener, MouseMotionListener {
     private static final long serialVersionUID = 1L;
@@ -212,23 +213,42 @@ public class HistogramComponent extends JComponent implements MouseListener, Mou
         this.whiteThresholdX = (int)((histogram.getWhiteThreshold() - histogramViewMin) * barWidth);
         
         repaint();  // TODO: only repaint the damaged region
+        
+        // Update answers while dragging if only the bubbles between the old and new thresholds need to be reclassified.
+        // Otherwise the answers are recalculated when the mouse is released.
+        if ((this.dragBlackThreshold || this.dragWhiteThreshold) && project != null && histogram == project.getHistogram()
+                && project.getThresholdingStrategy() == ThresholdingStrategy.GLOBAL) {
+            updateAnswers();
+        }
     }
     
     public void mouseReleased(MouseEvent arg0) {
+        boolean dragged = this.dragBlackThreshold || this.dragWhiteThreshold;
         this.dragBlackThreshold = false;
         this.dragWhiteThreshold = false;
         
-        // Thresholds have been changed. Recalculate answers.
+        if (dragged) {
+            updateAnswers();
+        }
+        
+        // TODO: undo
+    }
+    
+    /**
+     * Thresholds have been changed. Recalculates answers.
+     */
+    private void updateAnswers() {
+        if (project == null) {
+            return;
+        }
         
         if (histogram == project.getHistogram()) {
-            // Editing global histogram
-            project.calculateAnswers();
+            // Editing global histogram. Only the bubbles between the old and new thresholds are reclassified.
+            project.updateAnswers();
         } else {
             // Editing sheet histogram
             sheetEditor.calculateAnswers();
         }
-        
-        // TODO: undo
     }
 
     public Dimension getPreferredSize() {
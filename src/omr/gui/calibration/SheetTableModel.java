@@ -1,15 +1,16 @@
 package omr.gui.calibration;
 
 import java.util.AbstractList;
-import java.util.Observable;
-import java.util.Observer;
+import java.util.BitSet;
 
 import javax.swing.table.AbstractTableModel;
 
+import omr.ModelListener;
 import omr.Project;
 import omr.Sheet;
+import omr.SheetsChange;
 
-public class SheetTableModel extends AbstractTableModel implements Observer {
+public class SheetTableModel extends AbstractTableModel implements ModelListener<SheetsChange> {
     
     private static final long serialVersionUID = 1L;
     private Project project;
@@ -20,14 +21,14 @@ public class SheetTableModel extends AbstractTableModel implements Observer {
     public void setProject(Project project) {
         // Unsubscribe from previous model
         if (this.project != null) {
-            this.project.getSheetsContainer().deleteObserver(this);
+            this.project.getSheetsContainer().getChangeBus().removeListener(this);
         }
         
         this.project = project;
         
         // Subscribe to new model
         if (project != null) {
-            project.getSheetsContainer().addObserver(this);
+            project.getSheetsContainer().getChangeBus().addListener(this);
         }
         
         fireTableDataChanged();
@@ -88,12 +89,20 @@ public class SheetTableModel extends AbstractTableModel implements Observer {
     }
 
     /**
-     * Notified by the SheetsContainer when the sheet list is updated.
+     * Notified by the SheetsContainer when sheets change. Consecutive changed rows are updated with one event.
      */
-    public void update(Observable source, Object event) {
-    	if (event instanceof Integer) {
-        	int row = (Integer)event;
-    		fireTableRowsUpdated(row, row);
+    public void modelChanged(SheetsChange change) {
+        if (change.isListChanged()) {
+            fireTableDataChanged();
+            return;
+        }
+        
+        BitSet rows = change.getChangedRows();
+        int first = rows.nextSetBit(0);
+        while (first >= 0) {
+            int last = rows.nextClearBit(first) - 1;
+            fireTableRowsUpdated(first, last);
+            first = rows.nextSetBit(last + 1);
         }
     }
 }
@@ -0,0 +1,108 @@
+package omr.gui.results;
+
+import javax.swing.table.AbstractTableModel;
+
+import omr.ItemStatistics;
+import omr.ScoreMatrix;
+
+/**
+ * Shows item analysis statistics, one question per row.
+ */
+public class ItemStatisticsTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    
+    private static final String[] COLUMN_NAMES = {"Question", "Difficulty", "Discrimination", "Point-biserial", "Mean score", "Blank", "Multiple"};
+    
+    private ScoreMatrix scores;
+    private ItemStatistics statistics;
+    private int alternativesCount;     // Maximum number of alternatives in any question
+    
+    public ItemStatisticsTableModel() {
+    }
+    
+    /**
+     * Sets the statistics to show.
+     * @param scores ScoreMatrix that was used to calculate the statistics. Used for question numbers.
+     */
+    public void setStatistics(ScoreMatrix scores, ItemStatistics statistics) {
+        this.scores = scores;
+        this.statistics = statistics;
+        
+        this.alternativesCount = 0;
+        if (scores != null) {
+            for (int column = 0; column < statistics.getQuestionsCount(); column++) {
+                alternativesCount = Math.max(alternativesCount, scores.getColumnGroup(column).getAlternativesCount());
+            }
+        }
+        
+        fireTableStructureChanged();
+    }
+    
+    public int getColumnCount() {
+        return COLUMN_NAMES.length + alternativesCount;
+    }
+    
+    public String getColumnName(int col) {
+        if (col < COLUMN_NAMES.length) {
+            return COLUMN_NAMES[col];
+        }
+        
+        // Alternatives
+        return Character.toString((char)('A' + col - COLUMN_NAMES.length));
+    }
+    
+    public int getRowCount() {
+        if (statistics == null) {
+            return 0;
+        }
+        
+        return statistics.getQuestionsCount();
+    }
+    
+    public Object getValueAt(int row, int col) {
+        if (statistics == null) {
+            return null;
+        }
+        
+        switch (col) {
+        case 0:
+            return scores.getColumnGroup(row).getQuestionNumber(scores.getColumnQuestion(row));
+        case 1:
+            return format(statistics.getDifficulty(row));
+        case 2:
+            return format(statistics.getDiscrimination(row));
+        case 3:
+            return format(statistics.getPointBiserial(row));
+        case 4:
+            return format(statistics.getMeanScore(row));
+        case 5:
+            return statistics.getBlankCount(row);
+        case 6:
+            return statistics.getMultipleCount(row);
+        }
+        
+        // Choice frequencies of alternatives
+        int alternative = col - COLUMN_NAMES.length;
+        if (alternative >= scores.getColumnGroup(row).getAlternativesCount()) {
+            return null;
+        }
+        
+        return statistics.getAlternativeCount(row, alternative);
+    }
+    
+    /**
+     * Formats a statistic with two decimals. Undefined values are shown as "-".
+     */
+    static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "-";
+        }
+        
+        return String.format("%.2f", value);
+    }
+    
+    public boolean isCellEditable(int row, int col) {
+        return false;
+    }
+    
+}
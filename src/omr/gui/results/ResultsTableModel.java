@@ -1,14 +1,16 @@
 package omr.gui.results;
 
+import java.util.Observable;
+import java.util.Observer;
+
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.AbstractTableModel;
 
-import omr.GradingScheme;
 import omr.Project;
-import omr.QuestionGroup;
+import omr.ScoreMatrix;
 import omr.Sheet;
-import omr.QuestionGroup.Orientation;
 
-public class ResultsTableModel extends AbstractTableModel {
+public class ResultsTableModel extends AbstractTableModel implements Observer {
     private static final long serialVersionUID = 1L;
     
     private Project project;
@@ -17,7 +19,16 @@ public class ResultsTableModel extends AbstractTableModel {
     }
     
     public void setProject(Project project) {
+        if (this.project != null) {
+            this.project.getScoreMatrix().deleteObserver(this);
+        }
+        
         this.project = project;
+        
+        if (project != null) {
+            project.getScoreMatrix().addObserver(this);
+        }
+        
         fireTableStructureChanged();
     }
     
@@ -25,19 +36,8 @@ public class ResultsTableModel extends AbstractTableModel {
         if (project == null) {
             return 3;
         } else {
-            // TODO: cache this.
-            
-            int questionsCount = 0;
-            for (QuestionGroup group : project.getSheetStructure().getQuestionGroups()) {
-            	if (group.getOrientation() != Orientation.VERTICAL && group.getOrientation() != Orientation.HORIZONTAL) {
-                    continue;
-                }
-            	
-                questionsCount += group.getQuestionsCount();
-            }
-            
             // Filename, Student id, questions, total score
-            return questionsCount + 3;
+            return project.getScoreMatrix().getColumnCount() + 3;
         }
         
     }
@@ -53,17 +53,10 @@ public class ResultsTableModel extends AbstractTableModel {
             return "Total points";
         }
         
+        ScoreMatrix scores = project.getScoreMatrix();
         col -= 2;
-        for (QuestionGroup group : project.getSheetStructure().getQuestionGroups()) {
-            if (group.getOrientation() != Orientation.VERTICAL && group.getOrientation() != Orientation.HORIZONTAL) {
-                continue;
-            }
-            
-            if (col < group.getQuestionsCount()) {
-                return Integer.toString(group.getQuestionNumber(col));
-            } else {
-                col -= group.getQuestionsCount();
-            }
+        if (col < scores.getColumnCount()) {
+            return Integer.toString(scores.getColumnGroup(col).getQuestionNumber(scores.getColumnQuestion(col)));
         }
         
         return "Total points";
@@ -83,7 +76,7 @@ public class ResultsTableModel extends AbstractTableModel {
         }
         
         Sheet sheet = project.getAnswerSheets().get(row);
-        GradingScheme grading = project.getGradingScheme();
+        ScoreMatrix scores = project.getScoreMatrix();
         
         // Studentnumber in the left-most column
         if (col == 0) {
@@ -94,20 +87,12 @@ public class ResultsTableModel extends AbstractTableModel {
 
         // Points
         col -= 2;
-        for (QuestionGroup group : project.getSheetStructure().getQuestionGroups()) {
-            if (group.getOrientation() != Orientation.VERTICAL && group.getOrientation() != Orientation.HORIZONTAL) {
-                continue;
-            }
-            
-            if (col < group.getQuestionsCount()) {
-                return grading.getScore(sheet, group, col); 
-            } else {
-                col -= group.getQuestionsCount();
-            }
+        if (col < scores.getColumnCount()) {
+            return scores.getScore(sheet, col);
         }
             
         // Total score in the last column
-        return grading.getScore(sheet, project.getSheetStructure());
+        return scores.getTotalScore(sheet);
     }
     
     public boolean isCellEditable(int row, int col) {
@@ -121,5 +106,21 @@ public class ResultsTableModel extends AbstractTableModel {
     public void refreshStructure() {
         fireTableStructureChanged();
     }
+    
+    /**
+     * Notified by the ScoreMatrix when scores change. Event is an int[] of the re-graded columns if only some questions were re-graded,
+     * null if all scores changed.
+     */
+    public void update(Observable source, Object event) {
+        if (event instanceof int[]) {
+            int lastRow = getRowCount() - 1;
+            for (int column : (int[])event) {
+                fireTableChanged(new TableModelEvent(this, 0, lastRow, column + 2));
+            }
+            fireTableChanged(new TableModelEvent(this, 0, lastRow, getColumnCount() - 1));
+        } else {
+            fireTableDataChanged();
+        }
+    }
 
 }
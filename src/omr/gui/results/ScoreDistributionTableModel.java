@@ -0,0 +1,48 @@
+package omr.gui.results;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import javax.swing.table.AbstractTableModel;
+
+import omr.ItemStatistics;
+
+/**
+ * Shows the number of sheets with each total score.
+ */
+public class ScoreDistributionTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    
+    private ArrayList<Map.Entry<Double, Integer>> distribution;
+    
+    public ScoreDistributionTableModel() {
+        this.distribution = new ArrayList<Map.Entry<Double, Integer>>();
+    }
+    
+    public void setStatistics(ItemStatistics statistics) {
+        this.distribution = new ArrayList<Map.Entry<Double, Integer>>(statistics.getScoreDistribution().entrySet());
+        fireTableDataChanged();
+    }
+    
+    public int getColumnCount() {
+        return 2;
+    }
+    
+    public String getColumnName(int col) {
+        return col == 0 ? "Total points" : "Sheets";
+    }
+    
+    public int getRowCount() {
+        return distribution.size();
+    }
+    
+    public Object getValueAt(int row, int col) {
+        Map.Entry<Double, Integer> entry = distribution.get(row);
+        return col == 0 ? entry.getKey() : entry.getValue();
+    }
+    
+    public boolean isCellEditable(int row, int col) {
+        return false;
+    }
+    
+}
@@ -0,0 +1,108 @@
+package omr.gui.results;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JButton;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+
+import omr.CopyDetector.SimilarPair;
+import omr.Sheet;
+
+/**
+ * Shows pairs of sheets with suspiciously similar answers, most suspicious first.
+ */
+public class SimilarPairsDialog extends JDialog implements ActionListener {
+    private static final long serialVersionUID = 1L;
+
+    private JButton okButton;      // OK button to close the dialog
+    
+    public SimilarPairsDialog(JFrame owner, List<SimilarPair> pairs) {
+        super(owner, "Similar answers");
+        
+        // Add widgets
+        JTable table = new JTable(new SimilarPairsTableModel(pairs));
+        table.setFillsViewportHeight(true);
+        
+        JPanel buttonsPanel = new JPanel(new FlowLayout());
+        okButton = new JButton("OK");
+        okButton.addActionListener(this);
+        buttonsPanel.add(okButton);
+        
+        if (pairs.isEmpty()) {
+            this.add(new JLabel("No suspicious pairs found."), BorderLayout.PAGE_START);
+        }
+        this.add(new JScrollPane(table), BorderLayout.CENTER);
+        this.add(buttonsPanel, BorderLayout.PAGE_END);
+        
+        // Show the dialog
+        this.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        this.setModal(true);
+        this.pack();
+        this.setLocationRelativeTo(owner);
+        this.setVisible(true);
+    }
+    
+    public void actionPerformed(ActionEvent event) {
+        // Close the dialog 
+        this.dispose();
+    }
+    
+    private static class SimilarPairsTableModel extends AbstractTableModel {
+        private static final long serialVersionUID = 1L;
+        
+        private static final String[] COLUMN_NAMES = {"Image", "Student ID", "Image", "Student ID", "Shared wrong answers", "Identical answers", "Similarity"};
+        
+        private ArrayList<SimilarPair> pairs;
+        
+        public SimilarPairsTableModel(List<SimilarPair> pairs) {
+            this.pairs = new ArrayList<SimilarPair>(pairs);
+        }
+        
+        public int getColumnCount() {
+            return COLUMN_NAMES.length;
+        }
+        
+        public String getColumnName(int col) {
+            return COLUMN_NAMES[col];
+        }
+        
+        public int getRowCount() {
+            return pairs.size();
+        }
+        
+        public Object getValueAt(int row, int col) {
+            SimilarPair pair = pairs.get(row);
+            Sheet sheet = col < 2 ? pair.getFirst() : pair.getSecond();
+            
+            switch (col) {
+            case 0:
+            case 2:
+                return sheet.getFileName();
+            case 1:
+            case 3:
+                return sheet.getStudentId();
+            case 4:
+                return pair.getSharedWrongAnswers();
+            case 5:
+                return pair.getIdenticalAnswers();
+            default:
+                return ItemStatisticsTableModel.format(pair.getSimilarity());
+            }
+        }
+        
+        public boolean isCellEditable(int row, int col) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package omr.gui.results;
+
+import java.awt.BorderLayout;
+import java.util.Observable;
+import java.util.Observer;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTabbedPane;
+import javax.swing.JTable;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import omr.ItemStatistics;
+import omr.Project;
+import omr.gui.Gui;
+
+/**
+ * Shows item analysis of the exam: statistics of each question, the score distribution and reliability.
+ */
+public class StatisticsPanel extends JPanel implements ChangeListener, Observer {
+    private static final long serialVersionUID = 1L;
+    
+    private Project project;
+    
+    private JLabel summaryLabel;
+    private ItemStatisticsTableModel itemsTableModel;
+    private ScoreDistributionTableModel distributionTableModel;
+    
+    public StatisticsPanel(Gui gui) {
+        this.setLayout(new BorderLayout());
+        
+        // Exam summary at the top
+        summaryLabel = new JLabel(" ");
+        summaryLabel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        this.add(summaryLabel, BorderLayout.PAGE_START);
+        
+        // Questions on the left, score distribution on the right
+        itemsTableModel = new ItemStatisticsTableModel();
+        JTable itemsTable = new JTable(itemsTableModel);
+        itemsTable.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
+        itemsTable.setFillsViewportHeight(true);
+        
+        distributionTableModel = new ScoreDistributionTableModel();
+        JTable distributionTable = new JTable(distributionTableModel);
+        distributionTable.setFillsViewportHeight(true);
+        
+        JSplitPane splitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, new JScrollPane(itemsTable), new JScrollPane(distributionTable));
+        splitPane.setResizeWeight(0.8);
+        this.add(splitPane, BorderLayout.CENTER);
+    }
+    
+    public void setProject(Project project) {
+        if (this.project != null) {
+            this.project.getScoreMatrix().deleteObserver(this);
+        }
+        
+        this.project = project;
+        project.getScoreMatrix().addObserver(this);
+        
+        if (this.isShowing()) {
+            refresh();
+        }
+    }
+    
+    /**
+     * Recalculates the statistics and updates the tables.
+     */
+    public void refresh() {
+        if (project == null) {
+            return;
+        }
+        
+        ItemStatistics statistics = project.getScoreMatrix().getStatistics();
+        
+        itemsTableModel.setStatistics(project.getScoreMatrix(), statistics);
+        distributionTableModel.setStatistics(statistics);
+        
+        summaryLabel.setText("Sheets: " + statistics.getSheetCount() +
+                "   Mean: " + ItemStatisticsTableModel.format(statistics.getMean()) +
+                "   Standard deviation: " + ItemStatisticsTableModel.format(statistics.getStandardDeviation()) +
+                "   KR-20: " + ItemStatisticsTableModel.format(statistics.getKR20()) +
+                "   Cronbach's alpha: " + ItemStatisticsTableModel.format(statistics.getCronbachAlpha()));
+    }
+    
+    /**
+     * Called when tab is switched.
+     */
+    public void stateChanged(ChangeEvent event) {
+        JTabbedPane tabs = (JTabbedPane)event.getSource();
+        
+        // Switched to this tab?
+        if (this == tabs.getSelectedComponent()) {
+            refresh();
+        }
+    }
+    
+    /**
+     * Notified by the ScoreMatrix when scores are re-graded. An answer key change that re-grades many questions arrives as one notification.
+     */
+    public void update(Observable source, Object event) {
+        if (this.isShowing()) {
+            refresh();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package omr.gui.review;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+
+import omr.BubbleAtlas;
+import omr.QuestionGroup;
+import omr.Sheet;
+
+/**
+ * Shows crops of doubtful bubbles as a grid. Only the visible cells are painted, and crops are read from the BubbleAtlas,
+ * so scrolling through thousands of bubbles never loads a sheet image. Clicking a crop toggles the answer override of the bubble.
+ */
+public class BubbleGrid extends JComponent implements Scrollable, MouseListener {
+    private static final long serialVersionUID = 1L;
+
+    private static final int CELL_WIDTH = BubbleAtlas.TILE_SIZE + 8;
+    private static final int CELL_HEIGHT = BubbleAtlas.TILE_SIZE + 22;
+
+    /**
+     * A bubble in the grid.
+     */
+    public static class Item {
+        Sheet sheet;
+        QuestionGroup group;
+        int row;
+        int column;
+        int bubble;          // Bubble index in the result store
+        int brightness;
+        int distance;        // Distance of the brightness from the nearest threshold
+
+        public Item(Sheet sheet, QuestionGroup group, int row, int column, int bubble, int brightness, int distance) {
+            this.sheet = sheet;
+            this.group = group;
+            this.row = row;
+            this.column = column;
+            this.bubble = bubble;
+            this.brightness = brightness;
+            this.distance = distance;
+        }
+
+        public int getDistance() {
+            return distance;
+        }
+    }
+
+    private BubbleAtlas atlas;
+    private int generation;           // Result store generation of the bubble numbers
+    private ArrayList<Item> items;
+
+    public BubbleGrid() {
+        this.items = new ArrayList<Item>();
+        this.setBackground(Color.WHITE);
+        this.setOpaque(true);
+        this.addMouseListener(this);
+        this.setToolTipText("");  // Registers the component for tooltips
+    }
+
+    /**
+     * Sets the bubbles to show.
+     * @param generation Result store generation that the bubble numbers of the items refer to
+     */
+    public void setItems(BubbleAtlas atlas, int generation, ArrayList<Item> items) {
+        this.atlas = atlas;
+        this.generation = generation;
+        this.items = items;
+
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Returns the number of cells on a row. Cells are wrapped to the width of the viewport.
+     */
+    private int getColumnCount() {
+        int width = getParent() instanceof JViewport ? getParent().getWidth() : getWidth();
+        return Math.max(1, width / CELL_WIDTH);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        int columns = getColumnCount();
+        int firstRow = clip.y / CELL_HEIGHT;
+        int lastRow = (clip.y + clip.height) / CELL_HEIGHT;
+
+        // Paint visible cells only
+        for (int index = firstRow * columns; index < Math.min(items.size(), (lastRow + 1) * columns); index++) {
+            paintItem(g, items.get(index), (index % columns) * CELL_WIDTH + 4, (index / columns) * CELL_HEIGHT + 4);
+        }
+    }
+
+    private void paintItem(Graphics g, Item item, int x, int y) {
+        int size = BubbleAtlas.TILE_SIZE;
+
+        BufferedImage crop = atlas == null ? null : atlas.getCrop(generation, item.sheet.getSlot(), item.bubble);
+        if (crop != null) {
+            g.drawImage(crop, x, y, null);
+        } else {
+            // Crop was not saved, e.g. because the thresholds have been moved far
+            g.setColor(Color.LIGHT_GRAY);
+            g.fillRect(x, y, size, size);
+        }
+
+        // Mark the bubble in the middle. Blue if forced black, gray if forced white, red if uncertain.
+        int override = item.sheet.getAnswerOverride(item.group, item.row, item.column);
+        if (override < 0) {
+            g.setColor(Color.BLUE);
+        } else if (override > 0) {
+            g.setColor(Color.GRAY);
+        } else {
+            g.setColor(Color.RED);
+        }
+        g.drawRect(x + size / 3, y + size / 3, size / 3, size / 3);
+        g.drawRect(x, y, size - 1, size - 1);
+
+        // Label: question, alternative and brightness
+        String label = item.group.getRowLabel(item.row) + " " + item.group.getColumnLabel(item.column) + " (" + item.brightness + ")";
+        g.setColor(Color.BLACK);
+        g.drawString(label, x, y + size + 13);
+    }
+
+    /**
+     * Returns the index of the item at the given point, -1 if none.
+     */
+    private int getIndexAt(int x, int y) {
+        int column = x / CELL_WIDTH;
+        int columns = getColumnCount();
+        if (column >= columns) {
+            return -1;
+        }
+
+        int index = (y / CELL_HEIGHT) * columns + column;
+        return index < items.size() ? index : -1;
+    }
+
+    /**
+     * Shows the sheet of the bubble under the mouse.
+     */
+    @Override
+    public String getToolTipText(MouseEvent event) {
+        int index = getIndexAt(event.getX(), event.getY());
+        return index < 0 ? null : items.get(index).sheet.getFileName();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        int columns = getColumnCount();
+        int rows = (items.size() + columns - 1) / columns;
+        return new Dimension(CELL_WIDTH * 4, rows * CELL_HEIGHT);
+    }
+
+    public Dimension getPreferredScrollableViewportSize() {
+        return new Dimension(CELL_WIDTH * 8, CELL_HEIGHT * 5);
+    }
+
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? CELL_HEIGHT / 2 : CELL_WIDTH / 2;
+    }
+
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+
+    /**
+     * Toggles the answer of the clicked bubble.
+     */
+    public void mouseClicked(MouseEvent event) {
+        int index = getIndexAt(event.getX(), event.getY());
+        if (index < 0) {
+            return;
+        }
+
+        Item item = items.get(index);
+        if (item.sheet.getSlot() < 0) {
+            return;  // Sheet has been removed
+        }
+
+        item.sheet.toggleAnswer(item.group, item.row, item.column);
+
+        int columns = getColumnCount();
+        repaint((index % columns) * CELL_WIDTH, (index / columns) * CELL_HEIGHT, CELL_WIDTH, CELL_HEIGHT);
+    }
+
+    public void mousePressed(MouseEvent event) {
+    }
+
+    public void mouseReleased(MouseEvent event) {
+    }
+
+    public void mouseEntered(MouseEvent event) {
+    }
+
+    public void mouseExited(MouseEvent event) {
+    }
+}
@@ -0,0 +1,148 @@
+package omr.gui.review;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTabbedPane;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+import omr.Histogram;
+import omr.Project;
+import omr.Project.ThresholdingStrategy;
+import omr.QuestionGroup;
+import omr.ResultStore;
+import omr.Sheet;
+import omr.gui.Gui;
+
+/**
+ * Review queue of uncertain bubbles of all sheets. Bubbles are shown as crops ordered by the distance of their brightness
+ * from the nearest threshold, so that they can be resolved without opening each sheet.
+ */
+public class ReviewPanel extends JPanel implements ChangeListener, ActionListener {
+    private static final long serialVersionUID = 1L;
+
+    private Project project;
+
+    private JLabel summaryLabel;
+    private JButton refreshButton;
+    private BubbleGrid grid;
+
+    public ReviewPanel(Gui gui) {
+        this.setLayout(new BorderLayout());
+
+        // Summary and refresh button at the top
+        JPanel topPanel = new JPanel(new BorderLayout());
+        topPanel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        summaryLabel = new JLabel(" ");
+        topPanel.add(summaryLabel, BorderLayout.CENTER);
+        refreshButton = new JButton("Refresh");
+        refreshButton.addActionListener(this);
+        topPanel.add(refreshButton, BorderLayout.LINE_END);
+        this.add(topPanel, BorderLayout.PAGE_START);
+
+        grid = new BubbleGrid();
+        JScrollPane scrollPane = new JScrollPane(grid);
+        scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        this.add(scrollPane, BorderLayout.CENTER);
+    }
+
+    public void setProject(Project project) {
+        this.project = project;
+
+        if (this.isShowing()) {
+            refresh();
+        }
+    }
+
+    /**
+     * Collects the uncertain bubbles of all sheets and shows them in the grid.
+     * Bubbles that were uncertain but have been overridden are included, so that they stay in place after clicking.
+     */
+    public void refresh() {
+        if (project == null) {
+            return;
+        }
+
+        ResultStore results = project.getSheetsContainer().getResultStore();
+        Histogram globalHistogram = project.getHistogram();
+        boolean global = project.getThresholdingStrategy() == ThresholdingStrategy.GLOBAL;
+
+        ArrayList<BubbleGrid.Item> items = new ArrayList<BubbleGrid.Item>();
+        int sheetCount = 0;
+
+        for (Sheet sheet : project.getAnswerSheets()) {
+            int slot = sheet.getSlot();
+            if (slot < 0 || !results.isChoicesValid(slot)) {
+                continue;
+            }
+
+            Histogram histogram = global ? globalHistogram : sheet.getHistogram();
+            int blackThreshold = histogram.getBlackThreshold();
+            int whiteThreshold = histogram.getWhiteThreshold();
+            int itemCount = items.size();
+
+            for (QuestionGroup group : results.getQuestionGroups()) {
+                int offset = results.getOffset(group);
+                int columnCount = group.getColumnCount();
+
+                for (int row = 0; row < group.getRowCount(); row++) {
+                    for (int column = 0; column < columnCount; column++) {
+                        int bubble = offset + row * columnCount + column;
+                        if (results.getChoice(slot, bubble) != 0) {
+                            continue;
+                        }
+
+                        int brightness = results.getBrightness(slot, bubble);
+                        int distance = Math.min(brightness - blackThreshold, whiteThreshold - brightness);
+                        items.add(new BubbleGrid.Item(sheet, group, row, column, bubble, brightness, distance));
+                    }
+                }
+            }
+
+            if (items.size() > itemCount) {
+                sheetCount++;
+            }
+        }
+
+        // Closest to a threshold first. The sort is stable, so bubbles of the same sheet stay together.
+        Collections.sort(items, new Comparator<BubbleGrid.Item>() {
+            public int compare(BubbleGrid.Item a, BubbleGrid.Item b) {
+                return a.getDistance() - b.getDistance();
+            }
+        });
+
+        grid.setItems(project.getSheetsContainer().getBubbleAtlas(), results.getGeneration(), items);
+
+        summaryLabel.setText(items.size() + " uncertain bubbles on " + sheetCount + " sheets. " +
+                "Click a bubble to mark it filled, again to mark it empty, and a third time to return to automatic.");
+    }
+
+    /**
+     * Called when tab is switched.
+     */
+    public void stateChanged(ChangeEvent event) {
+        JTabbedPane tabs = (JTabbedPane)event.getSource();
+
+        // Switched to this tab?
+        if (this == tabs.getSelectedComponent()) {
+            refresh();
+        }
+    }
+
+    /**
+     * Refresh button was pressed.
+     */
+    public void actionPerformed(ActionEvent event) {
+        refresh();
+    }
+}
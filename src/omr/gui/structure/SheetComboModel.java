@@ -2,17 +2,17 @@ package omr.gui.structure;
 
 import java.util.AbstractList;
 import java.util.LinkedList;
-import java.util.Observable;
-import java.util.Observer;
 
 import javax.swing.ComboBoxModel;
 import javax.swing.event.ListDataEvent;
 import javax.swing.event.ListDataListener;
 
+import omr.ModelListener;
 import omr.Project;
 import omr.Sheet;
+import omr.SheetsChange;
 
-public class SheetComboModel implements ComboBoxModel, Observer {
+public class SheetComboModel implements ComboBoxModel, ModelListener<SheetsChange> {
     
     private static final long serialVersionUID = 1L;
     private Project project;
@@ -27,14 +27,14 @@ public class SheetComboModel implements ComboBoxModel, Observer {
     public void setProject(Project project) {
         // Unsubscribe from previous model
         if (this.project != null) {
-            this.project.getSheetsContainer().deleteObserver(this);
+            this.project.getSheetsContainer().getChangeBus().removeListener(this);
         }
         
         this.project = project;
         
         // Subscribe to new model
         if (project != null) {
-            project.getSheetsContainer().addObserver(this);
+            project.getSheetsContainer().getChangeBus().addListener(this);
             this.selectedSheet = project.getSheetStructure().getReferenceSheet();
         }
         
@@ -42,11 +42,10 @@ public class SheetComboModel implements ComboBoxModel, Observer {
     }
     
     /**
-     * Notified by the SheetsContainer when the sheet list is updated.
+     * Notified by the SheetsContainer when sheets change. Only changes of the list itself matter here.
      */
-    public void update(Observable source, Object event) {
-    	// Event is set to null when the whole list changes. Otherwise, it contains an Integer specifying the changed row.
-    	if (event == null) {
+    public void modelChanged(SheetsChange change) {
+    	if (change.isListChanged()) {
     		notifyListeners();
     	}
     }
@@ -100,6 +100,7 @@ public class SheetStructureEditor extends SheetEditor implements MouseListener,
             groupComponent.setUndoSupport(undoSupport);
             this.newComponent = groupComponent;
             addQuestionGroup(groupComponent);  // Adds group to the view and model
+            groupComponent.getQuestionGroup().setAdjusting(true);  // Sheets are measured when the group has been drawn
             undoSupport.postEdit(new CreateQuestionGroupEdit(this, groupComponent));
         }
         
@@ -124,6 +125,10 @@ public class SheetStructureEditor extends SheetEditor implements MouseListener,
     public void mouseReleased(MouseEvent event) {
         // Finished drawing a new component?
         if (newComponent != null) {
+            if (newComponent instanceof QuestionGroupComponent) {
+                ((QuestionGroupComponent)newComponent).getQuestionGroup().setAdjusting(false);
+            }
+            
             setSelectedComponent(newComponent);
         }
         
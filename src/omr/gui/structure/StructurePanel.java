@@ -67,6 +67,7 @@ public class StructurePanel extends JPanel implements ChangeListener {
     public void setProject(Project project) {
         sheetEditor.setSheetStructure(project.getSheetStructure());
         sheetEditor.setSheet(project.getSheetStructure().getReferenceSheet());
+        sheetEditor.setHistogram(project.getHistogram());
         
         structureProperties.setProject(project);
         registrationMarkerProperties.setProject(project);